@@ -0,0 +1,93 @@
+package net.iotku.subdonic.bot;
+
+import com.sedmelluq.discord.lavaplayer.container.common.OpusPacketRouter;
+import com.sedmelluq.discord.lavaplayer.format.StandardAudioDataFormats;
+import com.sedmelluq.discord.lavaplayer.natives.opus.OpusEncoder;
+import com.sedmelluq.discord.lavaplayer.player.AudioConfiguration;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayerOptions;
+import com.sedmelluq.discord.lavaplayer.track.playback.AudioProcessingContext;
+import com.sedmelluq.discord.lavaplayer.track.playback.MutableAudioFrame;
+import com.sedmelluq.discord.lavaplayer.track.playback.NonAllocatingAudioFrameBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One stream's work per 20 ms Opus packet, in passthrough (player at 100) and on the decoded path (player at
+ * {@link GuildAudioManager#DEFAULT_VOLUME}), through LavaPlayer's own Opus packet router and frame buffer.
+ * The score divided by 20 ms is the share of a core one stream takes in that mode.
+ * Run with {@code ./gradlew jmh -Pjmh.includes=Passthrough}
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PassthroughBenchmark {
+    private static final int FRAME_SAMPLES = 960; // 20 ms at 48 kHz
+
+    @Param({"passthrough", "decoded"})
+    String mode;
+
+    private ByteBuffer[] packets;
+    private int next;
+    private NonAllocatingAudioFrameBuffer frameBuffer;
+    private OpusPacketRouter router;
+    private final MutableAudioFrame frame = new MutableAudioFrame();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // Five seconds of a tone with some noise, encoded the way Subsonic's opus transcode would send it
+        Random random = new Random(42);
+        OpusEncoder encoder = new OpusEncoder(48000, 2, 10);
+        ShortBuffer pcm = ByteBuffer.allocateDirect(FRAME_SAMPLES * 2 * 2).order(ByteOrder.nativeOrder()).asShortBuffer();
+        packets = new ByteBuffer[250];
+        for (int p = 0; p < packets.length; p++) {
+            pcm.clear();
+            for (int i = 0; i < FRAME_SAMPLES; i++) {
+                short sample = (short) (8000 * Math.sin((p * FRAME_SAMPLES + i) * 2 * Math.PI * 440 / 48000) + random.nextGaussian() * 500);
+                pcm.put(sample).put(sample);
+            }
+            pcm.flip();
+            ByteBuffer out = ByteBuffer.allocateDirect(4096);
+            int length = encoder.encode(pcm, FRAME_SAMPLES, out);
+            byte[] packet = new byte[length];
+            out.get(packet, 0, length);
+            packets[p] = ByteBuffer.wrap(packet);
+        }
+        encoder.close();
+
+        frameBuffer = new NonAllocatingAudioFrameBuffer(5000, StandardAudioDataFormats.DISCORD_OPUS, new AtomicBoolean());
+        AudioPlayerOptions options = new AudioPlayerOptions();
+        options.volumeLevel.set(mode.equals("passthrough") ? 100 : GuildAudioManager.DEFAULT_VOLUME);
+        router = new OpusPacketRouter(new AudioProcessingContext(new AudioConfiguration(), frameBuffer, options,
+                StandardAudioDataFormats.DISCORD_OPUS), 48000, 2);
+        frame.setBuffer(ByteBuffer.allocate(StandardAudioDataFormats.DISCORD_OPUS.maximumChunkSize()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        router.close();
+    }
+
+    @Benchmark
+    public int packet() throws InterruptedException {
+        ByteBuffer packet = packets[next++ % packets.length];
+        router.process(packet.duplicate());
+        int frames = 0;
+        while (frameBuffer.provide(frame)) frames++; // what the Discord provider does every 20 ms
+        return frames;
+    }
+}
@@ -0,0 +1,115 @@
+package net.iotku.subdonic.bot;
+
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo;
+import net.iotku.subdonic.subsonic.SubsonicClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The queue operations commands run, on a 10k track queue, for the {@link ConcurrentLinkedQueue} the scheduler
+ * used before and for {@link TrackQueue}. Mutating benchmarks put back what they take, so the queue stays at size.
+ * Run with {@code ./gradlew jmh -Pjmh.includes=TrackQueue}
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TrackQueueBenchmark {
+    private static final int SKIP = 100;
+
+    @Param({"ConcurrentLinkedQueue", "TrackQueue"})
+    String queueType;
+
+    @Param({"10000"})
+    int size;
+
+    private Queue<QueuedTrack> queue;
+    private final List<QueuedTrack> taken = new ArrayList<>(SKIP);
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SubsonicAudioSourceManager source = new SubsonicAudioSourceManager(
+                new SubsonicClient("http://music.example", "user", "pass"), "flac");
+        queue = queueType.equals("TrackQueue") ? new TrackQueue() : new ConcurrentLinkedQueue<>();
+        for (int i = 0; i < size; i++) {
+            queue.add(new QueuedTrack(new SubsonicAudioTrack(new AudioTrackInfo("t" + i, "Unknown artist", 60_000,
+                    SubsonicAudioSourceManager.PREFIX + i, false, null), FormatSelector.StreamPreference.AUTO, source)));
+        }
+    }
+
+    /**
+     * The now playing footer and !list title
+     */
+    @Benchmark
+    public int size() {
+        return queue.size();
+    }
+
+    /**
+     * !skip 100, then the same tracks queued again at the back
+     */
+    @Benchmark
+    public QueuedTrack skipAndRequeue() {
+        QueuedTrack next;
+        if (queue instanceof TrackQueue tracks) {
+            for (int i = 0; i < SKIP; i++) taken.add(tracks.get(i));
+            next = tracks.skip(SKIP);
+        } else {
+            for (int i = 0; i < SKIP - 1; i++) taken.add(queue.poll());
+            next = queue.poll();
+            taken.add(next);
+        }
+        queue.addAll(taken);
+        taken.clear();
+        return next;
+    }
+
+    /**
+     * Remove the track in the middle of the queue, then put it back where it was
+     */
+    @Benchmark
+    public QueuedTrack removeAndInsertMiddle() {
+        int middle = size / 2;
+        if (queue instanceof TrackQueue tracks) {
+            QueuedTrack removed = tracks.remove(middle);
+            tracks.insert(middle, removed);
+            return removed;
+        }
+        // ConcurrentLinkedQueue has no positions: walk to it, and rebuild around it to put it back
+        Iterator<QueuedTrack> walk = queue.iterator();
+        for (int i = 0; i < middle; i++) walk.next();
+        QueuedTrack removed = walk.next();
+        walk.remove();
+        List<QueuedTrack> rest = new ArrayList<>(queue);
+        rest.add(middle, removed);
+        queue.clear();
+        queue.addAll(rest);
+        return removed;
+    }
+
+    /**
+     * The first page of !list
+     */
+    @Benchmark
+    public int listFirstPage() {
+        if (queue instanceof TrackQueue tracks) return tracks.slice(0, 20).size();
+        int count = 0;
+        for (QueuedTrack ignored : queue) {
+            if (++count >= 20) break;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,83 @@
+package net.iotku.subdonic.catalog;
+
+import net.iotku.subdonic.api.v1.dto.Song;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Typo-tolerant search over a synthetic library, against the exact search it falls back from.
+ * Run with {@code ./gradlew jmh -Pjmh.includes=CatalogFuzzy}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CatalogFuzzyBenchmark {
+    private static final String[] SYLLABLES = {"la", "mon", "de", "tru", "ka", "ri", "so", "phe", "nu", "tor",
+            "bel", "vin", "qua", "zi", "mar", "lo", "sen", "tay", "gro", "pi", "dun", "wex", "cha", "fo", "ble",
+            "ny", "ste", "ram", "ju", "olk", "ver", "hu", "sta", "min", "ge", "bro", "tal", "ix", "cor", "ane"};
+
+    @Param({"200000"})
+    int songs;
+
+    private CatalogIndex index;
+    private String[] typos;
+    private String[] exact;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        String[] artists = new String[songs / 10];
+        for (int i = 0; i < artists.length; i++) artists[i] = words(random, 1 + random.nextInt(2));
+
+        CatalogSegment.Builder builder = new CatalogSegment.Builder();
+        for (int i = 0; i < songs; i++) {
+            String artist = artists[random.nextInt(artists.length)];
+            builder.add(new Song(words(random, 1 + random.nextInt(3)), artist, words(random, 2), "2014", "s" + i), "a" + i / 12);
+        }
+        index = CatalogIndex.of(builder.build());
+
+        typos = new String[256];
+        exact = new String[typos.length];
+        for (int i = 0; i < typos.length; i++) {
+            Song song = index.song(random.nextInt(songs));
+            exact[i] = song.artist() + " " + song.title();
+            typos[i] = dropLetter(random, song.artist()) + " " + song.title();
+        }
+    }
+
+    @Benchmark
+    public List<Song> exactSearch() {
+        return index.search(exact[next++ & (exact.length - 1)], 50);
+    }
+
+    @Benchmark
+    public CatalogIndex.FuzzyMatch fuzzySearch() {
+        return index.fuzzySearch(typos[next++ & (typos.length - 1)], 0.3, 50);
+    }
+
+    private static String words(Random random, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int w = 0; w < count; w++) {
+            if (w > 0) sb.append(' ');
+            for (int s = 2 + random.nextInt(2); s > 0; s--) sb.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+        }
+        return sb.toString();
+    }
+
+    private static String dropLetter(Random random, String word) {
+        int i = 1 + random.nextInt(word.length() - 2);
+        return word.charAt(i) == ' ' ? word : word.substring(0, i) + word.substring(i + 1);
+    }
+}
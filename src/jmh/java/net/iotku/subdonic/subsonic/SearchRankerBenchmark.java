@@ -0,0 +1,87 @@
+package net.iotku.subdonic.subsonic;
+
+import net.iotku.subdonic.api.v1.dto.Song;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SearchRanker against the per-song toLowerCase/sort lambda it replaced.
+ * Run with {@code ./gradlew jmh -Pjmh.includes=SearchRanker}, add {@code -prof gc} through jmh args to compare allocation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SearchRankerBenchmark {
+    private static final String[] WORDS = {"two", "trucks", "lemon", "demon", "nature", "tapes", "spirit", "phone",
+            "live", "at", "the", "hollywood", "bowl", "renaissance", "cafe", "bustelo", "summer", "telephone"};
+
+    @Param({"50", "500"})
+    int results;
+
+    private List<Song> songs;
+    private SearchRanker ranker;
+    private final String query = "lemon demon";
+
+    private record RankedSong(Song song, int score) {}
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        songs = new ArrayList<>(results);
+        for (int i = 0; i < results; i++) {
+            songs.add(new Song(words(random, 3), words(random, 2), words(random, 3), "2014", "s" + i));
+        }
+        ranker = new SearchRanker(SearchRanker.Weights.DEFAULT);
+    }
+
+    @Benchmark
+    public List<Song> ranker() {
+        return ranker.rank(query, songs, 50);
+    }
+
+    @Benchmark
+    public List<Song> legacyLambda() {
+        return songs.stream()
+                .map(song -> {
+                    int score = 0;
+                    if (song.title() != null && song.title().toLowerCase().contains(query.toLowerCase())) {
+                        score += 10;
+                    }
+                    if (song.album() != null && song.album().toLowerCase().contains(query.toLowerCase())) {
+                        score += 1;
+                    }
+                    if (song.album() != null && song.album().toLowerCase().contains("live")) {
+                        score -= 5;
+                    }
+                    if (song.artist() != null && song.artist().toLowerCase().contains(query.toLowerCase())) {
+                        score += 5;
+                    }
+                    return new RankedSong(song, score);
+                })
+                .sorted((a, b) -> Integer.compare(b.score(), a.score()))
+                .map(RankedSong::song)
+                .limit(50)
+                .toList();
+    }
+
+    private static String words(Random random, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) sb.append(' ');
+            String word = WORDS[random.nextInt(WORDS.length)];
+            sb.append(random.nextBoolean() ? Character.toUpperCase(word.charAt(0)) + word.substring(1) : word);
+        }
+        return sb.toString();
+    }
+}
@@ -2,8 +2,10 @@ package net.iotku.subdonic;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
+@EnableScheduling
 public class SubdonicApplication {
 
 	public static void main(String[] args) {
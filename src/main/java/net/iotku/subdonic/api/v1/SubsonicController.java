@@ -1,26 +1,33 @@
 package net.iotku.subdonic.api.v1;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import net.beardbot.subsonic.client.Subsonic;
-import net.beardbot.subsonic.client.api.search.SearchParams;
-import net.beardbot.subsonic.client.base.SubsonicIncompatibilityException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.http.HttpServletResponse;
 import net.iotku.subdonic.api.v1.dto.Song;
-import net.iotku.subdonic.api.v1.filter.SubsonicFilter;
-import net.iotku.subdonic.ApiClient.Http;
+import net.iotku.subdonic.subsonic.MediaCache;
+import net.iotku.subdonic.subsonic.SearchService;
+import net.iotku.subdonic.subsonic.SubsonicClient;
 import net.iotku.subdonic.subsonic.SubsonicConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.server.ResponseStatusException;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.http.HttpResponse;
-import java.util.Arrays;
+import java.nio.channels.Channels;
 import java.util.List;
-import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.Semaphore;
 
 @RestController
 @SuppressWarnings("unused")
@@ -28,11 +35,38 @@ import java.util.Map;
 public class SubsonicController {
     private static final Logger log = LoggerFactory.getLogger(SubsonicController.class);
     private final SubsonicConfig config;
-    private final Subsonic subsonic;
+    private final SubsonicClient subsonic;
+    private final SearchService searchService;
+    private final MediaCache mediaCache;
+    private final String streamFormat;
+    private static final String ORIGINAL_FORMAT = "raw"; // Subsonic sends the file as stored, without transcoding
+    private static final List<String> PROXIED_HEADERS = List.of(HttpHeaders.CONTENT_LENGTH, HttpHeaders.CONTENT_RANGE,
+            HttpHeaders.ACCEPT_RANGES, HttpHeaders.ETAG, HttpHeaders.LAST_MODIFIED);
+    private final int maxStreams;
+    private final Semaphore streamPermits;
+    private final Counter rejectedStreams;
+    private final Counter streamedBytes;
 
-    public SubsonicController(SubsonicConfig config) {
+    public SubsonicController(SubsonicConfig config, SubsonicClient subsonic, SearchService searchService,
+                              MediaCache mediaCache,
+                              @Value("${subsonic.stream.format:flac}") String streamFormat,
+                              @Value("${stream.proxy.max-concurrent:32}") int maxStreams,
+                              MeterRegistry registry) {
         this.config = config;
-        this.subsonic = config.subsonic();
+        this.subsonic = subsonic;
+        this.searchService = searchService;
+        this.mediaCache = mediaCache;
+        this.streamFormat = streamFormat;
+        this.maxStreams = maxStreams;
+        this.streamPermits = new Semaphore(maxStreams);
+        Gauge.builder("stream.proxy.open", this, c -> c.maxStreams - c.streamPermits.availablePermits())
+                .description("Upstream Subsonic streams currently being relayed")
+                .register(registry);
+        Gauge.builder("stream.proxy.limit", this, c -> c.maxStreams).register(registry);
+        this.rejectedStreams = Counter.builder("stream.proxy.rejected")
+                .description("Stream requests turned away because the concurrency cap was reached")
+                .register(registry);
+        this.streamedBytes = Counter.builder("stream.proxy.bytes").baseUnit("bytes").register(registry);
     }
 
     /**
@@ -42,16 +76,15 @@ public class SubsonicController {
     @GetMapping("/test")
     public String test() {
         try {
-            if (subsonic.testConnection()) {
-                log.info("Connected to server");
-                return "Connected";
-            } else {
-                log.error("Failed to connect to {} with user {} and pass {}", config.getServerURL(), config.getUser(), config.getPass());
-                return "Not Connected";
-            }
-        } catch (SubsonicIncompatibilityException e) {
-            log.error("Server not compatible with client");
-            return "Server Incompatible";
+            subsonic.ping();
+            log.info("Connected to server");
+            return "Connected";
+        } catch (IOException e) {
+            log.error("Failed to connect to {} with user {}: {}", config.getServerURL(), config.getUser(), e.getMessage());
+            return "Not Connected";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "Not Connected";
         }
     }
 
@@ -64,18 +97,7 @@ public class SubsonicController {
     @GetMapping("/search2")
     @ResponseBody
     public List<Song> search2(@RequestParam String query) {
-        query = query.replace(" - ", " "); // Make "artist - title" queries more reliable
-        SearchParams sp = SearchParams.create();
-        sp.songCount(50); // up to 10 pages of 5
-        return subsonic.searching().search2(query, sp).getSongs().stream()
-                .map(child -> new Song(
-                        child.getTitle(),
-                        child.getArtist(),
-                        child.getAlbum(),
-                        child.getYear() != null ? child.getYear().toString() : null,
-                        child.getId()
-                ))
-                .filter(SubsonicFilter.taglessSong).toList();
+        return searchService.search2(query);
     }
 
     /**
@@ -87,73 +109,206 @@ public class SubsonicController {
     @GetMapping("/search3")
     @ResponseBody
     public List<Song> search3(@RequestParam String query) {
-        query = query.replace(" - ", " "); // Make "artist - title" queries more reliable
-        SearchParams sp = SearchParams.create();
-        sp.songCount(50); // up to 10 pages of 5
-        return subsonic.searching().search3(query, sp).getSongs().stream()
-                .map(child -> new Song(
-                        child.getTitle(),
-                        child.getArtist(),
-                        child.getAlbum(),
-                        child.getYear() != null ? child.getYear().toString() : null,
-                        child.getId()
-                ))
-                .filter(SubsonicFilter.taglessSong).toList();
+        return searchService.search3(query);
     }
 
     /**
-     * proxyStream /stream/{id} endpoint
+     * proxyStream /stream/{id} endpoint, relays the audio from Subsonic without exposing our credentials.
+     * Songs in the media cache are served from disk, and a song played from the start is written through to the cache
+     * as it is relayed. Songs are streamed in {@code subsonic.stream.format}, the bot's per-guild format choices
+     * don't apply here. Range requests are passed through so clients can seek, and at most
+     * {@code stream.proxy.max-concurrent} upstream streams are open at once.
      * @param id subsonic id from search response for distinct song
-     * @return Stream of audio data provided by the subsonic server
+     * @param range optional HTTP Range header from the client
+     * @param response written with the upstream status, audio headers and body
+     * @throws IOException if the client connection fails before anything was sent
      */
     @GetMapping("/stream/{id}")
-    public String proxyStream(@PathVariable String id) {
-        // ! NOTE: spaces in the URL (e.g. from the subsonic client name) will DOOM YOU !
-        String safeUrl = subsonic.media().stream(id).getUrl()
-                .toString()
-                .replace(" ", "%20");
+    public void proxyStream(@PathVariable String id,
+                            @RequestHeader(value = HttpHeaders.RANGE, required = false) String range,
+                            HttpServletResponse response) throws IOException {
+        String key = MediaCache.key(id, streamFormat);
+        Optional<MediaCache.Cached> cached = mediaCache.open(key);
+        if (cached.isPresent()) {
+            try (MediaCache.Cached media = cached.get()) {
+                serveCached(id, media, range, response);
+            }
+            return;
+        }
+
+        if (!streamPermits.tryAcquire()) {
+            rejectedStreams.increment();
+            response.setHeader(HttpHeaders.RETRY_AFTER, "1");
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many open streams");
+        }
+        try {
+            // NOTE: Only plain requests fill the cache, a seek on a song we don't have yet goes straight upstream
+            Optional<MediaCache.Download> download = range == null ? mediaCache.download(key) : Optional.empty();
+            if (download.isPresent()) {
+                try (MediaCache.Download into = download.get()) {
+                    relayThrough(id, into, response);
+                }
+                return;
+            }
+
+            HttpResponse<InputStream> upstream = fetch(id, range);
+            try (InputStream body = upstream.body()) {
+                relay(id, upstream, body, response);
+            }
+        } finally {
+            streamPermits.release();
+        }
+    }
 
-        HttpResponse<InputStream> response;
+    private HttpResponse<InputStream> fetch(String id, String range) {
         try {
-            response = Http.makeGetRequestStream(safeUrl);
-        } catch (IOException | InterruptedException e) {
-            log.error("Failed to fetch stream for id {}", id, e);
-            throw new ResponseStatusException(HttpStatus.BAD_GATEWAY,
-                    "Could not fetch stream for id " + id, e);
+            return subsonic.stream(id, streamFormat, range);
+        } catch (IOException e) {
+            log.error("Failed to fetch stream for id {}: {}", id, e.getMessage());
+            throw new ResponseStatusException(HttpStatus.BAD_GATEWAY, "Could not fetch stream for id " + id, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Interrupted", e);
         }
+    }
 
-        if (response.statusCode() != 200) {
-            log.error("Subsonic returned status {} for id {}", response.statusCode(), id);
-            throw new ResponseStatusException(
-                    HttpStatus.valueOf(response.statusCode()),
-                    "Subsonic returned status " + response.statusCode() + " for id " + id
-            );
+    private void relay(String id, HttpResponse<InputStream> upstream, InputStream body, HttpServletResponse response) throws IOException {
+        int status = upstream.statusCode();
+        if (status == HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value()) {
+            response.setStatus(status);
+            upstream.headers().firstValue(HttpHeaders.CONTENT_RANGE).ifPresent(v -> response.setHeader(HttpHeaders.CONTENT_RANGE, v));
+            return;
         }
+        String contentType = checkAudio(id, upstream);
 
-        return safeUrl; // TODO: This exposes subsonic credentials!!!
+        response.setStatus(status);
+        response.setContentType(contentType);
+        for (String header : PROXIED_HEADERS) {
+            upstream.headers().firstValue(header).ifPresent(v -> response.setHeader(header, v));
+        }
+
+        try {
+            streamedBytes.increment(body.transferTo(response.getOutputStream()));
+        } catch (IOException e) {
+            // Usually the client hanging up, e.g. LavaPlayer seeking or skipping; closing the body frees the upstream
+            log.debug("Stream for id {} ended early: {}", id, e.getMessage());
+        }
     }
 
+    /**
+     * @return the upstream content type
+     * @throws ResponseStatusException if Subsonic didn't send audio
+     */
+    private static String checkAudio(String id, HttpResponse<InputStream> upstream) {
+        int status = upstream.statusCode();
+        String contentType = upstream.headers().firstValue(HttpHeaders.CONTENT_TYPE).orElse(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+        // NOTE: Subsonic reports errors (e.g. unknown id) as a 200 with an API response body instead of audio
+        if ((status != HttpStatus.OK.value() && status != HttpStatus.PARTIAL_CONTENT.value())
+                || contentType.startsWith(MediaType.APPLICATION_JSON_VALUE) || contentType.startsWith(MediaType.TEXT_XML_VALUE)) {
+            log.error("Subsonic returned status {} ({}) for id {}", status, contentType, id);
+            throw new ResponseStatusException(status == HttpStatus.NOT_FOUND.value() ? HttpStatus.NOT_FOUND : HttpStatus.BAD_GATEWAY,
+                    "Subsonic returned status " + status + " for id " + id);
+        }
+        return contentType;
+    }
+
+    /**
+     * Relay a whole song while writing it to the cache. When the song is streamed as its original file, what an
+     * earlier, interrupted download left on disk is sent first and only the rest is fetched, with a Range request.
+     * NOTE: Transcodes aren't byte-identical between runs, so their part files are always started over; joining two
+     * encodes would cache a corrupt file even when Subsonic honours the range
+     */
+    private void relayThrough(String id, MediaCache.Download download, HttpServletResponse response) throws IOException {
+        long resumeFrom = ORIGINAL_FORMAT.equalsIgnoreCase(streamFormat) ? download.resumeFrom() : 0;
+        HttpResponse<InputStream> upstream = fetch(id, resumeFrom > 0 ? "bytes=" + resumeFrom + "-" : null);
+        if (resumeFrom > 0 && upstream.statusCode() != HttpStatus.OK.value() && !resumes(upstream, resumeFrom)) {
+            // Upstream can't continue where we stopped, e.g. the transcode changed, so start over
+            upstream.body().close();
+            resumeFrom = 0;
+            upstream = fetch(id, null);
+        }
+        if (upstream.statusCode() == HttpStatus.OK.value()) resumeFrom = 0; // upstream ignored the range
+
+        try (InputStream body = upstream.body()) {
+            String contentType = checkAudio(id, upstream);
+            if (resumeFrom == 0) download.restart(contentType);
+            OptionalLong remaining = upstream.headers().firstValueAsLong(HttpHeaders.CONTENT_LENGTH);
+
+            response.setStatus(HttpStatus.OK.value());
+            response.setContentType(download.contentType());
+            if (remaining.isPresent()) response.setContentLengthLong(resumeFrom + remaining.getAsLong());
+            OutputStream out = response.getOutputStream();
+            long relayed = 0;
+            try {
+                download.transferCachedTo(Channels.newChannel(out));
+                byte[] buffer = new byte[64 * 1024];
+                for (int read; (read = body.read(buffer)) != -1; relayed += read) {
+                    download.write(buffer, 0, read);
+                    out.write(buffer, 0, read);
+                }
+            } catch (IOException e) {
+                // The client hanging up or the disk failing, either way the part file is kept for next time
+                log.debug("Stream for id {} ended early: {}", id, e.getMessage());
+                return;
+            } finally {
+                streamedBytes.increment(relayed);
+            }
+            if (remaining.isEmpty() || remaining.getAsLong() == relayed) download.complete();
+        }
+    }
+
+    /**
+     * @return true if upstream answered a resume request with the rest of the song
+     */
+    private static boolean resumes(HttpResponse<InputStream> upstream, long from) {
+        return upstream.statusCode() == HttpStatus.PARTIAL_CONTENT.value()
+                && upstream.headers().firstValue(HttpHeaders.CONTENT_RANGE).orElse("").startsWith("bytes " + from + "-");
+    }
+
+    /**
+     * Serve a song from the media cache, honouring a single byte range
+     */
+    private void serveCached(String id, MediaCache.Cached media, String range, HttpServletResponse response) throws IOException {
+        long length = media.length();
+        long start = 0;
+        long end = length - 1;
+        List<HttpRange> ranges = List.of();
+        try {
+            if (range != null) ranges = HttpRange.parseRanges(range);
+        } catch (IllegalArgumentException e) {
+            log.debug("Ignoring malformed Range {} for id {}", range, id);
+        }
+        if (ranges.size() == 1) { // several ranges are rare enough to just send the whole song
+            try {
+                start = ranges.getFirst().getRangeStart(length);
+                end = ranges.getFirst().getRangeEnd(length);
+            } catch (IllegalArgumentException e) { // starts past the end
+                start = length;
+            }
+            if (start > end) {
+                response.setStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+                return;
+            }
+            response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+        } else {
+            response.setStatus(HttpStatus.OK.value());
+        }
+        response.setContentType(media.contentType());
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        response.setContentLengthLong(end - start + 1);
+
+        try {
+            media.transferTo(start, end - start + 1, Channels.newChannel(response.getOutputStream()));
+            mediaCache.served(end - start + 1);
+        } catch (IOException e) {
+            log.debug("Cached stream for id {} ended early: {}", id, e.getMessage());
+        }
+    }
 
     @GetMapping("/getRandomSongs")
     public List<Song> getRandomSongs(@RequestParam(defaultValue = "10") int size) throws Exception {
-        String urlStr = subsonic.createUrl(
-                        "getRandomSongs.view",
-                        Map.of("size", List.of(String.valueOf(size)))
-                ).toString()
-                .replace(" ", "%20")
-                .replace("&f=xml", "&f=json"); // NOTE: createUrl enforces &f=xml, so we rewrite this
-
-        HttpResponse<String> response = Http.makeGetRequest(urlStr);
-        ObjectMapper mapper = new ObjectMapper();
-        JsonNode root = mapper.readTree(response.body());
-
-        JsonNode songsNode = root
-                .path("subsonic-response")
-                .path("randomSongs")
-                .path("song");
-
-        Song[] songs = mapper.treeToValue(songsNode, Song[].class);
-        // NOTE: Fairly unlikely to only have invalid songs, but maybe consider requesting multiple songs to be sure.
-        return Arrays.stream(songs).filter(SubsonicFilter.taglessSong).toList();
+        return searchService.random(size);
     }
 }
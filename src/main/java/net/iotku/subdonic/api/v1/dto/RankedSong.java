@@ -1,3 +0,0 @@
-package net.iotku.subdonic.api.v1.dto;
-
-public record RankedSong(Song song, int score) {}
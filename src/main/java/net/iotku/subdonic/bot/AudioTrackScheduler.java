@@ -1,7 +1,13 @@
 package net.iotku.subdonic.bot;
 
+import com.sedmelluq.discord.lavaplayer.player.AudioLoadResultHandler;
 import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
 import com.sedmelluq.discord.lavaplayer.player.event.AudioEventAdapter;
+import com.sedmelluq.discord.lavaplayer.tools.FriendlyException;
+import com.sedmelluq.discord.lavaplayer.tools.Units;
+import com.sedmelluq.discord.lavaplayer.track.AudioPlaylist;
+import com.sedmelluq.discord.lavaplayer.track.AudioReference;
 import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
 import com.sedmelluq.discord.lavaplayer.track.AudioTrackEndReason;
 import discord4j.common.util.Snowflake;
@@ -9,31 +15,137 @@ import net.iotku.subdonic.api.v1.dto.Song;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+import java.util.function.Supplier;
 
-import static net.iotku.subdonic.ApiClient.Stream.getStreamUrl;
 
 public class AudioTrackScheduler extends AudioEventAdapter {
+    static final int DEFAULT_LOAD_AHEAD = 3;
+    static final long LOAD_RETRY_MILLIS = 500; // wait after the load scheduler turned a queued song away
 
-    private final Queue<AudioTrack> queue = new ConcurrentLinkedQueue<>();
+    private final TrackQueue queue = new TrackQueue();
     private final AudioPlayer player;
+    private final TrackPreloader preloader; // null when tracks aren't preloaded
+    private final int loadAhead;
+    private BiConsumer<Song, AudioLoadResultHandler> loader; // null loads under this scheduler's own turns
+    private final Set<QueuedTrack> loadedAhead = Collections.newSetFromMap(new IdentityHashMap<>()); // guarded by this
+    private QueuedTrack waiting; // taken off the queue to play before its track loaded, guarded by this
+    private AudioTrack preloaded; // the track preloader was last asked to open
+    private volatile boolean advancing; // a track just finished and the next one was started
+    private AudioTrack lastFrameTrack; // track and time of the last frame sent, only touched by the audio thread
+    private long lastFrameNanos;
     private Consumer<AudioTrack> onTrackStart;
     private Consumer<AudioTrack> onTrackAdd;
+    private ToIntFunction<AudioTrack> volume; // null leaves the player's volume alone
     private static final Logger log = LoggerFactory.getLogger(AudioTrackScheduler.class);
 
     public AudioTrackScheduler(AudioPlayer player) {
+        this(player, null);
+    }
+
+    /**
+     * @param player the guild's player
+     * @param preloader opens the next track's stream ahead of time, null to start tracks cold
+     */
+    public AudioTrackScheduler(AudioPlayer player, TrackPreloader preloader) {
+        this(player, preloader, DEFAULT_LOAD_AHEAD, null);
+    }
+
+    /**
+     * @param player the guild's player
+     * @param preloader opens the next track's stream ahead of time, null to start tracks cold
+     * @param loadAhead how many songs at the front of the queue are kept loaded
+     * @param loader loads a queued song for the handler, null to load it through the player manager
+     */
+    AudioTrackScheduler(AudioPlayer player, TrackPreloader preloader, int loadAhead,
+                        BiConsumer<Song, AudioLoadResultHandler> loader) {
         this.player = player;
+        this.preloader = preloader;
+        this.loadAhead = Math.max(1, loadAhead);
+        this.loader = loader;
     }
 
     static Song loadTrack(Song song, Snowflake guildId) {
-        GuildAudioManager.getPlayerManager().loadItem(getStreamUrl(song), new TrackLoadHandler(song, guildId));
+        GuildAudioManager.of(guildId).getPlayHistory().record(song.id());
+        load(song, new TrackLoadHandler(song, guildId), GuildAudioManager.of(guildId).getLoadKey());
         return song;
     }
 
-    public Queue<AudioTrack> getQueue() {
+    /**
+     * Load several songs at once and queue them in the order given, however their loads finish.
+     * Tracks are queued without an "Added:" message each, the batch is reported once when every load finished.
+     * @param songs songs to queue, in order
+     * @param guildId guild whose queue they go on
+     */
+    static void loadTracks(List<Song> songs, Snowflake guildId) {
+        GuildAudioManager manager = GuildAudioManager.of(guildId);
+        TrackBatch batch = new TrackBatch(songs.size(),
+                track -> manager.getScheduler().play(track, false, false),
+                committed -> reportBatch(manager, committed));
+        for (int i = 0; i < songs.size(); i++) {
+            Song song = songs.get(i);
+            manager.getPlayHistory().record(song.id());
+            load(song, new TrackLoadHandler(song, guildId, batch, i), manager.getLoadKey());
+        }
+    }
+
+    /**
+     * Queue songs without loading them, e.g. a whole album. Only the songs at the front of the queue are loaded,
+     * shortly before they play, so queueing thousands of songs is instant.
+     * @param songs songs to queue, in order
+     * @param guildId guild whose queue they go on
+     */
+    static void queueSongs(List<Song> songs, Snowflake guildId) {
+        GuildAudioManager manager = GuildAudioManager.of(guildId);
+        for (Song song : songs) manager.getPlayHistory().record(song.id());
+        manager.getScheduler().enqueue(songs, manager.effectiveStreamPreference());
+    }
+
+    /**
+     * Load a song through the track cache and the load scheduler, when they're registered
+     * @param song song to load
+     * @param handler gets the track
+     * @param key loads are shared out between keys, e.g. the guild id
+     */
+    static void load(Song song, AudioLoadResultHandler handler, Object key) {
+        AudioReference reference = new AudioReference(SubsonicAudioSourceManager.identifier(song),
+                song.artist() + " - " + song.title());
+        AudioPlayerManager playerManager = GuildAudioManager.getPlayerManager();
+        TrackTemplateCache templates = GuildAudioManager.getTrackCache();
+        Supplier<CompletableFuture<AudioTrack>> loader = templates != null
+                ? () -> templates.load(song.id(), reference, playerManager)
+                : () -> TrackLoadScheduler.loadItem(playerManager, reference);
+        TrackLoadScheduler loads = GuildAudioManager.getLoadScheduler();
+        if (loads != null) {
+            loads.submit(key, loader, handler);
+        } else {
+            loader.get().whenComplete((track, error) -> TrackLoadScheduler.deliver(track, error, handler));
+        }
+    }
+
+    private static void reportBatch(GuildAudioManager manager, List<AudioTrack> committed) {
+        if (committed.isEmpty()) return;
+        StringBuilder message = new StringBuilder("Added " + committed.size() + (committed.size() == 1 ? " track:" : " tracks:"));
+        for (AudioTrack track : committed) {
+            Song song = (Song) track.getUserData();
+            message.append("\n").append(song.artist()).append(" - ").append(song.title());
+        }
+        manager.getPreferredTextChannel().flatMap(ch -> ch.createMessage(message.toString())).subscribe();
+    }
+
+    public TrackQueue getQueue() {
         return queue;
     }
 
@@ -42,13 +154,29 @@ public class AudioTrackScheduler extends AudioEventAdapter {
     }
 
     public boolean play(AudioTrack track, boolean force) {
-        boolean playing = player.startTrack(track, !force);
+        return play(track, force, true);
+    }
+
+    /**
+     * @param track track to play, or queue if something is playing and force isn't set
+     * @param force replace the playing track
+     * @param announce send the "Added:" message when the track is queued
+     * @return true if the track started playing
+     */
+    boolean play(AudioTrack track, boolean force, boolean announce) {
+        boolean playing = (force || !isWaiting()) && startTrack(track, force);
+        if (playing) forgetPreload(track);
 
         Song song = (Song) track.getUserData(); // extract the Song from the AudioTrack
 
         if (!playing) {
-            queue.add(track);
-            if (onTrackAdd != null) onTrackAdd.accept(track);
+            QueuedTrack entry = new QueuedTrack(track);
+            queue.add(entry);
+            synchronized (this) {
+                loadedAhead.add(entry); // let go of like a lazy load once it's behind the front
+            }
+            loadAhead();
+            if (announce && onTrackAdd != null) onTrackAdd.accept(track);
             log.info("Added: {} - {}", song.artist(), song.title());
         } else {
             if (onTrackStart != null) onTrackStart.accept(track);
@@ -58,30 +186,262 @@ public class AudioTrackScheduler extends AudioEventAdapter {
         return playing;
     }
 
+    /**
+     * Queue songs to be loaded once they get close to the front, starting the first if nothing is playing
+     * @param songs songs to queue, in order
+     * @param preference stream format and bitrate to load them with
+     */
+    public void enqueue(List<Song> songs, FormatSelector.StreamPreference preference) {
+        List<QueuedTrack> entries = new ArrayList<>(songs.size());
+        for (Song song : songs) entries.add(new QueuedTrack(song, preference));
+        queue.addAll(entries);
+        if (player.getPlayingTrack() == null && !isWaiting()) skip();
+        else loadAhead();
+    }
+
     public boolean skip() {
-        AudioTrack next = queue.poll(); // removes head of queue, or null if empty
-        return next != null && play(next, true);
+        return start(queue.poll()); // removes head of queue, or null if empty
     }
 
     public boolean skip(int count) {
-        if (count < 1 || count > queue.size()) {
-            return false; // invalid count
+        return start(queue.skip(count)); // drops the tracks before it, or null if count is out of range
+    }
+
+    /**
+     * Shuffle the queue, loading the songs that end up in front
+     */
+    public void shuffle(Random random) {
+        queue.shuffle(random);
+        loadAhead();
+    }
+
+    /**
+     * @param index position in the queue, 0 is the next track
+     * @return the removed entry
+     */
+    public QueuedTrack remove(int index) {
+        QueuedTrack removed = queue.remove(index);
+        loadAhead();
+        return removed;
+    }
+
+    /**
+     * @param from current position of an entry
+     * @param to position it ends up at
+     * @return the moved entry
+     */
+    public QueuedTrack move(int from, int to) {
+        QueuedTrack moved = queue.move(from, to);
+        loadAhead();
+        return moved;
+    }
+
+    /**
+     * Play an entry taken off the queue, or wait for its track if it hasn't loaded yet
+     * @param next the entry, null if there was none
+     * @return true if it started playing, or will once it has loaded
+     */
+    private boolean start(QueuedTrack next) {
+        if (next == null) return false;
+        AudioTrack track;
+        boolean load;
+        synchronized (this) {
+            loadedAhead.remove(next);
+            track = next.track();
+            next.setTrack(null);
+            waiting = track == null ? next : null; // a skip past an entry that was still loading drops it
+            load = track == null && !next.isLoading();
+            if (load) next.setLoading(true);
+        }
+        if (track != null) {
+            play(track, true);
+        } else {
+            player.stopTrack(); // a skip shouldn't keep the old track playing while the next one loads
+            if (load) loadEntry(next);
         }
-        for (int i = 0; i < count - 1; i++) {
-            queue.poll(); // discard
+        loadAhead();
+        return true;
+    }
+
+    private synchronized boolean isWaiting() {
+        return waiting != null;
+    }
+
+    /**
+     * Keep the songs at the front of the queue loaded, and let go of the tracks of entries that left the front,
+     * so only a handful of queued entries hold a track however long the queue is
+     */
+    private void loadAhead() {
+        List<QueuedTrack> toLoad = new ArrayList<>();
+        synchronized (this) {
+            List<QueuedTrack> front = queue.slice(0, loadAhead);
+            Set<QueuedTrack> keep = Collections.newSetFromMap(new IdentityHashMap<>());
+            keep.addAll(front);
+            for (Iterator<QueuedTrack> it = loadedAhead.iterator(); it.hasNext(); ) {
+                QueuedTrack entry = it.next();
+                if (keep.contains(entry)) continue;
+                entry.setTrack(null); // loaded again if it comes back to the front
+                it.remove();
+            }
+            for (QueuedTrack entry : front) {
+                loadedAhead.add(entry);
+                if (entry.track() != null || entry.isLoading()) continue; // e.g. queued by !play, already loaded
+                entry.setLoading(true);
+                toLoad.add(entry);
+            }
+        }
+        toLoad.forEach(this::loadEntry);
+    }
+
+    private void loadEntry(QueuedTrack entry) {
+        AudioLoadResultHandler handler = new AudioLoadResultHandler() {
+            @Override
+            public void trackLoaded(AudioTrack track) {
+                loaded(entry, track);
+            }
+
+            @Override
+            public void playlistLoaded(AudioPlaylist playlist) {
+                loaded(entry, null);
+            }
+
+            @Override
+            public void noMatches() {
+                loaded(entry, null);
+            }
+
+            @Override
+            public void loadFailed(FriendlyException exception) {
+                if (exception instanceof TrackLoadScheduler.Rejected) {
+                    retryLater(entry); // the guild had too many loads waiting, the song itself is fine
+                    return;
+                }
+                log.error("Loading queued track failed: {}", exception.getMessage());
+                loaded(entry, null);
+            }
+        };
+        if (loader != null) loader.accept(entry.song(), handler);
+        else load(entry.song(), handler, this);
+    }
+
+    /**
+     * Load an entry again once the guild's other loads had time to finish, if it's still waiting to play or at the
+     * front of the queue. It stays marked as loading meanwhile, so nothing else starts a load for it.
+     * @param entry the entry whose load was turned away
+     */
+    private void retryLater(QueuedTrack entry) {
+        CompletableFuture.delayedExecutor(LOAD_RETRY_MILLIS, TimeUnit.MILLISECONDS).execute(() -> {
+            boolean wanted;
+            synchronized (this) {
+                wanted = entry == waiting || loadedAhead.contains(entry);
+                if (!wanted) entry.setLoading(false); // loaded again if it comes back to the front
+            }
+            if (wanted) loadEntry(entry);
+        });
+    }
+
+    /**
+     * @param entry the entry that was loaded
+     * @param track its track, null if it didn't match a song or failed for good
+     */
+    private void loaded(QueuedTrack entry, AudioTrack track) {
+        if (track != null) {
+            track.setUserData(entry.song());
+            if (track instanceof SubsonicAudioTrack subsonic) subsonic.setPreference(entry.preference());
+        }
+        boolean start;
+        synchronized (this) {
+            entry.setLoading(false);
+            start = entry == waiting;
+            if (start) waiting = null;
+            else if (track != null && loadedAhead.contains(entry)) entry.setTrack(track); // else it left the front
+        }
+        if (start && track != null) {
+            play(track, true);
+        } else if (start) {
+            skip(); // go on to the one after it
+            return;
+        } else if (track == null) {
+            queue.remove(entry); // don't leave a song that won't load in the way
         }
-        AudioTrack next = queue.poll();
-        return next != null && play(next, true);
+        loadAhead();
+    }
+
+    /**
+     * Called for every frame sent to Discord. Preloads the head of the queue once the playing track
+     * is close to its end, and measures the gap when one track follows another.
+     * @param playing the track the frame belongs to
+     * @param timecode the frame's position in the track
+     */
+    void onFrame(AudioTrack playing, long timecode) {
+        if (preloader == null) return;
+        long now = System.nanoTime();
+        if (playing != lastFrameTrack) {
+            if (advancing && lastFrameTrack != null) preloader.recordGap(Duration.ofNanos(now - lastFrameNanos));
+            advancing = false;
+            lastFrameTrack = playing;
+        }
+        lastFrameNanos = now;
+
+        long duration = playing.getDuration(); // known once the container has been read
+        if (duration != Units.DURATION_MS_UNKNOWN && duration - timecode <= preloader.leadMillis()) {
+            preloadHead();
+        }
+    }
+
+    private synchronized void preloadHead() {
+        QueuedTrack head = queue.peek();
+        AudioTrack next = head != null ? head.track() : null; // not loaded yet, checked again next frame
+        if (next == null || next == preloaded) return;
+        if (preloaded != null) preloader.cancel(preloaded); // the queue changed under it
+        preloaded = next;
+        preloader.preload(next);
+    }
+
+    private synchronized void forgetPreload(AudioTrack started) {
+        if (preloaded != null && preloaded != started) preloader.cancel(preloaded);
+        preloaded = null;
     }
 
     @Override
     public void onTrackEnd(AudioPlayer player, AudioTrack track, AudioTrackEndReason endReason) {
         // Advance the player if the track completed naturally (FINISHED) or if the track cannot play (LOAD_FAILED)
+        TrackTemplateCache templates = GuildAudioManager.getTrackCache();
+        if (endReason == AudioTrackEndReason.FINISHED && templates != null) templates.learnDuration(track);
         if (endReason.mayStartNext) {
-            skip();
+            boolean advanced = skip();
+            advancing = endReason == AudioTrackEndReason.FINISHED && advanced; // only a finish leaves a gap to measure
         }
     }
 
+    /**
+     * Start a track on the player at the volume it should play at
+     * @return false if something else is playing and force isn't set
+     */
+    private boolean startTrack(AudioTrack track, boolean force) {
+        if (volume == null) return player.startTrack(track, !force);
+        if (!force && player.getPlayingTrack() != null) return false; // leave the playing track's volume alone
+        int previous = player.getVolume();
+        player.setVolume(volume.applyAsInt(track));
+        if (player.startTrack(track, !force)) return true;
+        player.setVolume(previous); // lost a race with another start
+        return false;
+    }
+
+    /**
+     * @param volume player volume for each track, set before it starts; null to leave the volume alone
+     */
+    void setVolume(ToIntFunction<AudioTrack> volume) {
+        this.volume = volume;
+    }
+
+    /**
+     * @param loader loads a queued song for the handler, null to load it through the player manager
+     */
+    void setLoader(BiConsumer<Song, AudioLoadResultHandler> loader) {
+        this.loader = loader;
+    }
+
     // Setter for the consumers
     public void setOnTrackStart(Consumer<AudioTrack> onTrackStart) {
         this.onTrackStart = onTrackStart;
@@ -5,6 +5,8 @@ import discord4j.core.DiscordClient;
 import discord4j.core.GatewayDiscordClient;
 import discord4j.core.event.domain.guild.GuildCreateEvent;
 import discord4j.core.event.domain.guild.GuildDeleteEvent;
+import discord4j.core.event.domain.interaction.ChatInputAutoCompleteEvent;
+import discord4j.core.event.domain.interaction.ChatInputInteractionEvent;
 import discord4j.core.event.domain.lifecycle.ReadyEvent;
 import discord4j.core.event.domain.message.MessageCreateEvent;
 import discord4j.discordjson.json.ApplicationInfoData;
@@ -25,6 +27,7 @@ import java.util.Arrays;
 import java.util.Optional;
 
 import net.iotku.subdonic.ApiClient.Status;
+import net.iotku.subdonic.subsonic.SearchService;
 
 
 @Component
@@ -33,13 +36,25 @@ public class Bot {
     private static final int MAX_RETRY = 5; // Most times we should attempt to repeat a network action
     private static final Logger logger = LoggerFactory.getLogger(Bot.class);
     private final Commands commands;
+    private final SlashCommands slashCommands;
 
     private static GatewayDiscordClient client;
     private Long ownerId; // The owner of the bot according to Discord
     private final String DISCORD_TOKEN;
 
-    public Bot(@Value("${discord.token}") String token) {
-        this.commands = new Commands(this);
+    public Bot(@Value("${discord.token}") String token, SearchService searchService,
+               SubsonicAudioSourceManager subsonicSource, TrackPreloader preloader, TrackTemplateCache trackCache,
+               TrackLoadScheduler loadScheduler,
+               @Value("${audio.passthrough:false}") boolean passthrough,
+               @Value("${audio.queue.load-ahead:3}") int queueLoadAhead) {
+        GuildAudioManager.registerSubsonicSource(subsonicSource);
+        GuildAudioManager.registerPreloader(preloader);
+        GuildAudioManager.registerTrackCache(trackCache);
+        GuildAudioManager.registerLoadScheduler(loadScheduler);
+        GuildAudioManager.setPassthroughByDefault(passthrough);
+        GuildAudioManager.setQueueLoadAhead(queueLoadAhead);
+        this.commands = new Commands(this, searchService);
+        this.slashCommands = new SlashCommands(searchService);
         this.DISCORD_TOKEN = token;
     }
 
@@ -66,6 +81,11 @@ public class Bot {
     private void handleEvents() {
         client.on(ReadyEvent.class).subscribe(event -> logger.info("Discord client is ready"));
 
+        slashCommands.publish(client)
+                .doOnError(e -> logger.warn("Failed to register slash commands: {}", e.getMessage()))
+                .onErrorComplete()
+                .subscribe();
+
         client.on(GuildCreateEvent.class).subscribe(event -> {
             logger.info(event.getGuild().toString());
             try {
@@ -98,7 +118,7 @@ public class Bot {
 
                     String[] cmdArgs = Arrays.copyOfRange(args, 1, args.length);
                     logger.info("Attempting to run command: {}", Arrays.toString(args));
-                    return Optional.ofNullable(Commands.get(args[0].toLowerCase()))
+                    return Optional.ofNullable(commands.get(args[0].toLowerCase()))
                             .map(command -> {
                                 try {
                                     return command.execute(event, cmdArgs);
@@ -108,6 +128,16 @@ public class Bot {
                             })
                             .orElse(Mono.empty()); // TODO: Maybe add some user feedback that the command was not found
                 }).subscribe();
+
+        // Slash commands and their autocomplete, errors are logged so one bad interaction can't end the stream
+        client.on(ChatInputInteractionEvent.class, event -> slashCommands.handle(event)
+                        .doOnError(e -> logger.warn("Slash command {} failed", event.getCommandName(), e))
+                        .onErrorComplete())
+                .subscribe();
+        client.on(ChatInputAutoCompleteEvent.class, event -> slashCommands.autocomplete(event)
+                        .doOnError(e -> logger.debug("Autocomplete for {} failed: {}", event.getCommandName(), e.getMessage()))
+                        .onErrorComplete())
+                .subscribe();
     }
 
     private void fetchOwnerId() {
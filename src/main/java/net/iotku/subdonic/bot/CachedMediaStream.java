@@ -0,0 +1,84 @@
+package net.iotku.subdonic.bot;
+
+import com.sedmelluq.discord.lavaplayer.tools.io.SeekableInputStream;
+import com.sedmelluq.discord.lavaplayer.track.info.AudioTrackInfoProvider;
+import net.iotku.subdonic.subsonic.MediaCache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * A song read back from the media cache, so playback doesn't go to Subsonic for it
+ */
+final class CachedMediaStream extends SeekableInputStream {
+    private final MediaCache.Cached media;
+    private final MediaCache cache;
+    private long position;
+    private long served; // bytes handed to the container, counted as saved on close
+
+    /**
+     * @param media the cached song, closed with this stream
+     * @param cache cache it came from
+     */
+    CachedMediaStream(MediaCache.Cached media, MediaCache cache) {
+        super(media.length(), media.length());
+        this.media = media;
+        this.cache = cache;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) return 0;
+        long remaining = media.length() - position;
+        if (remaining <= 0) return -1;
+        int read = media.channel().read(ByteBuffer.wrap(buffer, offset, (int) Math.min(length, remaining)),
+                media.offset() + position);
+        if (read < 0) throw new IOException("cache file ended early");
+        position += read;
+        served += read;
+        return read;
+    }
+
+    @Override
+    public long skip(long count) {
+        long skipped = Math.max(0, Math.min(count, media.length() - position));
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public long getPosition() {
+        return position;
+    }
+
+    @Override
+    protected void seekHard(long position) {
+        this.position = position;
+    }
+
+    @Override
+    public boolean canSeekHard() {
+        return true;
+    }
+
+    @Override
+    public List<AudioTrackInfoProvider> getTrackInfoProviders() {
+        return List.of();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            media.close();
+        } finally {
+            cache.served(served);
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package net.iotku.subdonic.bot;
 
-import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
 import discord4j.common.util.Snowflake;
 import discord4j.core.event.domain.interaction.ButtonInteractionEvent;
 import discord4j.core.event.domain.message.MessageCreateEvent;
@@ -11,17 +10,18 @@ import discord4j.core.object.entity.Member;
 import discord4j.core.object.entity.PartialMember;
 import discord4j.core.spec.EmbedCreateSpec;
 import discord4j.core.spec.MessageCreateSpec;
-import discord4j.voice.VoiceConnection;
 
 import java.io.IOException;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 import net.iotku.subdonic.api.v1.dto.Song;
-import net.iotku.subdonic.ApiClient.Search;
+import net.iotku.subdonic.subsonic.RandomPool;
+import net.iotku.subdonic.subsonic.SearchPages;
+import net.iotku.subdonic.subsonic.SearchService;
 
 import static net.iotku.subdonic.bot.AudioTrackScheduler.loadTrack;
-import reactor.core.publisher.Flux;
+import static net.iotku.subdonic.bot.AudioTrackScheduler.loadTracks;
+import static net.iotku.subdonic.bot.AudioTrackScheduler.queueSongs;
 import reactor.core.publisher.Mono;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,28 +29,33 @@ import reactor.core.scheduler.Schedulers;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class Commands {
     private static final String DEFAULT_PREFIX = "!";
     private static final Map<Snowflake, String> guildPrefixes = new ConcurrentHashMap<>();
     private static final Logger log = LoggerFactory.getLogger(Commands.class);
-    private static final Map<String, Command> COMMANDS = new HashMap<>();
+    private final Map<String, Command> commands = new HashMap<>();
+    private static final Pattern RANDOM_COUNT = Pattern.compile("\\d{1,3}");
+    private static final Pattern RANDOM_YEARS = Pattern.compile("(\\d{4})(?:-(\\d{4}))?");
+    private final SearchService searchService;
     private final Bot instance;
 
-    public Commands(Bot instance) {
+    public Commands(Bot instance, SearchService searchService) {
         this.instance = instance;
-    }
+        this.searchService = searchService;
 
-    static {
         register("ping", (event, args) -> Objects.requireNonNull(event.getMessage().getChannel().block()).createMessage("Pong!").then());
         register("join", Commands::join);
         register("disconnect", Commands::disconnect);
 
         // Play
-        register("p", Commands::play);
-        register("play", Commands::play);
-        register("add", Commands::play);
+        register("p", this::play);
+        register("play", this::play);
+        register("add", this::play);
 
         // Stop
         register("stop", Commands::stop);
@@ -61,16 +66,27 @@ public class Commands {
         register("s", Commands::skip);
 
         // Random
-        register("r", Commands::random);
-        register("rand", Commands::random);
-        register("random", Commands::random);
+        register("r", this::random);
+        register("rand", this::random);
+        register("random", this::random);
+
+        // Album
+        register("album", this::album);
 
         // View Queue
         register("list", Commands::list);
         register("queue", Commands::list);
+        register("shuffle", Commands::shuffle);
+        register("remove", Commands::remove);
+        register("move", Commands::move);
 
         // Search
-        register("search", Commands::search);
+        register("search", this::search);
+
+        // Playback mode
+        register("passthrough", Commands::passthrough);
+        register("format", Commands::format);
+        register("station", Commands::station);
     }
 
     /**
@@ -94,6 +110,87 @@ public class Commands {
         });
     }
 
+    /**
+     * Show or switch the guild between Opus passthrough and the decoded path, e.g. "!passthrough on"
+     */
+    private static Mono<Void> passthrough(MessageCreateEvent event, String[] args) {
+        MessageCtx ctx = MessageCtx.buildCtx(event);
+        if (ctx.guildId() == null) return Mono.empty(); // do nothing in DMs
+
+        GuildAudioManager manager = GuildAudioManager.of(ctx.guildId());
+        String reply;
+        if (args.length == 1 && (args[0].equalsIgnoreCase("on") || args[0].equalsIgnoreCase("off"))) {
+            manager.setPassthrough(args[0].equalsIgnoreCase("on"));
+            reply = "Passthrough " + (manager.isPassthrough() ? "on" : "off") + ", for songs queued from now on.";
+        } else {
+            reply = "Passthrough is " + (manager.isPassthrough() ? "on" : "off") + ". Use !passthrough on|off to change it.";
+        }
+        return event.getMessage().getChannel()
+                .flatMap(ch -> ch.createMessage(reply))
+                .then();
+    }
+
+    /**
+     * Show or pin the format and bitrate the guild's songs stream in, e.g. "!format opus 96" or "!format auto"
+     */
+    private static Mono<Void> format(MessageCreateEvent event, String[] args) {
+        MessageCtx ctx = MessageCtx.buildCtx(event);
+        if (ctx.guildId() == null) return Mono.empty(); // do nothing in DMs
+
+        GuildAudioManager manager = GuildAudioManager.of(ctx.guildId());
+        String reply;
+        try {
+            if (args.length == 0 || args.length > 2) throw new IllegalArgumentException();
+            FormatSelector.StreamPreference preference = new FormatSelector.StreamPreference(
+                    args[0].equalsIgnoreCase("auto") ? null : SubsonicAudioSourceManager.Format.parse(args[0]),
+                    args.length == 2 ? Integer.parseInt(args[1]) : 0);
+            if (preference.maxBitRate() < 0) throw new IllegalArgumentException();
+            manager.setStreamPreference(preference);
+            reply = "Streaming " + describe(preference) + ", for songs queued from now on.";
+        } catch (IllegalArgumentException e) { // NumberFormatException included
+            reply = "Streaming " + describe(manager.getStreamPreference())
+                    + ". Use !format auto|flac|opus|mp3 [kbps] to change it.";
+        }
+        String message = reply;
+        return event.getMessage().getChannel()
+                .flatMap(ch -> ch.createMessage(message))
+                .then();
+    }
+
+    /**
+     * Listen to a shared station, or go back to the guild's own queue, e.g. "!station lofi" or "!station off".
+     * While listening, queue commands act on the station's queue.
+     */
+    private static Mono<Void> station(MessageCreateEvent event, String[] args) {
+        MessageCtx ctx = MessageCtx.buildCtx(event);
+        if (ctx.guildId() == null) return Mono.empty(); // do nothing in DMs
+
+        GuildAudioManager manager = GuildAudioManager.of(ctx.guildId());
+        manager.setLastTextChannel(ctx.channelId());
+        Mono<Void> tuned;
+        String reply;
+        if (args.length == 1 && args[0].equalsIgnoreCase("off")) {
+            tuned = manager.tune(null);
+            reply = "Back to this server's own queue.";
+        } else if (args.length == 1) {
+            Station station = Station.of(args[0]);
+            tuned = manager.tune(station);
+            reply = "Listening to station " + station.getName() + ", !play adds to its queue.";
+        } else {
+            tuned = Mono.empty();
+            reply = manager.getStation().map(station -> "Listening to station " + station.getName() + ".")
+                    .orElse("Playing this server's own queue.") + " Use !station <name>|off to change it.";
+        }
+        return tuned.then(event.getMessage().getChannel()
+                .flatMap(ch -> ch.createMessage(reply)))
+                .then();
+    }
+
+    private static String describe(FormatSelector.StreamPreference preference) {
+        String format = preference.format() == null ? "auto" : preference.format().subsonicName();
+        return preference.maxBitRate() > 0 ? format + " at up to " + preference.maxBitRate() + " kbps" : format;
+    }
+
     private static Mono<Void> skip (MessageCreateEvent event, String[] args) {
         MessageCtx ctx = MessageCtx.buildCtx(event);
         if (ctx.guildId() == null) return Mono.empty(); // Do nothing in DMs
@@ -140,8 +237,7 @@ public class Commands {
             GuildAudioManager manager = GuildAudioManager.of(ctx.guildId());
 
             manager.setLastTextChannel(ctx.channelId());
-            return Mono.justOrEmpty(manager.getConnection())
-                    .flatMap(VoiceConnection::disconnect)
+            return manager.disconnect()
                     .then(event.getMessage()
                             .getChannel()
                             .flatMap(ch -> ch.createMessage("Disconnected from voice channel.")))
@@ -149,7 +245,7 @@ public class Commands {
         });
     }
 
-    private static Mono<Void> play (MessageCreateEvent event, String[] args) {
+    private Mono<Void> play (MessageCreateEvent event, String[] args) {
         MessageCtx ctx = MessageCtx.buildCtx(event);
         if (ctx.guildId() == null) return Mono.empty(); // do nothing in DMs
 
@@ -180,7 +276,7 @@ public class Commands {
             if (searchNum > 0 && lastSearchResults.containsKey(searchNum)) {
                 // get song by id
                 final int finalSearchNum = searchNum;
-                return Mono.fromCallable(() -> loadTrack(lastSearchResults.get(finalSearchNum), ctx.guildId()))
+                return Mono.fromCallable(() -> queue(searchService, lastSearchResults.get(finalSearchNum), ctx.guildId()))
                         .subscribeOn(Schedulers.boundedElastic())
                         .then();
             } else if (searchNum > 0) {
@@ -194,10 +290,10 @@ public class Commands {
             // Set lastTextChannel so we know where to put now playing messages
             GuildAudioManager.of(ctx.guildId()).setLastTextChannel(ctx.channelId());
 
-            return Mono.fromCallable(() -> Search.search3(ctx, query)).subscribeOn(Schedulers.boundedElastic())
+            return Mono.fromCallable(() -> search(ctx, query)).subscribeOn(Schedulers.boundedElastic())
                     .flatMap(songs -> songs.stream().findFirst()
                             .map(firstSong ->
-                                    Mono.fromCallable(() -> loadTrack(firstSong, ctx.guildId()))
+                                    Mono.fromCallable(() -> queue(searchService, firstSong, ctx.guildId()))
                                             .subscribeOn(Schedulers.boundedElastic())
                                             .then()
                             )
@@ -208,7 +304,7 @@ public class Commands {
         });
     }
 
-    private static Mono<Void> random (MessageCreateEvent event, String[] args) {
+    private Mono<Void> random (MessageCreateEvent event, String[] args) {
         MessageCtx context = MessageCtx.buildCtx(event);
         if (context.guildId() == null) return Mono.empty(); // do nothing in DMs
         // TODO: In the future, consider adding a cooldown to avoid abuse
@@ -216,12 +312,23 @@ public class Commands {
         return ensureSameChannelOrJoin(event).flatMap(sameChannel -> {
             if (!sameChannel) return Mono.empty(); // Must be in the same voice channel as the bot
 
+            // !random [count] [year or year-year] [genre], e.g. !random 3 1990-1999 Rock
             int count = 1;
-            if (args.length == 1) {
-                try {
-                    count = Integer.parseInt(args[0]);
-                } catch (NumberFormatException ignored) {} // just do nothing, invalid number
+            Integer fromYear = null;
+            Integer toYear = null;
+            List<String> genre = new ArrayList<>();
+            for (String arg : args) {
+                Matcher years = RANDOM_YEARS.matcher(arg);
+                if (years.matches()) {
+                    fromYear = Integer.parseInt(years.group(1));
+                    toYear = years.group(2) != null ? Integer.parseInt(years.group(2)) : fromYear;
+                } else if (genre.isEmpty() && RANDOM_COUNT.matcher(arg).matches()) {
+                    count = Integer.parseInt(arg);
+                } else {
+                    genre.add(arg);
+                }
             }
+            RandomPool.Filter filter = new RandomPool.Filter(genre.isEmpty() ? null : String.join(" ", genre), fromYear, toYear);
 
             // Avoid pointless !rand 0 or potential underflow
             if (count < 1) {
@@ -237,33 +344,74 @@ public class Commands {
             GuildAudioManager.of(context.guildId()).setLastTextChannel(context.channelId());
 
             int finalCount = count;
-            return Mono.fromCallable(() -> Search.random(context, 10)) // we request 10 results, but limit to count
+            PlayHistory history = GuildAudioManager.of(context.guildId()).getPlayHistory();
+            // Served from the pool, skipping anything this guild queued recently
+            return Mono.fromCallable(() -> searchService.random(filter, finalCount, song -> history.contains(song.id())))
                     .subscribeOn(Schedulers.boundedElastic())
+                    .doOnNext(songs -> log.info("{} | {} random songs found. Requested {} ({})", context, songs.size(), finalCount, filter.label()))
                     .flatMapMany(songs -> {
-                        Stream<Song> stream = songs.stream();
-                        stream = stream.limit(finalCount);
-                        return Flux.fromStream(stream)
-                                .flatMap(song ->
-                                        Mono.fromCallable(() -> loadTrack(song, context.guildId()))
-                                                .subscribeOn(Schedulers.boundedElastic())
-                                                .then()
-                                );
+                        if (songs.isEmpty()) {
+                            return event.getMessage().getChannel()
+                                    .flatMap(ch -> ch.createMessage("No random tracks found for " + filter.label()))
+                                    .then();
+                        }
+                        // Loaded in parallel, queued in the order they were picked, reported once
+                        return Mono.fromRunnable(() -> loadTracks(songs, context.guildId()));
                     })
                     .then();
         });
     }
 
-    private static Mono<Void> search (MessageCreateEvent event, String[] args) throws IOException, InterruptedException { // TODO: SHOULD we set last text channel for this?
+    /**
+     * Queue the whole album of the best match for a query, e.g. "!album lemon demon spirit phone".
+     * The songs are queued as they are and loaded shortly before they play, so long albums queue instantly.
+     */
+    private Mono<Void> album(MessageCreateEvent event, String[] args) {
+        MessageCtx ctx = MessageCtx.buildCtx(event);
+        if (ctx.guildId() == null) return Mono.empty(); // do nothing in DMs
+
+        String query = String.join(" ", args);
+        if (query.isBlank() || queryTooLong(ctx, query)) return Mono.empty();
+
+        return ensureSameChannelOrJoin(event).flatMap(sameChannel -> {
+            if (!sameChannel) return Mono.empty(); // must be in same channel
+
+            // Set lastTextChannel so we know where to put now playing messages
+            GuildAudioManager.of(ctx.guildId()).setLastTextChannel(ctx.channelId());
+
+            return Mono.fromCallable(() -> searchService.album(query))
+                    .subscribeOn(Schedulers.boundedElastic())
+                    .flatMap(songs -> {
+                        log.info("{} | {} album songs found for {}", ctx, songs.size(), query);
+                        String reply;
+                        if (songs.isEmpty()) {
+                            reply = "No album found for " + query;
+                        } else {
+                            queueSongs(songs, ctx.guildId());
+                            Song first = songs.getFirst();
+                            reply = "Added " + songs.size() + (songs.size() == 1 ? " track" : " tracks")
+                                    + " from " + first.album() + " by " + first.artist() + ".";
+                        }
+                        return event.getMessage().getChannel()
+                                .flatMap(ch -> ch.createMessage(reply))
+                                .then();
+                    });
+        });
+    }
+
+    private Mono<Void> search (MessageCreateEvent event, String[] args) throws IOException, InterruptedException { // TODO: SHOULD we set last text channel for this?
         MessageCtx ctx = MessageCtx.buildCtx(event);
         if (ctx.guildId() == null) return Mono.empty(); // do nothing in DMs
 
         String query = String.join(" ", args);
         if (queryTooLong(ctx, query)) return Mono.empty();
 
-        // Generate search results
-        List<Song> results = Search.search3(ctx, query);
+        // Only the first page is fetched now, later pages are fetched when Next is pressed
+        SearchPages pages = searchService.searchPages(query);
+        List<Song> firstPage = pages.page(0);
+        log.info("({}:{}) {}: {} results on the first page for search {}", ctx.guildId().asLong(), ctx.channelId().asLong(), ctx.memberId().asLong(), firstPage.size(), query);
 
-        if (results.isEmpty()) {
+        if (firstPage.isEmpty()) {
             EmbedCreateSpec noResults = EmbedCreateSpec.builder()
                     .title("Search results for: " + query)
                     .description("No results found.")
@@ -276,44 +424,15 @@ public class Commands {
                     .then();
         }
 
-        // Limit to 5 Pages
-        List<List<Song>> pages = new ArrayList<>();
-        for (int i = 0; i < results.size(); i += 5) {
-            pages.add(results.subList(i, Math.min(i + 5, results.size())));
-        }
-
         HashMap<Integer, Song> lastSearchResults = GuildAudioManager.of(ctx.guildId()).getLastSearchResults();
         lastSearchResults.clear();
-        AtomicInteger counter = new AtomicInteger(1);
-
-        List<EmbedCreateSpec> embeds = new ArrayList<>();
-        for (int i = 0; i < pages.size(); i++) {
-            List<Song> page = pages.get(i);
-            String desc = page.stream()
-                    .map(s -> {
-                        int num = counter.getAndIncrement();   // grab & increment
-                        lastSearchResults.put(num, s);    // save mapping
-                        return num + ". " + s.artist() + " - " + s.title() + " (" + s.album() + ")";
-                    })
-                    .collect(Collectors.joining("\n"));
-
-            embeds.add(EmbedCreateSpec.builder()
-                    .title("Search results for: " + query)
-                    .description(desc)
-                    .footer("Page " + (i + 1) + " of " + pages.size(), null)
-                    .build());
-        }
-
         AtomicInteger currentPage = new AtomicInteger(0);
 
         // Send first page with buttons
         return event.getMessage().getChannel()
                 .flatMap(channel -> channel.createMessage(MessageCreateSpec.builder()
-                        .addEmbed(embeds.getFirst())
-                        .addComponent(ActionRow.of(
-                                Button.secondary("search_prev", "Prev").disabled(true),
-                                Button.secondary("search_next", "Next").disabled(embeds.size() <= 1)
-                        ))
+                        .addEmbed(searchPageEmbed(pages, 0, lastSearchResults))
+                        .addComponent(searchPageButtons(pages, 0))
                         .build()))
                 .flatMap(message ->
                         message.getClient().on(ButtonInteractionEvent.class)
@@ -323,27 +442,147 @@ public class Commands {
                                         .orElse(false))
                                 .flatMap(e -> {
                                     int page = currentPage.get();
+                                    int target;
                                     if (e.getCustomId().equals("search_prev") && page > 0) {
-                                        page--;
-                                        currentPage.set(page);
-                                    } else if (e.getCustomId().equals("search_next") && page < embeds.size() - 1) {
-                                        page++;
-                                        currentPage.set(page);
+                                        target = page - 1;
+                                    } else if (e.getCustomId().equals("search_next") && pages.mayHavePage(page + 1)) {
+                                        target = page + 1;
                                     } else {
                                         return e.reply().withEphemeral(true).withContent("No more pages.");
                                     }
 
-                                    Button prevButton = Button.secondary("search_prev", "Prev").disabled(page == 0);
-                                    Button nextButton = Button.secondary("search_next", "Next").disabled(page == embeds.size() - 1);
+                                    if (pages.isLoaded(target)) {
+                                        currentPage.set(target);
+                                        return e.edit()
+                                                .withEmbeds(searchPageEmbed(pages, target, lastSearchResults))
+                                                .withComponents(searchPageButtons(pages, target));
+                                    }
 
-                                    return e.edit()
-                                            .withEmbeds(embeds.get(page))
-                                            .withComponents(ActionRow.of(prevButton, nextButton));
+                                    // Fetching from Subsonic can outlast the interaction deadline, acknowledge first
+                                    return e.deferEdit()
+                                            .then(Mono.fromCallable(() -> pages.page(target)).subscribeOn(Schedulers.boundedElastic()))
+                                            .flatMap(songs -> {
+                                                if (songs.isEmpty()) { // previous page was the last one after all
+                                                    return e.editReply().withComponents(searchPageButtons(pages, page)).then();
+                                                }
+                                                currentPage.set(target);
+                                                return e.editReply()
+                                                        .withEmbeds(searchPageEmbed(pages, target, lastSearchResults))
+                                                        .withComponents(searchPageButtons(pages, target))
+                                                        .then();
+                                            })
+                                            .onErrorResume(err -> {
+                                                log.warn("{}: couldn't load page {} of search {}: {}", ctx, target + 1, query, err.getMessage());
+                                                return e.createFollowup("Couldn't load more results, try again later.")
+                                                        .withEphemeral(true)
+                                                        .then();
+                                            });
                                 })
                                 .then()
                 );
     }
 
+    /**
+     * Render a loaded search page, numbering results across pages so {@code !play <number>} can pick them
+     * @param pages the search session
+     * @param index zero based page number, must already be loaded
+     * @param lastSearchResults the guild's result numbers to update
+     * @return the page's embed
+     */
+    private static EmbedCreateSpec searchPageEmbed(SearchPages pages, int index, HashMap<Integer, Song> lastSearchResults) {
+        List<Song> page = pages.page(index);
+        int first = index * pages.pageSize() + 1;
+        StringBuilder desc = new StringBuilder();
+        for (int i = 0; i < page.size(); i++) {
+            Song s = page.get(i);
+            lastSearchResults.put(first + i, s); // save mapping
+            if (i > 0) desc.append('\n');
+            desc.append(first + i).append(". ").append(s.artist()).append(" - ").append(s.title()).append(" (").append(s.album()).append(")");
+        }
+
+        OptionalInt pageCount = pages.pageCount();
+        return EmbedCreateSpec.builder()
+                .title("Search results for: " + pages.query())
+                .description(desc.toString())
+                .footer("Page " + (index + 1) + (pageCount.isPresent() ? " of " + pageCount.getAsInt() : ""), null)
+                .build();
+    }
+
+    private static ActionRow searchPageButtons(SearchPages pages, int index) {
+        return ActionRow.of(
+                Button.secondary("search_prev", "Prev").disabled(index == 0),
+                Button.secondary("search_next", "Next").disabled(!pages.mayHavePage(index + 1)));
+    }
+
+    /**
+     * Shuffle the guild's queue
+     */
+    private static Mono<Void> shuffle(MessageCreateEvent event, String[] args) {
+        MessageCtx ctx = MessageCtx.buildCtx(event);
+        if (ctx.guildId() == null) return Mono.empty(); // do nothing in DMs
+
+        return ensureSameChannelOrJoin(event).flatMap(sameChannel -> {
+            if (!sameChannel) return Mono.empty(); // must be in same channel
+
+            AudioTrackScheduler scheduler = GuildAudioManager.of(ctx.guildId()).getScheduler();
+            scheduler.shuffle(ThreadLocalRandom.current());
+            return event.getMessage().getChannel()
+                    .flatMap(ch -> ch.createMessage("Shuffled " + scheduler.getQueue().size() + " tracks."))
+                    .then();
+        });
+    }
+
+    /**
+     * Remove a track from the queue by its !list number, e.g. "!remove 3"
+     */
+    private static Mono<Void> remove(MessageCreateEvent event, String[] args) {
+        MessageCtx ctx = MessageCtx.buildCtx(event);
+        if (ctx.guildId() == null) return Mono.empty(); // do nothing in DMs
+
+        return ensureSameChannelOrJoin(event).flatMap(sameChannel -> {
+            if (!sameChannel) return Mono.empty(); // must be in same channel
+
+            AudioTrackScheduler scheduler = GuildAudioManager.of(ctx.guildId()).getScheduler();
+            String reply;
+            try {
+                Song song = scheduler.remove(Integer.parseInt(args[0]) - 1).song();
+                reply = "Removed: " + song.artist() + " - " + song.title();
+            } catch (IndexOutOfBoundsException | NumberFormatException e) { // also no argument
+                reply = "Use !remove <number> with a number from !list.";
+            }
+            String message = reply;
+            return event.getMessage().getChannel()
+                    .flatMap(ch -> ch.createMessage(message))
+                    .then();
+        });
+    }
+
+    /**
+     * Move a track within the queue by !list numbers, e.g. "!move 5 1" plays the fifth track next
+     */
+    private static Mono<Void> move(MessageCreateEvent event, String[] args) {
+        MessageCtx ctx = MessageCtx.buildCtx(event);
+        if (ctx.guildId() == null) return Mono.empty(); // do nothing in DMs
+
+        return ensureSameChannelOrJoin(event).flatMap(sameChannel -> {
+            if (!sameChannel) return Mono.empty(); // must be in same channel
+
+            AudioTrackScheduler scheduler = GuildAudioManager.of(ctx.guildId()).getScheduler();
+            String reply;
+            try {
+                int to = Integer.parseInt(args[1]);
+                Song song = scheduler.move(Integer.parseInt(args[0]) - 1, to - 1).song(); // the queue may change after
+                reply = "Moved " + song.artist() + " - " + song.title() + " to " + to + ".";
+            } catch (IndexOutOfBoundsException | NumberFormatException e) { // also missing arguments
+                reply = "Use !move <from> <to> with numbers from !list.";
+            }
+            String message = reply;
+            return event.getMessage().getChannel()
+                    .flatMap(ch -> ch.createMessage(message))
+                    .then();
+        });
+    }
+
     private static Mono<Void> list (MessageCreateEvent event, String[] args) { // TODO: do we set last text channel for this?
         MessageCtx ctx = MessageCtx.buildCtx(event);
         if (ctx.guildId() == null) return Mono.empty(); // do nothing in DMs
@@ -351,13 +590,9 @@ public class Commands {
         GuildAudioManager manager = GuildAudioManager.of(ctx.guildId());
 
         // Generate search results
-        Queue<AudioTrack> queue = manager.getScheduler().getQueue();
-        int count = 0;
         List<Song> results = new ArrayList<>();
-        for (AudioTrack item : queue) {
-            results.add((Song) item.getUserData());
-            count++;
-            if (count >= 20) break;
+        for (QueuedTrack item : manager.getScheduler().getQueue().slice(0, 20)) {
+            results.add(item.song());
         }
 
         if (results.isEmpty()) {
@@ -472,7 +707,31 @@ public class Commands {
                 }));
     }
 
-    private static boolean queryTooLong(MessageCtx ctx, String query) {
+    /**
+     * Run a ranked search through the shared SearchService and log usage for the requesting context
+     * @param ctx MessageCtx to track usage
+     * @param query String describing song title / artist
+     * @return ranked List of songs, empty if nothing was found or the search failed
+     */
+    private List<Song> search(MessageCtx ctx, String query) {
+        List<Song> results = searchService.search(query);
+        log.info("({}:{}) {}: {} results found for search {}", ctx.guildId().asLong(), ctx.channelId().asLong(), ctx.memberId().asLong(), results.size(), query);
+        return results;
+    }
+
+    /**
+     * Load a song the user picked into the guild's player and count it towards autocomplete popularity
+     * @param searchService search service counting the play
+     * @param song Song to play
+     * @param guildId Guild whose player should load it
+     * @return the song
+     */
+    static Song queue(SearchService searchService, Song song, Snowflake guildId) {
+        searchService.recordPlay(song);
+        return loadTrack(song, guildId);
+    }
+
+    static boolean queryTooLong(MessageCtx ctx, String query) {
         if (query.length() > 1000) {
             log.warn("Blocked oversized query ({} chars) from user {} in guild {} channel {}",
                     query.length(), ctx.memberId().asLong(), ctx.guildId().asLong(), ctx.channelId().asLong());
@@ -482,12 +741,12 @@ public class Commands {
         return false;
     }
 
-    public static void register(String name, Command command) {
-        COMMANDS.put(name.toLowerCase(), command);
+    public void register(String name, Command command) {
+        commands.put(name.toLowerCase(), command);
     }
 
-    public static Command get(String command) {
-        return COMMANDS.get(command);
+    public Command get(String command) {
+        return commands.get(command);
     }
 
     public boolean isCommand(MessageCreateEvent event) {
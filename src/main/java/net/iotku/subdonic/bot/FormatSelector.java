@@ -0,0 +1,147 @@
+package net.iotku.subdonic.bot;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import net.iotku.subdonic.bot.SubsonicAudioSourceManager.Format;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Decides which format and bitrate each song is streamed from Subsonic in. A guild can pin a format, otherwise
+ * the configured one is used, and in automatic mode songs fall back to bitrate-capped Opus while the process is
+ * busy (CPU above the threshold, or too many songs streaming at once). Opus is the cheapest source for us: it needs
+ * no resampling, and is passed through untouched at full volume, where FLAC and MP3 are decoded, resampled and
+ * encoded again for Discord.
+ */
+@Component
+public class FormatSelector {
+    private final Format format;
+    private final int maxBitRate;
+    private final boolean auto;
+    private final double cpuThreshold;
+    private final int maxStreams;
+    private final int fallbackBitRate;
+    private final DoubleSupplier cpuLoad;
+    private final MeterRegistry registry;
+    private final AtomicInteger activeStreams = new AtomicInteger();
+
+    /**
+     * How a guild wants its songs streamed
+     * @param format pinned format, null to follow the configured format (and automatic fallback)
+     * @param maxBitRate bitrate cap in kbps, 0 for the configured cap
+     */
+    public record StreamPreference(Format format, int maxBitRate) {
+        public static final StreamPreference AUTO = new StreamPreference(null, 0);
+    }
+
+    /**
+     * Why a format was picked, tagged on the selection metric
+     */
+    public enum Reason {
+        GUILD, CONFIGURED, CPU, STREAMS;
+
+        String tag() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /**
+     * The format a song is streamed in
+     * @param format format Subsonic transcodes to
+     * @param maxBitRate bitrate cap in kbps, 0 for none
+     * @param reason why it was picked
+     */
+    public record Selection(Format format, int maxBitRate, Reason reason) {
+        /**
+         * @return format and bitrate, e.g. "opus@128", for cache keys and logs
+         */
+        public String label() {
+            return maxBitRate > 0 ? format.subsonicName() + "@" + maxBitRate : format.subsonicName();
+        }
+    }
+
+    @Autowired
+    public FormatSelector(@Value("${subsonic.stream.format:flac}") String format,
+                          @Value("${subsonic.stream.max-bitrate:0}") int maxBitRate,
+                          @Value("${subsonic.stream.auto.enabled:true}") boolean auto,
+                          @Value("${subsonic.stream.auto.cpu-threshold:0.75}") double cpuThreshold,
+                          @Value("${subsonic.stream.auto.max-streams:8}") int maxStreams,
+                          @Value("${subsonic.stream.auto.fallback-bitrate:128}") int fallbackBitRate,
+                          MeterRegistry registry) {
+        this(Format.parse(format), maxBitRate, auto, cpuThreshold, maxStreams, fallbackBitRate,
+                FormatSelector::processCpuLoad, registry);
+    }
+
+    FormatSelector(Format format, int maxBitRate, boolean auto, double cpuThreshold, int maxStreams, int fallbackBitRate,
+                   DoubleSupplier cpuLoad, MeterRegistry registry) {
+        this.format = format;
+        this.maxBitRate = maxBitRate;
+        this.auto = auto;
+        this.cpuThreshold = cpuThreshold;
+        this.maxStreams = maxStreams;
+        this.fallbackBitRate = fallbackBitRate;
+        this.cpuLoad = cpuLoad;
+        this.registry = registry;
+        Gauge.builder("audio.stream.active", activeStreams, AtomicInteger::get)
+                .description("Songs currently streaming from Subsonic")
+                .register(registry);
+    }
+
+    /**
+     * @param format the format every song is streamed in, never falls back
+     * @return a selector without automatic fallback or metrics
+     */
+    static FormatSelector fixed(Format format) {
+        return new FormatSelector(format, 0, false, 1, Integer.MAX_VALUE, 0, () -> 0, new CompositeMeterRegistry());
+    }
+
+    /**
+     * @param preference the guild's preference
+     * @return the format to stream a song in right now
+     */
+    public Selection select(StreamPreference preference) {
+        int bitRate = preference.maxBitRate() > 0 ? preference.maxBitRate() : maxBitRate;
+        if (preference.format() != null) return new Selection(preference.format(), bitRate, Reason.GUILD);
+        boolean alreadyCheap = format == Format.OPUS && bitRate > 0 && bitRate <= fallbackBitRate;
+        if (auto && !alreadyCheap) {
+            int fallback = bitRate > 0 ? Math.min(bitRate, fallbackBitRate) : fallbackBitRate;
+            if (cpuLoad.getAsDouble() >= cpuThreshold) return new Selection(Format.OPUS, fallback, Reason.CPU);
+            if (activeStreams.get() >= maxStreams) return new Selection(Format.OPUS, fallback, Reason.STREAMS);
+        }
+        return new Selection(format, bitRate, Reason.CONFIGURED);
+    }
+
+    /**
+     * Count a song that started streaming in a selected format
+     * @param selection what it streams in
+     */
+    void streamStarted(Selection selection) {
+        activeStreams.incrementAndGet();
+        Counter.builder("audio.stream.selections")
+                .description("Songs started, by the format they stream in and why it was picked")
+                .tag("format", selection.format().subsonicName())
+                .tag("reason", selection.reason().tag())
+                .register(registry)
+                .increment();
+    }
+
+    void streamEnded() {
+        activeStreams.decrementAndGet();
+    }
+
+    private static double processCpuLoad() {
+        if (ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean os) {
+            double load = os.getProcessCpuLoad(); // negative until the JVM has a sample
+            return load < 0 ? 0 : load;
+        }
+        return 0;
+    }
+}
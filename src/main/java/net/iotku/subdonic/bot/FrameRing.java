@@ -0,0 +1,72 @@
+package net.iotku.subdonic.bot;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Fixed-size ring of encoded frames, written by one producer and read by any number of readers, each at its own
+ * sequence number. The writer never waits for readers: readers copy optimistically and retry if the slot was
+ * overwritten under them, and a reader that fell further behind than the ring holds skips to the newest frame.
+ */
+final class FrameRing {
+    private final byte[][] slots;
+    private final int[] lengths;
+    private final StampedLock lock = new StampedLock(); // only ever write-locked, readers validate optimistic stamps
+    private volatile long head; // sequence number of the next frame written
+
+    /**
+     * @param capacity how many frames readers can fall behind before skipping
+     * @param maxFrameSize largest frame written, in bytes
+     */
+    FrameRing(int capacity, int maxFrameSize) {
+        slots = new byte[capacity][maxFrameSize];
+        lengths = new int[capacity];
+    }
+
+    /**
+     * @return sequence number the next written frame gets
+     */
+    long head() {
+        return head;
+    }
+
+    /**
+     * @param frame frame between position and limit, left unread
+     */
+    void write(ByteBuffer frame) {
+        long stamp = lock.writeLock();
+        try {
+            int slot = (int) (head % slots.length);
+            int length = Math.min(frame.remaining(), slots[slot].length);
+            frame.duplicate().get(slots[slot], 0, length);
+            lengths[slot] = length;
+            head++;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Copy a frame into a buffer, flipped and ready to send
+     * @param sequence the frame wanted
+     * @param into buffer to fill, at least as large as the largest frame
+     * @return sequence number of the frame copied, newer than asked for if it was already overwritten,
+     *         or -1 if it hasn't been written yet
+     */
+    long read(long sequence, ByteBuffer into) {
+        while (true) {
+            long stamp = lock.tryOptimisticRead();
+            long written = head;
+            if (sequence >= written) return -1;
+            long copied = written - sequence > slots.length ? written - 1 : sequence;
+            int slot = (int) (copied % slots.length);
+            int length = Math.min(lengths[slot], Math.min(slots[slot].length, into.capacity())); // may be torn, validated below
+            into.clear();
+            into.put(slots[slot], 0, length);
+            if (lock.validate(stamp)) {
+                into.flip();
+                return copied;
+            }
+        }
+    }
+}
@@ -4,6 +4,7 @@ import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
 import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
 import com.sedmelluq.discord.lavaplayer.player.DefaultAudioPlayerManager;
 import com.sedmelluq.discord.lavaplayer.source.AudioSourceManagers;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
 import com.sedmelluq.discord.lavaplayer.track.playback.NonAllocatingAudioFrameBuffer;
 import discord4j.common.util.Snowflake;
 import discord4j.core.event.domain.VoiceStateUpdateEvent;
@@ -12,6 +13,7 @@ import discord4j.core.object.entity.Guild;
 import discord4j.core.object.entity.channel.*;
 import discord4j.core.spec.AudioChannelJoinSpec;
 import discord4j.core.spec.EmbedCreateSpec;
+import discord4j.voice.AudioProvider;
 import discord4j.voice.VoiceConnection;
 import net.iotku.subdonic.api.v1.dto.Song;
 import org.slf4j.Logger;
@@ -32,6 +34,12 @@ import java.util.concurrent.atomic.AtomicReference;
 
 public class GuildAudioManager {
     private static final AudioPlayerManager PLAYER_MANAGER;
+    private static volatile TrackPreloader preloader; // null until the bot registers one
+    private static volatile TrackTemplateCache trackCache; // null until the bot registers one
+    private static volatile TrackLoadScheduler loadScheduler; // null until the bot registers one
+    private static volatile boolean passthroughByDefault;
+    private static volatile int queueLoadAhead = AudioTrackScheduler.DEFAULT_LOAD_AHEAD;
+    static final int DEFAULT_VOLUME = 45; // for the decoded path, passthrough plays at 100
     private final AudioPlayer player;
     private final AudioTrackScheduler scheduler;
     private final LavaPlayerAudioProvider provider;
@@ -40,6 +48,10 @@ public class GuildAudioManager {
     private Snowflake lastTextChannel; // store last channel a command came from
     private Snowflake preferredTextChannel; // e.g. a bot-only channel
     private final HashMap<Integer, Song> lastSearchResults = new HashMap<>();
+    private final PlayHistory playHistory = new PlayHistory(); // recently queued songs, for !random
+    private volatile boolean passthrough; // stream Opus and send Subsonic's packets as they are
+    private volatile FormatSelector.StreamPreference streamPreference = FormatSelector.StreamPreference.AUTO;
+    private volatile StationAudioProvider stationProvider; // set while the guild listens to a station
     private static final Logger log = LoggerFactory.getLogger(GuildAudioManager.class);
 
     static {
@@ -52,6 +64,84 @@ public class GuildAudioManager {
                 .setFrameBufferFactory(NonAllocatingAudioFrameBuffer::new);
     }
 
+    /**
+     * Let the shared player manager load {@code subsonic:<id>} tracks, only the first registration sticks
+     * @param source source manager backed by our Subsonic client
+     */
+    static void registerSubsonicSource(SubsonicAudioSourceManager source) {
+        synchronized (PLAYER_MANAGER) {
+            if (PLAYER_MANAGER.source(SubsonicAudioSourceManager.class) == null) {
+                PLAYER_MANAGER.registerSourceManager(source);
+            }
+        }
+    }
+
+    /**
+     * Preload upcoming tracks in every guild created from now on
+     * @param trackPreloader preloader backed by the application's settings and metrics
+     */
+    static void registerPreloader(TrackPreloader trackPreloader) {
+        preloader = trackPreloader;
+    }
+
+    /**
+     * Load songs every guild asked for before as clones of the first load
+     * @param templates track cache backed by the application's settings and metrics
+     */
+    static void registerTrackCache(TrackTemplateCache templates) {
+        trackCache = templates;
+    }
+
+    /**
+     * @return the track cache loads go through, null if there is none
+     */
+    static TrackTemplateCache getTrackCache() {
+        return trackCache;
+    }
+
+    /**
+     * Share track loading fairly between guilds
+     * @param scheduler load scheduler backed by the application's settings and metrics
+     */
+    static void registerLoadScheduler(TrackLoadScheduler scheduler) {
+        loadScheduler = scheduler;
+    }
+
+    /**
+     * @return the scheduler loads are queued on, null if there is none
+     */
+    static TrackLoadScheduler getLoadScheduler() {
+        return loadScheduler;
+    }
+
+    /**
+     * @return the preloader guilds and stations use, null if there is none
+     */
+    static TrackPreloader getPreloader() {
+        return preloader;
+    }
+
+    /**
+     * @param enabled whether guilds created from now on start in passthrough mode
+     */
+    static void setPassthroughByDefault(boolean enabled) {
+        passthroughByDefault = enabled;
+    }
+
+    /**
+     * @param songs how many songs at the front of a queue created from now on are kept loaded
+     */
+    static void setQueueLoadAhead(int songs) {
+        queueLoadAhead = songs;
+    }
+
+    /**
+     * @return how many songs at the front of a queue are kept loaded
+     */
+    static int getQueueLoadAhead() {
+        return queueLoadAhead;
+    }
+
     private static final Map<Snowflake, GuildAudioManager> MANAGERS = new ConcurrentHashMap<>();
 
     public static GuildAudioManager of(Snowflake id) {
@@ -60,10 +150,13 @@ public class GuildAudioManager {
 
     private GuildAudioManager(Snowflake guildId) {
         player = PLAYER_MANAGER.createPlayer();
-        player.setVolume(45);
+        player.setVolume(DEFAULT_VOLUME);
+        passthrough = passthroughByDefault;
 
         // Build scheduler
-        scheduler = new AudioTrackScheduler(player);
+        scheduler = new AudioTrackScheduler(player, preloader, queueLoadAhead,
+                (song, handler) -> AudioTrackScheduler.load(song, handler, guildId));
+        scheduler.setVolume(GuildAudioManager::volumeFor);
         // Attach the scheduler to the player
         player.addListener(scheduler);
         // Attach the consumer that runs when playback starts
@@ -79,7 +172,7 @@ public class GuildAudioManager {
                     .subscribe();
         });
 
-        provider = new LavaPlayerAudioProvider(player);
+        provider = new LavaPlayerAudioProvider(player, scheduler);
 
         this.guildId = guildId;
     }
@@ -201,7 +294,7 @@ public class GuildAudioManager {
                                         Disposable timer = Mono.delay(Duration.ofSeconds(10))
                                                 .flatMap(t -> isAlone(channel))
                                                 .filter(Boolean::booleanValue)
-                                                .flatMap(t -> conn.disconnect())
+                                                .flatMap(t -> disconnect(conn))
                                                 .subscribe();
                                         pendingDisconnect.set(timer);
                                     }
@@ -218,19 +311,95 @@ public class GuildAudioManager {
                 });
     }
 
+    /**
+     * Leave the voice channel, and stop listening to any station so it no longer messages this guild.
+     * @return a {@code Mono} that completes once disconnected
+     */
+    public Mono<Void> disconnect() {
+        VoiceConnection connection = voiceConnection;
+        return connection != null ? disconnect(connection) : Mono.fromRunnable(this::leaveStation);
+    }
+
+    // NOTE: tune() reconnects with connection.disconnect() directly, as the guild keeps its station there
+    private Mono<Void> disconnect(VoiceConnection connection) {
+        return connection.disconnect().then(Mono.fromRunnable(this::leaveStation));
+    }
+
+    private void leaveStation() {
+        StationAudioProvider previous = stationProvider;
+        stationProvider = null;
+        if (previous != null) previous.getStation().unsubscribe(this);
+    }
+
+    /**
+     * Listen to a station instead of this guild's own player, or go back to it. Reconnects to the current voice
+     * channel when connected, so the connection picks up the new provider.
+     * NOTE: The guild's own track is left where it was, and carries on once the guild stops listening
+     * @param station station to listen to, null for the guild's own player
+     * @return a {@code Mono} that completes once the guild is reconnected
+     */
+    public Mono<Void> tune(Station station) {
+        StationAudioProvider previous = stationProvider;
+        if (previous != null && previous.getStation() == station) return Mono.empty();
+        if (previous != null) previous.getStation().unsubscribe(this);
+        stationProvider = station != null ? station.subscribe(this) : null;
+
+        VoiceConnection connection = voiceConnection;
+        if (connection == null) return Mono.empty();
+        return connection.getChannelId()
+                .flatMap(id -> Bot.getClient().getChannelById(id).ofType(AudioChannel.class))
+                .flatMap(channel -> connection.disconnect().then(joinAndTrack(channel)))
+                .onErrorResume(e -> {
+                    log.warn("Couldn't reconnect after tuning to {}: {}", station != null ? station.getName() : "own player",
+                            e.getMessage());
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    /**
+     * @return the station this guild listens to, empty when it plays its own queue
+     */
+    public Optional<Station> getStation() {
+        StationAudioProvider listening = stationProvider;
+        return Optional.ofNullable(listening != null ? listening.getStation() : null);
+    }
+
+    /**
+     * @return the key this guild's loads are shared out by, the station while it listens to one, so the songs it
+     *         queues there wait their turn with the station's own loads
+     */
+    Object getLoadKey() {
+        StationAudioProvider listening = stationProvider;
+        return listening != null ? listening.getStation() : guildId;
+    }
+
     // getters
+    /**
+     * @return the player this guild hears, the station's while it listens to one
+     */
     public AudioPlayer getPlayer() {
-        return player;
+        StationAudioProvider listening = stationProvider;
+        return listening != null ? listening.getStation().getPlayer() : player;
     }
-    public LavaPlayerAudioProvider getProvider() {
-        return provider;
+
+    /**
+     * @return the provider this guild's voice connection should use
+     */
+    public AudioProvider getProvider() {
+        StationAudioProvider listening = stationProvider;
+        return listening != null ? listening : provider;
     }
     public static AudioPlayerManager getPlayerManager() {
         return PLAYER_MANAGER;
     }
 
+    /**
+     * @return the queue this guild's commands act on, the station's while it listens to one
+     */
     public AudioTrackScheduler getScheduler() {
-        return scheduler;
+        StationAudioProvider listening = stationProvider;
+        return listening != null ? listening.getStation().getScheduler() : scheduler;
     }
 
     public Optional<VoiceConnection> getConnection() {
@@ -241,9 +410,65 @@ public class GuildAudioManager {
         return lastSearchResults;
     }
 
+    public PlayHistory getPlayHistory() {
+        return playHistory;
+    }
+
+    public boolean isPassthrough() {
+        return passthrough;
+    }
+
+    /**
+     * @return the format and bitrate this guild asked for, regardless of passthrough
+     */
+    public FormatSelector.StreamPreference getStreamPreference() {
+        return streamPreference;
+    }
+
+    /**
+     * @return how this guild's songs should be streamed, passthrough needs Opus whatever the guild picked
+     */
+    FormatSelector.StreamPreference effectiveStreamPreference() {
+        FormatSelector.StreamPreference preference = streamPreference;
+        return passthrough ? new FormatSelector.StreamPreference(SubsonicAudioSourceManager.Format.OPUS, preference.maxBitRate())
+                : preference;
+    }
+
     // Setters
     public void setConnection(VoiceConnection connection) {
         this.voiceConnection = connection;
     }
 
+    /**
+     * Choose between passthrough and the decoded path. Passthrough streams Ogg Opus from Subsonic, which plays at
+     * full volume so LavaPlayer hands Subsonic's Opus packets to Discord without decoding or encoding, and loudness
+     * is whatever Subsonic's transcoding produces. The decoded path streams the guild's format at
+     * {@link #DEFAULT_VOLUME}, see {@link #volumeFor}.
+     * NOTE: Applies to songs queued from now on
+     * @param enabled true for passthrough
+     */
+    public void setPassthrough(boolean enabled) {
+        passthrough = enabled;
+    }
+
+    /**
+     * The volume follows the format each track actually streams in, not the guild's flag, so a song queued before
+     * passthrough was toggled, or one that fell back from Opus, still plays at the right loudness
+     * @param track track about to start
+     * @return 100 for Opus, which LavaPlayer only passes through untouched at full volume, else {@link #DEFAULT_VOLUME}
+     */
+    static int volumeFor(AudioTrack track) {
+        return track instanceof SubsonicAudioTrack subsonic && subsonic.getFormat() == SubsonicAudioSourceManager.Format.OPUS
+                ? 100 : DEFAULT_VOLUME;
+    }
+
+    /**
+     * Pin this guild's songs to a format and bitrate, or go back to the configured format and automatic fallback
+     * NOTE: Applies to songs queued from now on
+     * @param preference the guild's preference, {@link FormatSelector.StreamPreference#AUTO} for the default
+     */
+    public void setStreamPreference(FormatSelector.StreamPreference preference) {
+        this.streamPreference = preference;
+    }
+
 }
\ No newline at end of file
@@ -2,6 +2,7 @@ package net.iotku.subdonic.bot;
 
 import com.sedmelluq.discord.lavaplayer.format.StandardAudioDataFormats;
 import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
 import com.sedmelluq.discord.lavaplayer.track.playback.MutableAudioFrame;
 import discord4j.voice.AudioProvider;
 
@@ -10,16 +11,19 @@ import java.nio.ByteBuffer;
 public class LavaPlayerAudioProvider extends AudioProvider {
 
     private final AudioPlayer player;
+    private final AudioTrackScheduler scheduler;
     private final MutableAudioFrame frame;
+    private final OpusFrameRecorder recorder = new OpusFrameRecorder(); // fills the frame cache on a miss
 
-    public LavaPlayerAudioProvider(AudioPlayer player) {
+    public LavaPlayerAudioProvider(AudioPlayer player, AudioTrackScheduler scheduler) {
         // Allocate a ByteBuffer for Discord4J's AudioProvider to hold audio data for Discord
         super(ByteBuffer.allocate(StandardAudioDataFormats.DISCORD_OPUS.maximumChunkSize()));
         // Set LavaPlayer's AudioFrame to use the same buffer as Discord4J's
         frame = new MutableAudioFrame();
         frame.setBuffer(getBuffer());
         this.player = player;
-        player.setVolume(45);
+        this.scheduler = scheduler;
+        player.addListener(recorder);
     }
 
     @Override
@@ -29,6 +33,9 @@ public class LavaPlayerAudioProvider extends AudioProvider {
 
         if (didProvide) {
             getBuffer().flip();
+            AudioTrack playing = player.getPlayingTrack();
+            recorder.capture(playing, frame.getTimecode(), frame.getVolume(), getBuffer());
+            if (playing != null) scheduler.onFrame(playing, frame.getTimecode());
         }
 
         return didProvide;
@@ -0,0 +1,278 @@
+package net.iotku.subdonic.bot;
+
+import com.sedmelluq.discord.lavaplayer.format.AudioDataFormat;
+import com.sedmelluq.discord.lavaplayer.player.AudioConfiguration;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+/**
+ * Disk cache of finished Discord Opus frames, so a song our guilds replay is sent without decoding or encoding.
+ * Each entry is one file: a header with the cache key and frame count, then length-prefixed Opus frames,
+ * read back through a memory map. Entries are keyed by song and everything that changes the encoded output,
+ * and evicted least recently used first once the cache goes over its byte budget.
+ */
+@Component
+public class OpusFrameCache {
+    private static final Logger log = LoggerFactory.getLogger(OpusFrameCache.class);
+    private static final int MAGIC = 0x534f4631; // "SOF1"
+    private static final String SUFFIX = ".opf";
+    private final Path dir; // null when disabled
+    private final long maxBytes;
+    private final Executor writer;
+    private final LinkedHashMap<String, Long> files = new LinkedHashMap<>(16, 0.75f, true); // file name -> bytes, LRU
+    private long totalBytes;
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter evictions;
+
+    /**
+     * Frames of one cached song, backed by a read-only memory map
+     */
+    public static final class Frames {
+        private final ByteBuffer buffer;
+        private final int[] offsets; // position of each frame's length prefix
+
+        private Frames(ByteBuffer buffer, int[] offsets) {
+            this.buffer = buffer;
+            this.offsets = offsets;
+        }
+
+        public int count() {
+            return offsets.length;
+        }
+
+        /**
+         * @param index frame number, 0 based
+         * @return a copy of the frame's Opus packet
+         */
+        public byte[] frame(int index) {
+            int offset = offsets[index];
+            byte[] data = new byte[buffer.getShort(offset) & 0xffff];
+            buffer.get(offset + 2, data);
+            return data;
+        }
+    }
+
+    @Autowired
+    public OpusFrameCache(@Value("${audio.frame-cache.path:}") String path,
+                          @Value("${audio.frame-cache.max-bytes:1073741824}") long maxBytes,
+                          MeterRegistry registry) {
+        this(path.isBlank() ? null : Path.of(path), maxBytes, registry,
+                Executors.newSingleThreadExecutor(Thread.ofPlatform().daemon().name("opus-cache-writer").factory()));
+    }
+
+    OpusFrameCache(Path dir, long maxBytes, MeterRegistry registry, Executor writer) {
+        this.maxBytes = maxBytes;
+        this.writer = writer;
+        this.hits = Counter.builder("audio.frame-cache.requests").tag("result", "hit").register(registry);
+        this.misses = Counter.builder("audio.frame-cache.requests").tag("result", "miss").register(registry);
+        this.evictions = Counter.builder("audio.frame-cache.evictions").register(registry);
+        Gauge.builder("audio.frame-cache.size", this, OpusFrameCache::sizeBytes).baseUnit("bytes").register(registry);
+        this.dir = dir != null && index(dir) ? dir : null;
+    }
+
+    /**
+     * Pick up entries left by a previous run, oldest use first so they're evicted first
+     * @return false if the directory can't be used, which disables the cache
+     */
+    private boolean index(Path dir) {
+        try {
+            Files.createDirectories(dir);
+            List<Path> entries;
+            try (Stream<Path> listing = Files.list(dir)) {
+                entries = listing.toList();
+            }
+            for (Path tmp : entries) {
+                if (tmp.toString().endsWith(".tmp")) Files.deleteIfExists(tmp); // interrupted write
+            }
+            List<Path> cached = entries.stream()
+                    .filter(p -> p.toString().endsWith(SUFFIX))
+                    .sorted(Comparator.comparing(OpusFrameCache::lastModified))
+                    .toList();
+            synchronized (this) {
+                for (Path file : cached) {
+                    long size = Files.size(file);
+                    files.put(file.getFileName().toString(), size);
+                    totalBytes += size;
+                }
+                evict(dir);
+            }
+            log.info("Opus frame cache at {} holds {} songs ({} bytes)", dir, files.size(), totalBytes);
+            return true;
+        } catch (IOException e) {
+            log.warn("Opus frame cache disabled, can't use {}: {}", dir, e.getMessage());
+            return false;
+        }
+    }
+
+    public boolean isEnabled() {
+        return dir != null;
+    }
+
+    /**
+     * Cache key for a song's encoded frames. Everything that changes the encoder's output is part of it.
+     * @param songId Subsonic song id
+     * @param sourceFormat format Subsonic transcoded to
+     * @param output the player's output format
+     * @param volume player volume the frames were encoded at
+     * @param configuration player configuration, for the encoder and resampler quality
+     * @return cache key
+     */
+    public static String key(String songId, String sourceFormat, AudioDataFormat output, int volume, AudioConfiguration configuration) {
+        return songId + '|' + sourceFormat + '|' + output.codecName() + '/' + output.sampleRate + '/' + output.channelCount
+                + '/' + output.chunkSampleCount + "|v" + volume + "|q" + configuration.getOpusEncodingQuality()
+                + '|' + configuration.getResamplingQuality();
+    }
+
+    /**
+     * @param key from {@link #key}
+     * @return the cached frames, or empty on a miss
+     */
+    public Optional<Frames> open(String key) {
+        if (dir == null) return Optional.empty();
+        String name = fileName(key);
+        synchronized (this) {
+            if (files.get(name) == null) { // get, so a hit also counts as a use
+                misses.increment();
+                return Optional.empty();
+            }
+        }
+
+        Path file = dir.resolve(name);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            Frames frames = read(buffer, key);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis())); // LRU order for the next run
+            hits.increment();
+            return Optional.of(frames);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Dropping unreadable Opus frame cache entry {}: {}", file, e.getMessage());
+            remove(name);
+            misses.increment();
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Write a song's frames in the background, replacing any existing entry
+     * @param key from {@link #key}
+     * @param body frames, each prefixed with its length as an unsigned 16 bit big endian number
+     * @param frameCount how many frames body holds
+     */
+    public void store(String key, byte[] body, int frameCount) {
+        if (dir == null) return;
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(12 + keyBytes.length)
+                .putInt(MAGIC).putInt(keyBytes.length).put(keyBytes).putInt(frameCount).flip();
+        long size = header.remaining() + (long) body.length;
+        if (size > maxBytes) return;
+
+        writer.execute(() -> {
+            String name = fileName(key);
+            Path tmp = dir.resolve(name + ".tmp");
+            try {
+                try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    ByteBuffer[] buffers = {header, ByteBuffer.wrap(body)};
+                    while (buffers[1].hasRemaining()) channel.write(buffers);
+                }
+                Files.move(tmp, dir.resolve(name), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                synchronized (this) {
+                    Long previous = files.put(name, size);
+                    totalBytes += size - (previous != null ? previous : 0);
+                    evict(dir);
+                }
+            } catch (IOException e) {
+                log.warn("Couldn't write Opus frame cache entry {}: {}", name, e.getMessage());
+            }
+        });
+    }
+
+    public synchronized long sizeBytes() {
+        return totalBytes;
+    }
+
+    private synchronized void evict(Path dir) {
+        Iterator<Map.Entry<String, Long>> eldest = files.entrySet().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            eldest.remove();
+            totalBytes -= entry.getValue();
+            evictions.increment();
+            try {
+                Files.deleteIfExists(dir.resolve(entry.getKey())); // open maps stay readable until they're dropped
+            } catch (IOException e) {
+                log.warn("Couldn't delete evicted Opus frame cache entry {}: {}", entry.getKey(), e.getMessage());
+            }
+        }
+    }
+
+    private void remove(String name) {
+        synchronized (this) {
+            Long size = files.remove(name);
+            if (size != null) totalBytes -= size;
+        }
+        try {
+            Files.deleteIfExists(dir.resolve(name));
+        } catch (IOException ignored) {} // will be retried on the next write of this key
+    }
+
+    private static Frames read(ByteBuffer buffer, String key) throws IOException {
+        if (buffer.getInt() != MAGIC) throw new IOException("not an Opus frame file");
+        byte[] stored = new byte[buffer.getInt()];
+        buffer.get(stored);
+        if (!key.equals(new String(stored, StandardCharsets.UTF_8))) throw new IOException("key mismatch");
+        int[] offsets = new int[buffer.getInt()];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = buffer.position();
+            buffer.position(buffer.position() + 2 + (buffer.getShort() & 0xffff));
+        }
+        return new Frames(buffer, offsets);
+    }
+
+    private static String fileName(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest, 0, 20) + SUFFIX;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required of every JRE", e);
+        }
+    }
+
+    private static FileTime lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package net.iotku.subdonic.bot;
+
+import com.sedmelluq.discord.lavaplayer.format.StandardAudioDataFormats;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
+import com.sedmelluq.discord.lavaplayer.player.event.AudioEventAdapter;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackEndReason;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Fills the {@link OpusFrameCache} as a side effect of normal playback. Collects the Opus frames a player
+ * hands to Discord for a track that missed the cache, and stores them once the track played through to the end.
+ * Anything that makes the frames differ from a plain start to finish playback (joining late, seeking, a volume
+ * change) drops the recording, the next playback gets another go.
+ */
+class OpusFrameRecorder extends AudioEventAdapter {
+    static final int MAX_BYTES = 32 << 20; // ~ 3 hours of Opus, anything longer isn't worth keeping
+    private static final long FRAME_MS = StandardAudioDataFormats.DISCORD_OPUS.frameDuration();
+    private final byte[] scratch = new byte[StandardAudioDataFormats.DISCORD_OPUS.maximumChunkSize()];
+    private AudioTrack track; // last track seen, recorded or not
+    private SubsonicAudioTrack.Recording recording; // null when not recording track
+    private ByteArrayOutputStream body;
+    private int frameCount;
+    private long nextTimecode;
+
+    /**
+     * Called for every frame the player provides
+     * @param playing the player's current track
+     * @param timecode the frame's timecode
+     * @param volume the volume the frame was encoded at
+     * @param data the frame's Opus packet, between position and limit, left untouched
+     */
+    synchronized void capture(AudioTrack playing, long timecode, int volume, ByteBuffer data) {
+        if (playing != track) {
+            track = playing;
+            recording = playing instanceof SubsonicAudioTrack subsonic ? subsonic.recording() : null;
+            if (recording != null && timecode >= 2 * FRAME_MS) recording = null; // didn't see the start
+            body = recording != null ? new ByteArrayOutputStream(1 << 16) : null;
+            frameCount = 0;
+            nextTimecode = timecode;
+        }
+        if (recording == null) return;
+
+        int length = data.remaining();
+        if (timecode != nextTimecode || volume != recording.volume() || body.size() + length + 2 > MAX_BYTES) {
+            stop();
+            return;
+        }
+        data.get(data.position(), scratch, 0, length);
+        body.write(length >>> 8);
+        body.write(length);
+        body.write(scratch, 0, length);
+        frameCount++;
+        nextTimecode = timecode + FRAME_MS;
+    }
+
+    @Override
+    public synchronized void onTrackEnd(AudioPlayer player, AudioTrack ended, AudioTrackEndReason endReason) {
+        if (ended == track && recording != null && endReason == AudioTrackEndReason.FINISHED && frameCount > 0) {
+            ((SubsonicAudioTrack) ended).storeRecording(body.toByteArray(), frameCount);
+        }
+        if (ended == track) stop();
+    }
+
+    private void stop() {
+        recording = null;
+        body = null;
+    }
+}
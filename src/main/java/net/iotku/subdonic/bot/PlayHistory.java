@@ -0,0 +1,76 @@
+package net.iotku.subdonic.bot;
+
+import java.util.Arrays;
+
+/**
+ * Fixed size memory of which songs a guild queued recently, so random playback can avoid repeats.
+ * Two Bloom filter generations over song ids: when the current one has seen {@link #GENERATION_CAPACITY}
+ * songs the older one is dropped, so the last 1500 to 3000 songs are remembered in 4 KB no matter how long
+ * the session runs. False positives (about 1%) only make a song look recently played.
+ */
+public final class PlayHistory {
+    static final int GENERATION_CAPACITY = 1500;
+    private static final int BITS = 1 << 14; // per generation, 16384 bits = 2 KB
+    private static final int HASHES = 7; // optimal for ~11 bits per song
+    private long[] current = new long[BITS / 64];
+    private long[] previous = new long[BITS / 64];
+    private int currentCount;
+
+    /**
+     * @param songId Subsonic song id that was just queued
+     */
+    public synchronized void record(String songId) {
+        if (contains(current, songId)) return; // already counted in this generation
+        if (currentCount == GENERATION_CAPACITY) {
+            long[] recycled = previous;
+            Arrays.fill(recycled, 0);
+            previous = current;
+            current = recycled;
+            currentCount = 0;
+        }
+        long hash = hash(songId);
+        for (int i = 0; i < HASHES; i++) {
+            int bit = bit(hash, i);
+            current[bit >>> 6] |= 1L << bit;
+        }
+        currentCount++;
+    }
+
+    /**
+     * @param songId Subsonic song id
+     * @return true if the song was probably queued recently, false if it definitely wasn't
+     */
+    public synchronized boolean contains(String songId) {
+        return contains(current, songId) || contains(previous, songId);
+    }
+
+    private static boolean contains(long[] bits, String songId) {
+        long hash = hash(songId);
+        for (int i = 0; i < HASHES; i++) {
+            int bit = bit(hash, i);
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Double hashing (Kirsch-Mitzenmacher), the i-th probe derived from the two halves of one 64 bit hash
+     */
+    private static int bit(long hash, int i) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        return (h1 + i * h2) & (BITS - 1);
+    }
+
+    /**
+     * 64 bit FNV-1a, String.hashCode alone is too weak to split into two independent hashes
+     */
+    private static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h ^ (h >>> 29);
+    }
+}
@@ -0,0 +1,58 @@
+package net.iotku.subdonic.bot;
+
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import net.iotku.subdonic.api.v1.dto.Song;
+
+/**
+ * An entry in a play queue: the song, and its track once it's loaded. Songs queued in bulk start out as just the
+ * song, the scheduler loads the track shortly before it's needed and lets go of it again if the entry is moved
+ * further back, so a long queue costs little more than its list of songs.
+ */
+public final class QueuedTrack {
+    private final Song song;
+    private final FormatSelector.StreamPreference preference; // what the guild asked for when it queued the song
+    private AudioTrack track; // null until loaded, guarded by the scheduler
+    private boolean loading; // guarded by the scheduler
+
+    /**
+     * @param song song to load once it's close to the head of the queue
+     * @param preference stream format and bitrate to load it with
+     */
+    public QueuedTrack(Song song, FormatSelector.StreamPreference preference) {
+        this.song = song;
+        this.preference = preference;
+    }
+
+    /**
+     * @param track a track that was already loaded, with its Song as user data
+     */
+    public QueuedTrack(AudioTrack track) {
+        this((Song) track.getUserData(), track instanceof SubsonicAudioTrack subsonic
+                ? subsonic.getPreference() : FormatSelector.StreamPreference.AUTO);
+        this.track = track;
+    }
+
+    public Song song() {
+        return song;
+    }
+
+    FormatSelector.StreamPreference preference() {
+        return preference;
+    }
+
+    AudioTrack track() {
+        return track;
+    }
+
+    void setTrack(AudioTrack track) {
+        this.track = track;
+    }
+
+    boolean isLoading() {
+        return loading;
+    }
+
+    void setLoading(boolean loading) {
+        this.loading = loading;
+    }
+}
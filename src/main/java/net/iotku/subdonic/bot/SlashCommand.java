@@ -0,0 +1,8 @@
+package net.iotku.subdonic.bot;
+
+import discord4j.core.event.domain.interaction.ChatInputInteractionEvent;
+import reactor.core.publisher.Mono;
+
+public interface SlashCommand {
+    Mono<Void> execute(ChatInputInteractionEvent event);
+}
@@ -0,0 +1,165 @@
+package net.iotku.subdonic.bot;
+
+import discord4j.common.util.Snowflake;
+import discord4j.core.GatewayDiscordClient;
+import discord4j.core.event.domain.interaction.ChatInputAutoCompleteEvent;
+import discord4j.core.event.domain.interaction.ChatInputInteractionEvent;
+import discord4j.core.object.VoiceState;
+import discord4j.core.object.command.ApplicationCommandInteractionOption;
+import discord4j.core.object.command.ApplicationCommandInteractionOptionValue;
+import discord4j.core.object.command.ApplicationCommandOption;
+import discord4j.core.object.entity.Member;
+import discord4j.core.object.entity.PartialMember;
+import discord4j.discordjson.json.ApplicationCommandOptionChoiceData;
+import discord4j.discordjson.json.ApplicationCommandOptionData;
+import discord4j.discordjson.json.ApplicationCommandRequest;
+import net.iotku.subdonic.api.v1.dto.Song;
+import net.iotku.subdonic.catalog.SuggestIndex;
+import net.iotku.subdonic.subsonic.SearchService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Discord slash commands, registered alongside the prefix based {@link Commands}.
+ * Autocomplete is answered from the in-memory catalog suggestions, so it never waits on Subsonic.
+ */
+public class SlashCommands {
+    private static final Logger log = LoggerFactory.getLogger(SlashCommands.class);
+    private static final int MAX_SUGGESTIONS = 25; // Discord's limit per autocomplete response
+    private final Map<String, SlashCommand> commands = new HashMap<>();
+    private final Map<String, Function<ChatInputAutoCompleteEvent, Mono<Void>>> autocomplete = new HashMap<>();
+    private final List<ApplicationCommandRequest> definitions = new ArrayList<>();
+    private final SearchService searchService;
+
+    public SlashCommands(SearchService searchService) {
+        this.searchService = searchService;
+
+        register(ApplicationCommandRequest.builder()
+                        .name("play")
+                        .description("Play a song, suggestions appear as you type")
+                        .addOption(ApplicationCommandOptionData.builder()
+                                .name("query")
+                                .description("Artist and/or song title")
+                                .type(ApplicationCommandOption.Type.STRING.getValue())
+                                .required(true)
+                                .autocomplete(true)
+                                .maxLength(1000)
+                                .build())
+                        .build(),
+                this::play);
+        registerAutocomplete("play", this::suggestSongs);
+    }
+
+    public void register(ApplicationCommandRequest definition, SlashCommand command) {
+        definitions.add(definition);
+        commands.put(definition.name(), command);
+    }
+
+    public void registerAutocomplete(String name, Function<ChatInputAutoCompleteEvent, Mono<Void>> handler) {
+        autocomplete.put(name, handler);
+    }
+
+    /**
+     * Publish every registered command definition to Discord, replacing whatever was registered before
+     * @param client logged in gateway client
+     * @return a {@code Mono} that completes once Discord has accepted the definitions
+     */
+    public Mono<Void> publish(GatewayDiscordClient client) {
+        return client.getRestClient().getApplicationId()
+                .flatMapMany(appId -> client.getRestClient().getApplicationService()
+                        .bulkOverwriteGlobalApplicationCommand(appId, definitions))
+                .doOnComplete(() -> log.info("Registered {} slash commands", definitions.size()))
+                .then();
+    }
+
+    public Mono<Void> handle(ChatInputInteractionEvent event) {
+        SlashCommand command = commands.get(event.getCommandName());
+        if (command == null) return Mono.empty();
+        log.info("Attempting to run slash command: {} {}", event.getCommandName(), event.getOptions());
+        return command.execute(event);
+    }
+
+    public Mono<Void> autocomplete(ChatInputAutoCompleteEvent event) {
+        Function<ChatInputAutoCompleteEvent, Mono<Void>> handler = autocomplete.get(event.getCommandName());
+        return handler == null ? Mono.empty() : handler.apply(event);
+    }
+
+    private Mono<Void> suggestSongs(ChatInputAutoCompleteEvent event) {
+        String typed = event.getFocusedOption().getValue()
+                .map(ApplicationCommandInteractionOptionValue::getRaw)
+                .orElse("");
+        List<ApplicationCommandOptionChoiceData> choices = new ArrayList<>();
+        for (SuggestIndex.Suggestion suggestion : searchService.suggest(typed, MAX_SUGGESTIONS)) {
+            choices.add(ApplicationCommandOptionChoiceData.builder()
+                    .name(suggestion.label())
+                    .value(suggestion.value())
+                    .build());
+        }
+        return event.respondWithSuggestions(choices);
+    }
+
+    private Mono<Void> play(ChatInputInteractionEvent event) {
+        Snowflake guildId = event.getInteraction().getGuildId().orElse(null);
+        if (guildId == null) return event.reply("This command only works in servers.").withEphemeral(true);
+        String query = event.getOption("query")
+                .flatMap(ApplicationCommandInteractionOption::getValue)
+                .map(ApplicationCommandInteractionOptionValue::asString)
+                .orElse("")
+                .trim();
+        if (query.isEmpty()) return event.reply("Tell me what to play.").withEphemeral(true);
+
+        MessageCtx ctx = new MessageCtx(guildId, event.getInteraction().getChannelId(),
+                event.getInteraction().getMember().map(Member::getId).orElse(event.getInteraction().getUser().getId()));
+        if (Commands.queryTooLong(ctx, query)) return event.reply("That query is too long.").withEphemeral(true);
+
+        // Defer first, joining voice and searching can take longer than the 3 second reply deadline
+        return event.deferReply()
+                .then(ensureSameChannelOrJoin(event, guildId))
+                .flatMap(error -> {
+                    if (!error.isEmpty()) return event.editReply(error).then();
+
+                    // Set lastTextChannel so we know where to put now playing messages
+                    GuildAudioManager.of(guildId).setLastTextChannel(ctx.channelId());
+                    return Mono.fromCallable(() -> searchService.search(query))
+                            .subscribeOn(Schedulers.boundedElastic())
+                            .doOnNext(songs -> log.info("{}: {} results found for slash search {}", ctx, songs.size(), query))
+                            .flatMap(songs -> {
+                                if (songs.isEmpty()) return event.editReply("No tracks found for " + query).then();
+                                Song song = songs.getFirst();
+                                return Mono.fromCallable(() -> Commands.queue(searchService, song, guildId))
+                                        .subscribeOn(Schedulers.boundedElastic())
+                                        .then(event.editReply("Queued " + song.artist() + " - " + song.title()))
+                                        .then();
+                            });
+                });
+    }
+
+    /**
+     * Slash command version of the voice channel check in {@link Commands}
+     * @param event the interaction
+     * @param guildId guild the interaction came from
+     * @return empty String if the bot is (now) in the user's voice channel, otherwise the reason it can't play
+     */
+    private static Mono<String> ensureSameChannelOrJoin(ChatInputInteractionEvent event, Snowflake guildId) {
+        return Mono.justOrEmpty(event.getInteraction().getMember())
+                .flatMap(Member::getVoiceState)
+                .flatMap(VoiceState::getChannel)
+                .flatMap(userChannel -> event.getClient().getSelfMember(guildId)
+                        .flatMap(PartialMember::getVoiceState)
+                        .flatMap(VoiceState::getChannel)
+                        .map(botChannel -> botChannel.getId().equals(userChannel.getId())
+                                ? "" : "You must be in the same voice channel to use this command!")
+                        // bot not in any channel, Join User's channel
+                        .switchIfEmpty(GuildAudioManager.of(guildId).joinAndTrack(userChannel).thenReturn(""))
+                )
+                .defaultIfEmpty("You must be in a voice channel to use this command!");
+    }
+}
@@ -0,0 +1,122 @@
+package net.iotku.subdonic.bot;
+
+import com.sedmelluq.discord.lavaplayer.format.StandardAudioDataFormats;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
+import discord4j.voice.AudioProvider;
+import net.iotku.subdonic.api.v1.dto.Song;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A shared queue any number of guilds listen to at once. The station has a single player, so each song is
+ * streamed, decoded and encoded once, and its frames go into a ring every guild reads from through its own
+ * {@link StationAudioProvider}. Frames are produced when the listener furthest ahead asks for one, so the station
+ * plays at Discord's pace, and a guild that falls behind skips ahead instead of holding the others back.
+ */
+public class Station {
+    static final int BUFFER_FRAMES = 50; // one second of 20 ms frames a listener can lag behind
+    private static final Map<String, Station> STATIONS = new ConcurrentHashMap<>();
+    private static final Logger log = LoggerFactory.getLogger(Station.class);
+    private final String name;
+    private final AudioPlayer player;
+    private final AudioTrackScheduler scheduler;
+    private final AudioProvider producer; // the station's own provider, only ever called under producing
+    private final ReentrantLock producing = new ReentrantLock();
+    private final FrameRing ring = new FrameRing(BUFFER_FRAMES, StandardAudioDataFormats.DISCORD_OPUS.maximumChunkSize());
+    private final Set<GuildAudioManager> listeners = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param name station name, case-insensitive
+     * @return the station, created on first use
+     */
+    public static Station of(String name) {
+        return STATIONS.computeIfAbsent(name.toLowerCase(Locale.ROOT), Station::create);
+    }
+
+    private static Station create(String name) {
+        AudioPlayer player = GuildAudioManager.getPlayerManager().createPlayer();
+        // NOTE: Stations never use passthrough, every song is decoded at this volume whatever format it streams in
+        player.setVolume(GuildAudioManager.DEFAULT_VOLUME);
+        AudioTrackScheduler scheduler = new AudioTrackScheduler(player, GuildAudioManager.getPreloader(),
+                GuildAudioManager.getQueueLoadAhead(), null);
+        player.addListener(scheduler);
+        log.info("Station {} started", name);
+        return new Station(name, player, scheduler, new LavaPlayerAudioProvider(player, scheduler));
+    }
+
+    Station(String name, AudioPlayer player, AudioTrackScheduler scheduler, AudioProvider producer) {
+        this.name = name;
+        this.player = player;
+        this.scheduler = scheduler;
+        this.producer = producer;
+        // NOTE: Queue loads share the caps of the !play loads guilds make while listening, see GuildAudioManager
+        scheduler.setLoader((song, handler) -> AudioTrackScheduler.load(song, handler, this));
+        scheduler.setOnTrackStart(track -> listeners.forEach(guild -> guild.sendNowPlayingEmbed((Song) track.getUserData())));
+        scheduler.setOnTrackAdd(track -> {
+            Song song = (Song) track.getUserData();
+            listeners.forEach(guild -> guild.getPreferredTextChannel()
+                    .flatMap(ch -> ch.createMessage("Added to " + name + ": " + song.artist() + " - " + song.title()))
+                    .subscribe());
+        });
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public AudioPlayer getPlayer() {
+        return player;
+    }
+
+    public AudioTrackScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * @param guild a guild that starts listening, and gets now playing messages
+     * @return a provider for the guild's voice connection, starting at the newest frame
+     */
+    StationAudioProvider subscribe(GuildAudioManager guild) {
+        if (guild != null) listeners.add(guild);
+        return new StationAudioProvider(this, ring.head());
+    }
+
+    /**
+     * @param guild a guild that stopped listening
+     */
+    void unsubscribe(GuildAudioManager guild) {
+        listeners.remove(guild);
+    }
+
+    /**
+     * @param guild a guild
+     * @return whether the guild gets this station's now playing messages
+     */
+    boolean isListening(GuildAudioManager guild) {
+        return listeners.contains(guild);
+    }
+
+    FrameRing ring() {
+        return ring;
+    }
+
+    /**
+     * Pull the next frame from the player into the ring, unless someone already did
+     * @param wanted the sequence number the caller is waiting for
+     */
+    void produce(long wanted) {
+        producing.lock(); // held for a buffer poll and a copy, LavaPlayer decodes on its own threads
+        try {
+            if (ring.head() > wanted) return;
+            if (producer.provide()) ring.write(producer.getBuffer());
+        } finally {
+            producing.unlock();
+        }
+    }
+}
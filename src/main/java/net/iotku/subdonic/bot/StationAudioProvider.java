@@ -0,0 +1,41 @@
+package net.iotku.subdonic.bot;
+
+import com.sedmelluq.discord.lavaplayer.format.StandardAudioDataFormats;
+import discord4j.voice.AudioProvider;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One guild's view of a {@link Station}. Reads the station's frames at its own position, asking the station for
+ * a new frame once it has caught up, and skips ahead if it fell further behind than the station buffers.
+ */
+public class StationAudioProvider extends AudioProvider {
+    private final Station station;
+    private long next; // sequence number of the next frame to send, only touched by the voice thread
+    private long skipped; // frames dropped because this listener fell behind
+
+    StationAudioProvider(Station station, long start) {
+        super(ByteBuffer.allocate(StandardAudioDataFormats.DISCORD_OPUS.maximumChunkSize()));
+        this.station = station;
+        this.next = start;
+    }
+
+    public Station getStation() {
+        return station;
+    }
+
+    long getSkipped() {
+        return skipped;
+    }
+
+    @Override
+    public boolean provide() {
+        FrameRing ring = station.ring();
+        if (next >= ring.head()) station.produce(next);
+        long read = ring.read(next, getBuffer());
+        if (read < 0) return false; // the station has nothing to play
+        skipped += read - next;
+        next = read + 1;
+        return true;
+    }
+}
@@ -0,0 +1,262 @@
+package net.iotku.subdonic.bot;
+
+import com.sedmelluq.discord.lavaplayer.format.AudioDataFormat;
+import com.sedmelluq.discord.lavaplayer.format.OpusAudioDataFormat;
+import com.sedmelluq.discord.lavaplayer.source.AudioSourceManager;
+import com.sedmelluq.discord.lavaplayer.tools.Units;
+import com.sedmelluq.discord.lavaplayer.tools.io.HttpInterface;
+import com.sedmelluq.discord.lavaplayer.tools.io.PersistentHttpStream;
+import com.sedmelluq.discord.lavaplayer.tools.io.SeekableInputStream;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo;
+import com.sedmelluq.discord.lavaplayer.track.DelegatedAudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.InternalAudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.playback.AudioProcessingContext;
+import com.sedmelluq.discord.lavaplayer.track.playback.ImmutableAudioFrame;
+import com.sedmelluq.discord.lavaplayer.track.playback.LocalAudioTrackExecutor;
+import net.iotku.subdonic.subsonic.MediaCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A Subsonic song played straight from Subsonic, handing the stream to the container for its known format.
+ * Songs in the media cache are read from disk instead, and songs that aren't are written through to it.
+ */
+public class SubsonicAudioTrack extends DelegatedAudioTrack {
+    private static final Logger log = LoggerFactory.getLogger(SubsonicAudioTrack.class);
+    private static final Object NOT_PRELOADABLE = new Object(); // taken for playback or cancelled
+    private final SubsonicAudioSourceManager sourceManager;
+    private volatile FormatSelector.StreamPreference preference;
+    private volatile FormatSelector.Selection selection; // decided when the stream is first opened
+    private volatile Recording recording; // set while this playback may fill the frame cache
+    private final AtomicReference<Object> preloaded = new AtomicReference<>(); // null, Preloaded or NOT_PRELOADABLE
+
+    /**
+     * Where a playback that missed the frame cache should store its frames
+     * @param key frame cache key
+     * @param volume player volume the frames are encoded at
+     */
+    record Recording(String key, int volume) {}
+
+    /**
+     * A stream opened ahead of playback, with the HTTP interface it holds on to
+     */
+    private record Preloaded(HttpInterface httpInterface, PersistentHttpStream stream) {
+        void close() {
+            try (httpInterface) {
+                stream.close();
+            } catch (IOException ignored) {} // never played from, nothing to lose
+        }
+    }
+
+    /**
+     * @param trackInfo track info, the identifier must be {@code subsonic:<id>}
+     * @param preference how the guild wants it streamed, the format is picked from it when the stream opens
+     * @param sourceManager source that signs the stream URLs
+     */
+    public SubsonicAudioTrack(AudioTrackInfo trackInfo, FormatSelector.StreamPreference preference,
+                              SubsonicAudioSourceManager sourceManager) {
+        super(trackInfo);
+        this.preference = preference;
+        this.sourceManager = sourceManager;
+    }
+
+    public FormatSelector.StreamPreference getPreference() {
+        return preference;
+    }
+
+    /**
+     * NOTE: Only affects a track whose stream hasn't been opened yet
+     * @param preference how the guild wants it streamed
+     */
+    public void setPreference(FormatSelector.StreamPreference preference) {
+        this.preference = preference;
+    }
+
+    /**
+     * @return the format and bitrate this track streams in, picked on the first call
+     */
+    public FormatSelector.Selection getSelection() {
+        FormatSelector.Selection decided = selection;
+        if (decided != null) return decided;
+        synchronized (this) {
+            if (selection == null) selection = sourceManager.getFormatSelector().select(preference);
+            return selection;
+        }
+    }
+
+    public SubsonicAudioSourceManager.Format getFormat() {
+        return getSelection().format();
+    }
+
+    /**
+     * @return where this playback's frames should be cached, null if they shouldn't be
+     */
+    Recording recording() {
+        return recording;
+    }
+
+    /**
+     * Store the frames recorded while this track played through to the end
+     * @param body length-prefixed Opus frames
+     * @param frameCount how many frames body holds
+     */
+    void storeRecording(byte[] body, int frameCount) {
+        Recording target = recording;
+        OpusFrameCache cache = sourceManager.getFrameCache();
+        if (target != null && cache != null) cache.store(target.key(), body, frameCount);
+    }
+
+    /**
+     * Open the stream now so playback can start from a connection Subsonic is already sending on.
+     * Blocks until Subsonic answers, call it off the player threads.
+     */
+    void preload() {
+        if (preloaded.get() != null) return;
+        MediaCache mediaCache = sourceManager.getMediaCache();
+        if (mediaCache != null && mediaCache.contains(mediaKey())) return; // read from disk, nothing to connect
+        HttpInterface httpInterface = sourceManager.getHttpInterface();
+        PersistentHttpStream stream = new PersistentHttpStream(httpInterface,
+                sourceManager.streamUrl(trackInfo.identifier, getSelection()), Units.CONTENT_LENGTH_UNKNOWN);
+        Preloaded opened = new Preloaded(httpInterface, stream);
+        try {
+            int status = stream.checkStatusCode(); // connects, Subsonic starts transcoding
+            if (status != 200) throw new IOException("status " + status);
+        } catch (IOException e) {
+            log.debug("Couldn't preload {}, it will connect when it starts: {}", trackInfo.identifier, e.getMessage());
+            opened.close();
+            return;
+        }
+        if (!preloaded.compareAndSet(null, opened)) opened.close(); // started or cancelled in the meantime
+    }
+
+    /**
+     * Close a preloaded stream that won't be played
+     */
+    void cancelPreload() {
+        if (preloaded.getAndSet(NOT_PRELOADABLE) instanceof Preloaded opened) opened.close();
+    }
+
+    @Override
+    public void process(LocalAudioTrackExecutor executor) throws Exception {
+        Preloaded ready = preloaded.getAndSet(NOT_PRELOADABLE) instanceof Preloaded opened ? opened : null;
+        try {
+            process(executor, ready);
+        } finally {
+            if (ready != null) ready.close();
+        }
+    }
+
+    private void process(LocalAudioTrackExecutor executor, Preloaded ready) throws Exception {
+        FormatSelector.Selection selection = getSelection();
+        AudioProcessingContext context = executor.getProcessingContext();
+        OpusFrameCache cache = sourceManager.getFrameCache();
+        // Cached frames are what the encoder produced for this exact output, filters would change them
+        if (cache != null && cache.isEnabled() && context.playerOptions.filterFactory.get() == null
+                && OpusAudioDataFormat.CODEC_NAME.equals(context.outputFormat.codecName())) {
+            int volume = context.playerOptions.volumeLevel.get();
+            String songId = trackInfo.identifier.substring(SubsonicAudioSourceManager.PREFIX.length());
+            String key = OpusFrameCache.key(songId, selection.label(), context.outputFormat, volume, context.configuration);
+            Optional<OpusFrameCache.Frames> cached = cache.open(key);
+            if (cached.isPresent()) {
+                playCached(executor, context, cached.get(), volume);
+                return;
+            }
+            recording = new Recording(key, volume);
+        }
+
+        MediaCache mediaCache = sourceManager.getMediaCache();
+        Optional<MediaCache.Cached> media = mediaCache != null ? mediaCache.open(mediaKey()) : Optional.empty();
+        if (media.isPresent()) {
+            try (CachedMediaStream stream = new CachedMediaStream(media.get(), mediaCache)) {
+                processDelegate((InternalAudioTrack) selection.format().container().createTrack(null, trackInfo, stream), executor);
+            }
+            return;
+        }
+
+        FormatSelector formatSelector = sourceManager.getFormatSelector();
+        formatSelector.streamStarted(selection);
+        try {
+            if (ready != null) {
+                try (SeekableInputStream stream = writeThrough(ready.stream())) {
+                    processDelegate((InternalAudioTrack) selection.format().container().createTrack(null, trackInfo, stream), executor);
+                }
+                return;
+            }
+            // Signed at play time, so a track that sat in the queue (or was cloned) never carries a stale URL
+            try (HttpInterface httpInterface = sourceManager.getHttpInterface();
+                 PersistentHttpStream upstream = new PersistentHttpStream(httpInterface,
+                         sourceManager.streamUrl(trackInfo.identifier, selection), Units.CONTENT_LENGTH_UNKNOWN);
+                 SeekableInputStream stream = writeThrough(upstream)) {
+                processDelegate((InternalAudioTrack) selection.format().container().createTrack(null, trackInfo, stream), executor);
+            }
+        } finally {
+            formatSelector.streamEnded();
+        }
+    }
+
+    /**
+     * @return the media cache key for this song in the format and bitrate it streams in
+     */
+    private String mediaKey() {
+        return MediaCache.key(trackInfo.identifier.substring(SubsonicAudioSourceManager.PREFIX.length()),
+                getSelection().label());
+    }
+
+    /**
+     * @param upstream stream from Subsonic
+     * @return a stream writing through to the media cache, or upstream itself if it can't be cached right now
+     */
+    private SeekableInputStream writeThrough(SeekableInputStream upstream) {
+        MediaCache mediaCache = sourceManager.getMediaCache();
+        if (mediaCache == null) return upstream;
+        Optional<MediaCache.Download> download = Optional.empty();
+        try {
+            download = mediaCache.download(mediaKey()); // empty if another playback is writing it
+            if (download.isEmpty()) return upstream;
+            // NOTE: Transcodes aren't byte-identical between runs, so a part file is never resumed here
+            download.get().restart("audio/" + getFormat().subsonicName());
+            return new WriteThroughStream(upstream, download.get());
+        } catch (IOException e) {
+            log.debug("Not caching {}: {}", trackInfo.identifier, e.getMessage());
+            download.ifPresent(abandoned -> {
+                try {
+                    abandoned.close();
+                } catch (IOException ignored) {} // nothing was written
+            });
+            return upstream;
+        }
+    }
+
+    /**
+     * Hand cached frames straight to the player's frame buffer, nothing is decoded, resampled or encoded.
+     * NOTE: Frames keep the volume they were encoded at, fine while players never change volume mid-track.
+     */
+    private void playCached(LocalAudioTrackExecutor executor, AudioProcessingContext context,
+                            OpusFrameCache.Frames frames, int volume) {
+        AudioDataFormat output = context.outputFormat;
+        long frameMs = output.frameDuration();
+        accurateDuration.set(frames.count() * frameMs);
+        AtomicInteger next = new AtomicInteger();
+        executor.executeProcessingLoop(() -> {
+            for (int i = next.getAndIncrement(); i < frames.count(); i = next.getAndIncrement()) {
+                context.frameBuffer.consume(new ImmutableAudioFrame(i * frameMs, frames.frame(i), volume, output));
+            }
+        }, position -> next.set((int) Math.min(position / frameMs, frames.count())));
+    }
+
+    @Override
+    protected AudioTrack makeShallowClone() {
+        return new SubsonicAudioTrack(trackInfo, preference, sourceManager); // clones pick their format again
+    }
+
+    @Override
+    public AudioSourceManager getSourceManager() {
+        return sourceManager;
+    }
+}
@@ -0,0 +1,52 @@
+package net.iotku.subdonic.bot;
+
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Reorder buffer for songs loaded together, e.g. by !random. Loads finish in any order, each track is committed
+ * once every track before it has arrived (or failed), so the queue ends up in the order the songs were asked for,
+ * and the whole batch is reported once at the end.
+ */
+final class TrackBatch {
+    private final AudioTrack[] arrived; // by sequence number, null until it arrives or if it failed
+    private final boolean[] done;
+    private final Consumer<AudioTrack> commit;
+    private final Consumer<List<AudioTrack>> complete;
+    private final List<AudioTrack> committed = new ArrayList<>();
+    private int next; // sequence number of the next track to commit
+
+    /**
+     * @param size how many songs are loaded
+     * @param commit adds a track to the queue, called in sequence order
+     * @param complete gets the committed tracks once every load finished
+     */
+    TrackBatch(int size, Consumer<AudioTrack> commit, Consumer<List<AudioTrack>> complete) {
+        this.arrived = new AudioTrack[size];
+        this.done = new boolean[size];
+        this.commit = commit;
+        this.complete = complete;
+        if (size == 0) complete.accept(List.of());
+    }
+
+    /**
+     * @param sequence the song's position in the batch
+     * @param track the loaded track, null if it failed to load
+     */
+    synchronized void arrived(int sequence, AudioTrack track) {
+        if (done[sequence]) return;
+        arrived[sequence] = track;
+        done[sequence] = true;
+        while (next < done.length && done[next]) {
+            AudioTrack ready = arrived[next];
+            arrived[next++] = null;
+            if (ready == null) continue;
+            commit.accept(ready);
+            committed.add(ready);
+        }
+        if (next == done.length) complete.accept(List.copyOf(committed));
+    }
+}
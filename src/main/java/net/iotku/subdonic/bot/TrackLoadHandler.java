@@ -13,21 +13,40 @@ public class TrackLoadHandler implements AudioLoadResultHandler {
     private static final Logger log = LoggerFactory.getLogger(TrackLoadHandler.class);
     private final GuildAudioManager manager;
     private final Song song;
+    private final TrackBatch batch; // null when the song is queued on its own
+    private final int sequence;
 
     TrackLoadHandler(Song song, Snowflake guildId) {
+        this(song, guildId, null, 0);
+    }
+
+    /**
+     * @param batch batch the song was loaded in, its tracks are committed in order
+     * @param sequence the song's position in the batch
+     */
+    TrackLoadHandler(Song song, Snowflake guildId, TrackBatch batch, int sequence) {
         this.manager = GuildAudioManager.of(guildId);
         this.song = song;
+        this.batch = batch;
+        this.sequence = sequence;
     }
 
     @Override
     public void trackLoaded(AudioTrack track) {
         track.setUserData(song);
-        manager.getScheduler().play(track);
+        if (track instanceof SubsonicAudioTrack subsonic) subsonic.setPreference(manager.effectiveStreamPreference());
+        if (batch != null) batch.arrived(sequence, track);
+        else manager.getScheduler().play(track);
     }
 
-    @Override public void playlistLoaded(AudioPlaylist playlist) {}
-    @Override public void noMatches() {}
+    @Override public void playlistLoaded(AudioPlaylist playlist) {
+        if (batch != null) batch.arrived(sequence, null);
+    }
+    @Override public void noMatches() {
+        if (batch != null) batch.arrived(sequence, null);
+    }
     @Override public void loadFailed(FriendlyException exception) {
         log.error("Loading track failed: {}", exception.getMessage());
+        if (batch != null) batch.arrived(sequence, null);
     }
 }
@@ -0,0 +1,262 @@
+package net.iotku.subdonic.bot;
+
+import com.sedmelluq.discord.lavaplayer.player.AudioLoadResultHandler;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
+import com.sedmelluq.discord.lavaplayer.tools.FriendlyException;
+import com.sedmelluq.discord.lavaplayer.track.AudioPlaylist;
+import com.sedmelluq.discord.lavaplayer.track.AudioReference;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Shares track loading fairly between guilds. Each guild has its own queue of loads, guilds take turns starting
+ * their next one, and only a bounded number run at once overall and per guild, so a guild queueing a pile of songs
+ * can't hold up everyone else's. Like LavaPlayer's {@code loadItemOrdered}, a guild's results are handed back in
+ * the order its loads were submitted, even when several of them run at once.
+ */
+@Component
+public class TrackLoadScheduler {
+    private final int maxRunning;
+    private final int guildMaxRunning;
+    private final int guildMaxPending;
+    private final Map<Object, GuildLoads> guilds = new HashMap<>(); // guarded by this
+    private final ArrayDeque<GuildLoads> turns = new ArrayDeque<>(); // guilds that can start a load, round-robin
+    private int running;
+    private int pending;
+    private final Timer queueWait;
+    private final Counter rejected;
+
+    /**
+     * The failure a load is handed when its guild already has too many waiting, nothing is wrong with the song
+     */
+    public static final class Rejected extends FriendlyException {
+        Rejected() {
+            super("Too many songs loading, try again in a moment", Severity.COMMON, null);
+        }
+    }
+
+    /**
+     * One submitted load
+     */
+    private static final class Load {
+        final Supplier<CompletableFuture<AudioTrack>> loader;
+        final AudioLoadResultHandler handler;
+        final long submittedNanos = System.nanoTime();
+        AudioTrack result;
+        Throwable error;
+        boolean done;
+
+        Load(Supplier<CompletableFuture<AudioTrack>> loader, AudioLoadResultHandler handler) {
+            this.loader = loader;
+            this.handler = handler;
+        }
+    }
+
+    /**
+     * A guild's loads, waiting to start and waiting to be handed back in order
+     */
+    private static final class GuildLoads {
+        final Object key;
+        final ArrayDeque<Load> waiting = new ArrayDeque<>();
+        final ArrayDeque<Load> undelivered = new ArrayDeque<>(); // submission order
+        int running;
+        boolean delivering; // a thread is calling this guild's handlers
+        boolean hasTurn; // in turns
+
+        GuildLoads(Object key) {
+            this.key = key;
+        }
+    }
+
+    @Autowired
+    public TrackLoadScheduler(@Value("${audio.load.max-running:4}") int maxRunning,
+                              @Value("${audio.load.guild.max-running:2}") int guildMaxRunning,
+                              @Value("${audio.load.guild.max-pending:25}") int guildMaxPending,
+                              MeterRegistry registry) {
+        this.maxRunning = maxRunning;
+        this.guildMaxRunning = guildMaxRunning;
+        this.guildMaxPending = guildMaxPending;
+        this.queueWait = Timer.builder("audio.load.queue-wait")
+                .description("Time a track load waited for its guild's turn")
+                .publishPercentiles(0.5, 0.95)
+                .register(registry);
+        this.rejected = Counter.builder("audio.load.rejected")
+                .description("Track loads turned away because the guild had too many waiting")
+                .register(registry);
+        Gauge.builder("audio.load.pending", this, scheduler -> {
+                    synchronized (scheduler) {
+                        return scheduler.pending;
+                    }
+                })
+                .description("Track loads waiting to start")
+                .register(registry);
+    }
+
+    /**
+     * Queue a load for a guild. The handler is called once it's the load's turn and every load the guild submitted
+     * before it was handed back, or right away with a failure if the guild already has too many waiting.
+     * @param guild key loads are shared out by, e.g. the guild id
+     * @param loader starts the load, completes with the track or null if nothing matched
+     * @param handler gets the result
+     * @return false if the load was turned away
+     */
+    public boolean submit(Object guild, Supplier<CompletableFuture<AudioTrack>> loader, AudioLoadResultHandler handler) {
+        Load load = new Load(loader, handler);
+        synchronized (this) {
+            GuildLoads loads = guilds.computeIfAbsent(guild, GuildLoads::new);
+            if (loads.waiting.size() >= guildMaxPending) {
+                if (loads.undelivered.isEmpty()) guilds.remove(guild);
+                load = null;
+            } else {
+                loads.waiting.add(load);
+                loads.undelivered.add(load);
+                pending++;
+                giveTurn(loads);
+            }
+        }
+        if (load == null) {
+            rejected.increment();
+            handler.loadFailed(new Rejected());
+            return false;
+        }
+        startLoads();
+        return true;
+    }
+
+    /**
+     * Start loads while there is room, one per guild per turn
+     */
+    private void startLoads() {
+        while (true) {
+            Load load;
+            GuildLoads loads;
+            synchronized (this) {
+                if (running >= maxRunning || turns.isEmpty()) return;
+                loads = turns.poll();
+                loads.hasTurn = false;
+                load = loads.waiting.poll();
+                loads.running++;
+                running++;
+                pending--;
+                giveTurn(loads); // to the back of the line
+            }
+            queueWait.record(System.nanoTime() - load.submittedNanos, TimeUnit.NANOSECONDS);
+            CompletableFuture<AudioTrack> result;
+            try {
+                result = load.loader.get();
+            } catch (RuntimeException e) {
+                result = CompletableFuture.failedFuture(e);
+            }
+            GuildLoads owner = loads;
+            Load started = load;
+            result.whenComplete((track, error) -> finished(owner, started, track, error));
+        }
+    }
+
+    private void giveTurn(GuildLoads loads) {
+        if (!loads.hasTurn && !loads.waiting.isEmpty() && loads.running < guildMaxRunning) {
+            loads.hasTurn = true;
+            turns.add(loads);
+        }
+    }
+
+    private void finished(GuildLoads loads, Load load, AudioTrack track, Throwable error) {
+        synchronized (this) {
+            load.result = track;
+            load.error = error;
+            load.done = true;
+            loads.running--;
+            running--;
+            giveTurn(loads);
+        }
+        startLoads();
+        deliver(loads);
+    }
+
+    /**
+     * Hand finished loads back in submission order, one thread per guild at a time
+     */
+    private void deliver(GuildLoads loads) {
+        while (true) {
+            List<Load> ready = new ArrayList<>();
+            synchronized (this) {
+                if (loads.delivering) return;
+                while (!loads.undelivered.isEmpty() && loads.undelivered.peek().done) ready.add(loads.undelivered.poll());
+                if (ready.isEmpty()) {
+                    if (loads.undelivered.isEmpty() && loads.running == 0) guilds.remove(loads.key, loads);
+                    return;
+                }
+                loads.delivering = true;
+            }
+            try {
+                for (Load load : ready) deliver(load.result, load.error, load.handler);
+            } finally {
+                synchronized (this) {
+                    loads.delivering = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Pass a load's outcome to a LavaPlayer result handler
+     * @param track the loaded track, null if nothing matched
+     * @param error why the load failed, null if it didn't
+     * @param handler handler to call
+     */
+    static void deliver(AudioTrack track, Throwable error, AudioLoadResultHandler handler) {
+        if (error instanceof CompletionException wrapped) error = wrapped.getCause();
+        if (error instanceof FriendlyException friendly) handler.loadFailed(friendly);
+        else if (error != null) handler.loadFailed(new FriendlyException("Loading failed", FriendlyException.Severity.FAULT, error));
+        else if (track == null) handler.noMatches();
+        else handler.trackLoaded(track);
+    }
+
+    /**
+     * Load a track through the player manager as a future
+     * @param manager player manager to load with
+     * @param reference what to load
+     * @return the track, null if nothing matched or it was a playlist; fails with a {@link FriendlyException}
+     */
+    static CompletableFuture<AudioTrack> loadItem(AudioPlayerManager manager, AudioReference reference) {
+        CompletableFuture<AudioTrack> load = new CompletableFuture<>();
+        manager.loadItem(reference, new AudioLoadResultHandler() {
+            @Override
+            public void trackLoaded(AudioTrack track) {
+                load.complete(track);
+            }
+
+            @Override
+            public void playlistLoaded(AudioPlaylist playlist) {
+                load.complete(null);
+            }
+
+            @Override
+            public void noMatches() {
+                load.complete(null);
+            }
+
+            @Override
+            public void loadFailed(FriendlyException exception) {
+                load.completeExceptionally(exception);
+            }
+        });
+        return load;
+    }
+}
@@ -0,0 +1,68 @@
+package net.iotku.subdonic.bot;
+
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Opens the next queued song's stream while the current one is still playing, so the next track starts from
+ * a connection Subsonic is already transcoding into instead of connecting once the previous track has ended.
+ * Also measures the silence between tracks that follow each other.
+ */
+@Component
+public class TrackPreloader {
+    private final long leadMillis;
+    private final Executor executor;
+    private final Timer gaps;
+
+    @Autowired
+    public TrackPreloader(@Value("${audio.preload.seconds:5}") int leadSeconds, MeterRegistry registry) {
+        this(leadSeconds * 1000L, registry,
+                Executors.newFixedThreadPool(2, Thread.ofPlatform().daemon().name("track-preload-", 0).factory()));
+    }
+
+    TrackPreloader(long leadMillis, MeterRegistry registry, Executor executor) {
+        this.leadMillis = leadMillis;
+        this.executor = executor;
+        this.gaps = Timer.builder("audio.track.gap")
+                .description("Time between the last frame of a track and the first frame of the one after it")
+                .publishPercentiles(0.5, 0.95)
+                .register(registry);
+    }
+
+    /**
+     * @return how long before a track ends the next one is preloaded
+     */
+    public long leadMillis() {
+        return leadMillis;
+    }
+
+    /**
+     * Start opening a track's stream in the background, tracks we can't preload are left alone
+     * @param track the track that will play next
+     */
+    public void preload(AudioTrack track) {
+        if (track instanceof SubsonicAudioTrack subsonic) executor.execute(subsonic::preload);
+    }
+
+    /**
+     * @param track a track that was preloaded but won't be played after all
+     */
+    public void cancel(AudioTrack track) {
+        if (track instanceof SubsonicAudioTrack subsonic) subsonic.cancelPreload();
+    }
+
+    /**
+     * @param gap time between the last frame of one track and the first frame of the next
+     */
+    public void recordGap(Duration gap) {
+        gaps.record(gap);
+    }
+}
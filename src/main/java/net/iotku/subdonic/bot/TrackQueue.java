@@ -0,0 +1,286 @@
+package net.iotku.subdonic.bot;
+
+import java.util.AbstractQueue;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * A guild's play queue: an array-backed ring deque under the queue's own lock. Size, positional reads and skipping
+ * ahead are constant time (skipping only clears the dropped slots); inserting, removing or moving at a position
+ * shifts whichever side of it is shorter, with an array copy unless that side wraps around the ring.
+ * Iterators walk a snapshot, use {@link #slice} to read part of a long queue.
+ */
+public class TrackQueue extends AbstractQueue<QueuedTrack> {
+    private static final int INITIAL_CAPACITY = 16;
+    private QueuedTrack[] tracks = new QueuedTrack[INITIAL_CAPACITY]; // capacity is always a power of two
+    private int head; // index of the first track
+    private int size;
+
+    private int slot(int index) {
+        return (head + index) & (tracks.length - 1);
+    }
+
+    private void ensureCapacity(int needed) {
+        if (needed <= tracks.length) return;
+        QueuedTrack[] grown = new QueuedTrack[Integer.highestOneBit(needed - 1) << 1];
+        copyOut(0, size, grown, 0);
+        tracks = grown;
+        head = 0;
+    }
+
+    /**
+     * Copy count tracks starting at a position into an array, unwrapping the ring
+     */
+    private void copyOut(int from, int count, Object[] into, int at) {
+        int start = slot(from);
+        int first = Math.min(count, tracks.length - start);
+        System.arraycopy(tracks, start, into, at, first);
+        System.arraycopy(tracks, 0, into, at + first, count - first);
+    }
+
+    private void checkIndex(int index, int bound) {
+        if (index < 0 || index >= bound) throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized boolean offer(QueuedTrack track) {
+        if (track == null) throw new NullPointerException();
+        ensureCapacity(size + 1);
+        tracks[slot(size++)] = track;
+        return true;
+    }
+
+    /**
+     * Append tracks in one go, in their collection order
+     */
+    @Override
+    public boolean addAll(Collection<? extends QueuedTrack> added) {
+        QueuedTrack[] copy = added.toArray(new QueuedTrack[0]); // outside the lock, added may be this queue
+        for (QueuedTrack track : copy) {
+            if (track == null) throw new NullPointerException();
+        }
+        synchronized (this) {
+            ensureCapacity(size + copy.length);
+            for (QueuedTrack track : copy) tracks[slot(size++)] = track;
+        }
+        return copy.length > 0;
+    }
+
+    @Override
+    public synchronized QueuedTrack poll() {
+        if (size == 0) return null;
+        QueuedTrack first = tracks[head];
+        tracks[head] = null;
+        head = slot(1);
+        size--;
+        return first;
+    }
+
+    @Override
+    public synchronized QueuedTrack peek() {
+        return size == 0 ? null : tracks[head];
+    }
+
+    /**
+     * @param index position in the queue, 0 is the next track
+     * @return the track at that position
+     */
+    public synchronized QueuedTrack get(int index) {
+        checkIndex(index, size);
+        return tracks[slot(index)];
+    }
+
+    /**
+     * Drop the first count - 1 tracks and take the one after them, e.g. skip(1) is poll()
+     * @param count position of the wanted track, counting from 1
+     * @return that track, or null if the queue is shorter than count, leaving it untouched
+     */
+    public synchronized QueuedTrack skip(int count) {
+        if (count < 1 || count > size) return null;
+        int last = slot(count - 1);
+        QueuedTrack wanted = tracks[last];
+        clear(0, count);
+        head = slot(count);
+        size -= count;
+        return wanted;
+    }
+
+    /**
+     * Null out count slots starting at a position so the dropped tracks can be collected
+     */
+    private void clear(int from, int count) {
+        int start = slot(from);
+        int first = Math.min(count, tracks.length - start);
+        Arrays.fill(tracks, start, start + first, null);
+        Arrays.fill(tracks, 0, count - first, null);
+    }
+
+    /**
+     * @param index position to insert at, size to append
+     * @param track track to insert
+     */
+    public synchronized void insert(int index, QueuedTrack track) {
+        if (track == null) throw new NullPointerException();
+        checkIndex(index, size + 1);
+        ensureCapacity(size + 1);
+        if (index < size / 2) {
+            head = slot(-1); // open a slot in front, then shift the tracks before index into it
+            shiftLeft(1, index);
+        } else {
+            shiftRight(index, size - index);
+        }
+        tracks[slot(index)] = track;
+        size++;
+    }
+
+    /**
+     * @param index position to remove
+     * @return the removed track
+     */
+    public synchronized QueuedTrack remove(int index) {
+        checkIndex(index, size);
+        QueuedTrack removed = tracks[slot(index)];
+        if (index < size / 2) {
+            shiftRight(0, index);
+            tracks[head] = null;
+            head = slot(1);
+        } else {
+            shiftLeft(index + 1, size - index - 1);
+            tracks[slot(size - 1)] = null;
+        }
+        size--;
+        return removed;
+    }
+
+    /**
+     * Move a track to another position, the tracks between shift over by one
+     * @param from its current position
+     * @param to position it ends up at
+     * @return the moved entry
+     */
+    public synchronized QueuedTrack move(int from, int to) {
+        checkIndex(from, size);
+        checkIndex(to, size);
+        QueuedTrack moved = tracks[slot(from)];
+        if (from < to) shiftLeft(from + 1, to - from);
+        else if (from > to) shiftRight(to, from - to);
+        tracks[slot(to)] = moved;
+        return moved;
+    }
+
+    /**
+     * Shift count tracks starting at a position one place toward the tail
+     */
+    private void shiftRight(int from, int count) {
+        if (count == 0) return;
+        int start = slot(from);
+        if (start + count < tracks.length) {
+            System.arraycopy(tracks, start, tracks, start + 1, count);
+        } else {
+            for (int i = from + count - 1; i >= from; i--) tracks[slot(i + 1)] = tracks[slot(i)];
+        }
+    }
+
+    /**
+     * Shift count tracks starting at a position one place toward the head
+     */
+    private void shiftLeft(int from, int count) {
+        if (count == 0) return;
+        int start = slot(from);
+        if (start > 0 && start + count <= tracks.length) {
+            System.arraycopy(tracks, start, tracks, start - 1, count);
+        } else {
+            for (int i = from; i < from + count; i++) tracks[slot(i - 1)] = tracks[slot(i)];
+        }
+    }
+
+    /**
+     * Shuffle the queue in place (Fisher-Yates)
+     * @param random source of randomness
+     */
+    public synchronized void shuffle(Random random) {
+        for (int i = size - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int a = slot(i);
+            int b = slot(j);
+            QueuedTrack swap = tracks[a];
+            tracks[a] = tracks[b];
+            tracks[b] = swap;
+        }
+    }
+
+    /**
+     * @param from position of the first track
+     * @param count how many tracks at most
+     * @return a copy of that part of the queue
+     */
+    public synchronized List<QueuedTrack> slice(int from, int count) {
+        if (from < 0 || count < 0) throw new IndexOutOfBoundsException("Slice " + from + "+" + count);
+        int length = Math.max(0, Math.min(count, size - from));
+        QueuedTrack[] part = new QueuedTrack[length];
+        if (length > 0) copyOut(from, length, part, 0);
+        return Arrays.asList(part);
+    }
+
+    @Override
+    public synchronized void clear() {
+        clear(0, size);
+        head = 0;
+        size = 0;
+    }
+
+    @Override
+    public synchronized Object[] toArray() {
+        Object[] all = new Object[size];
+        copyOut(0, size, all, 0);
+        return all;
+    }
+
+    /**
+     * @return an iterator over a snapshot, removing through it removes that track if it's still queued
+     */
+    @Override
+    public Iterator<QueuedTrack> iterator() {
+        Object[] snapshot = toArray();
+        return new Iterator<>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < snapshot.length;
+            }
+
+            @Override
+            public QueuedTrack next() {
+                if (next >= snapshot.length) throw new NoSuchElementException();
+                return (QueuedTrack) snapshot[next++];
+            }
+
+            @Override
+            public void remove() {
+                if (next == 0) throw new IllegalStateException();
+                TrackQueue.this.remove(snapshot[next - 1]);
+            }
+        };
+    }
+
+    @Override
+    public synchronized boolean remove(Object track) {
+        for (int i = 0; i < size; i++) {
+            if (tracks[slot(i)] == track) {
+                remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+}
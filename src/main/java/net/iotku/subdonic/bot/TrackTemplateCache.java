@@ -0,0 +1,125 @@
+package net.iotku.subdonic.bot;
+
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
+import com.sedmelluq.discord.lavaplayer.tools.FriendlyException;
+import com.sedmelluq.discord.lavaplayer.tools.Units;
+import com.sedmelluq.discord.lavaplayer.track.AudioReference;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Loaded tracks by Subsonic song id, so a song that was loaded before is handed out as a clone of the first load
+ * instead of going through the player manager's loader threads again. Loads of the same song from several guilds
+ * at once share one load. Templates also pick up the song's length the first time it plays through, which our
+ * containers don't read from the stream, so later clones know their duration before they start.
+ */
+@Component
+public class TrackTemplateCache {
+    private final int maxEntries;
+    private final Map<String, AudioTrack> templates; // song id -> template, LRU, guarded by itself
+    private final Map<String, CompletableFuture<AudioTrack>> loading = new ConcurrentHashMap<>();
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter merged;
+
+    @Autowired
+    public TrackTemplateCache(@Value("${audio.track-cache.max-entries:2048}") int maxEntries, MeterRegistry registry) {
+        this.maxEntries = maxEntries;
+        this.templates = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, AudioTrack> eldest) {
+                return size() > TrackTemplateCache.this.maxEntries;
+            }
+        };
+        this.hits = requests(registry, "hit");
+        this.misses = requests(registry, "miss");
+        this.merged = requests(registry, "merged");
+        Gauge.builder("audio.track-cache.size", templates, map -> {
+                    synchronized (map) {
+                        return map.size();
+                    }
+                })
+                .description("Track templates cached")
+                .register(registry);
+    }
+
+    private static Counter requests(MeterRegistry registry, String result) {
+        return Counter.builder("audio.track-cache.requests")
+                .description("Track loads, by whether a cached template served them")
+                .tag("result", result)
+                .register(registry);
+    }
+
+    /**
+     * Load a song as a fresh clone of the cached template, or load and cache it on a miss
+     * @param songId Subsonic song id
+     * @param reference reference the player manager loads the song from on a miss
+     * @param manager player manager with the Subsonic source registered
+     * @return the caller's own track, null if nothing matched; fails with a {@link FriendlyException}
+     */
+    public CompletableFuture<AudioTrack> load(String songId, AudioReference reference, AudioPlayerManager manager) {
+        AudioTrack template = template(songId);
+        if (template != null) {
+            hits.increment();
+            return CompletableFuture.completedFuture(template.makeClone());
+        }
+
+        CompletableFuture<AudioTrack> load = new CompletableFuture<>();
+        CompletableFuture<AudioTrack> running = loading.putIfAbsent(songId, load);
+        if (running != null) {
+            merged.increment();
+            return running.thenApply(TrackTemplateCache::cloneOf);
+        }
+        misses.increment();
+        TrackLoadScheduler.loadItem(manager, reference).whenComplete((track, error) -> {
+            if (track != null) {
+                synchronized (templates) {
+                    templates.put(songId, track);
+                }
+            }
+            loading.remove(songId);
+            if (error != null) load.completeExceptionally(error);
+            else load.complete(track);
+        });
+        return load.thenApply(TrackTemplateCache::cloneOf);
+    }
+
+    private static AudioTrack cloneOf(AudioTrack template) {
+        return template != null ? template.makeClone() : null;
+    }
+
+    /**
+     * Remember the length of a track that played through, for the clones that come after it
+     * @param finished a track that ended with {@code FINISHED}
+     */
+    void learnDuration(AudioTrack finished) {
+        if (!(finished instanceof SubsonicAudioTrack) || finished.getInfo().length != Units.DURATION_MS_UNKNOWN) return;
+        String songId = finished.getIdentifier().substring(SubsonicAudioSourceManager.PREFIX.length());
+        long length = finished.getPosition();
+        synchronized (templates) {
+            if (!(templates.get(songId) instanceof SubsonicAudioTrack template)
+                    || template.getInfo().length != Units.DURATION_MS_UNKNOWN) return;
+            AudioTrackInfo info = template.getInfo();
+            templates.put(songId, new SubsonicAudioTrack(new AudioTrackInfo(info.title, info.author, length,
+                    info.identifier, info.isStream, info.uri), template.getPreference(),
+                    (SubsonicAudioSourceManager) template.getSourceManager()));
+        }
+    }
+
+    private AudioTrack template(String songId) {
+        synchronized (templates) {
+            return templates.get(songId);
+        }
+    }
+}
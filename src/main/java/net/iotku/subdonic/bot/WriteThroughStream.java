@@ -0,0 +1,147 @@
+package net.iotku.subdonic.bot;
+
+import com.sedmelluq.discord.lavaplayer.tools.Units;
+import com.sedmelluq.discord.lavaplayer.tools.io.SeekableInputStream;
+import com.sedmelluq.discord.lavaplayer.track.info.AudioTrackInfoProvider;
+import net.iotku.subdonic.subsonic.MediaCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A Subsonic stream that writes what playback reads through to the media cache, so the next play of the song in the
+ * same format comes from disk. Only bytes read in order from the start are written, a seek backwards or far ahead
+ * stops writing, and the download only counts as complete once the stream was read to its end.
+ */
+final class WriteThroughStream extends SeekableInputStream {
+    private static final Logger log = LoggerFactory.getLogger(WriteThroughStream.class);
+    private static final int DRAIN_BYTES = 256 * 1024; // read this much past where playback stopped to finish a download
+    private final SeekableInputStream upstream;
+    private MediaCache.Download download; // null once writing stopped
+
+    /**
+     * @param upstream stream from Subsonic, positioned at the start and closed with this stream
+     * @param download a restarted download of the song
+     */
+    WriteThroughStream(SeekableInputStream upstream, MediaCache.Download download) {
+        super(upstream.getContentLength(), upstream.getMaxSkipDistance());
+        this.upstream = upstream;
+        this.download = download;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int read = upstream.read();
+        if (read >= 0) write(new byte[]{(byte) read}, 0, 1);
+        else finish();
+        return read;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int read = upstream.read(buffer, offset, length);
+        if (read > 0) write(buffer, offset, read);
+        else if (read < 0) finish();
+        return read;
+    }
+
+    /**
+     * Skipped bytes are read, so short skips don't stop the download
+     */
+    @Override
+    public long skip(long count) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(count, 64 * 1024)];
+        long skipped = 0;
+        while (skipped < count) {
+            int read = read(buffer, 0, (int) Math.min(buffer.length, count - skipped));
+            if (read < 0) break;
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return upstream.available();
+    }
+
+    @Override
+    public long getPosition() {
+        return upstream.getPosition();
+    }
+
+    @Override
+    protected void seekHard(long position) throws IOException {
+        stop();
+        upstream.seek(position);
+    }
+
+    @Override
+    public boolean canSeekHard() {
+        return upstream.canSeekHard();
+    }
+
+    @Override
+    public List<AudioTrackInfoProvider> getTrackInfoProviders() {
+        return upstream.getTrackInfoProviders();
+    }
+
+    /**
+     * A song played to its end usually stops just short of the end of the file, the rest is read to finish the
+     * download. A song that was skipped has more left than that and its download is dropped.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            for (int drained = 0; download != null && drained < DRAIN_BYTES; ) {
+                int read = read(buffer, 0, buffer.length);
+                if (read < 0) break;
+                drained += read;
+            }
+        } catch (IOException e) {
+            log.debug("Couldn't finish caching a stream: {}", e.getMessage());
+        } finally {
+            try {
+                upstream.close();
+            } finally {
+                stop();
+            }
+        }
+    }
+
+    private void write(byte[] data, int offset, int length) {
+        if (download == null) return;
+        try {
+            download.write(data, offset, length);
+        } catch (IOException e) {
+            log.debug("Stopped caching a stream: {}", e.getMessage());
+            stop();
+        }
+    }
+
+    private void finish() {
+        if (download == null) return;
+        long length = upstream.getContentLength();
+        try {
+            // NOTE: A connection that dropped early also ends the stream, a known length catches that
+            if (length == Units.CONTENT_LENGTH_UNKNOWN || length == upstream.getPosition()) download.complete();
+        } catch (IOException e) {
+            log.debug("Couldn't complete a cached stream: {}", e.getMessage());
+        } finally {
+            stop();
+        }
+    }
+
+    private void stop() {
+        if (download == null) return;
+        try {
+            download.close();
+        } catch (IOException e) {
+            log.debug("Couldn't close a cache download: {}", e.getMessage());
+        }
+        download = null;
+    }
+}
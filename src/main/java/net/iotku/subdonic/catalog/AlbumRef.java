@@ -0,0 +1,11 @@
+package net.iotku.subdonic.catalog;
+
+/**
+ * An album as listed by getAlbumList2/getArtist, with enough metadata to tell whether its songs changed.
+ * @param id Subsonic album id
+ * @param artistId Subsonic id of the album artist
+ * @param songCount number of songs on the album
+ * @param duration total duration in seconds
+ * @param created when the album was added to the library, as reported by Subsonic
+ */
+public record AlbumRef(String id, String artistId, int songCount, long duration, String created) {}
@@ -0,0 +1,177 @@
+package net.iotku.subdonic.catalog;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import net.iotku.subdonic.api.v1.dto.Song;
+import net.iotku.subdonic.subsonic.SubsonicClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads the library structure from Subsonic: the full crawl used to build a CatalogIndex from scratch,
+ * and the smaller lookups CatalogSync uses to fetch only what changed.
+ */
+@Component
+public class CatalogCrawler {
+    private static final Logger log = LoggerFactory.getLogger(CatalogCrawler.class);
+    private static final int ALBUM_PAGE_SIZE = 500; // getAlbumList2 maximum
+    private final SubsonicClient subsonic;
+    private final int threads;
+
+    public CatalogCrawler(SubsonicClient subsonic, @Value("${catalog.crawl.threads:4}") int threads) {
+        this.subsonic = subsonic;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * A freshly crawled index along with the library state it reflects
+     */
+    record Result(CatalogIndex index, CatalogState state) {}
+
+    /**
+     * Crawl every album in the library
+     * @return a new CatalogIndex containing every (tagged) song, and the state to sync it from
+     * @throws IOException if any Subsonic request fails, a partial catalog is never returned
+     * @throws InterruptedException if the crawl is interrupted
+     */
+    Result crawl() throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        CatalogState state = new CatalogState();
+        state.lastModified = indexesLastModified(0); // read first, so changes made during the crawl are picked up by the next sync
+        state.artistAlbumCounts.putAll(listArtists());
+        List<AlbumRef> albums = listAlbums();
+        albums.forEach(album -> state.albums.put(album.id(), album));
+
+        CatalogSegment.Builder builder = new CatalogSegment.Builder();
+        fetchAlbums(albums).forEach((albumId, songs) -> songs.forEach(song -> builder.add(song, albumId)));
+
+        CatalogIndex index = CatalogIndex.of(builder.build());
+        log.info("Crawled {} albums into {} in {} ms", albums.size(), index, (System.nanoTime() - start) / 1_000_000);
+        return new Result(index, state);
+    }
+
+    /**
+     * Fetch the songs of many albums on the crawl thread pool
+     * @param albums albums to fetch
+     * @return songs keyed by album id, in the order the albums were given
+     */
+    Map<String, List<Song>> fetchAlbums(Collection<AlbumRef> albums) throws IOException, InterruptedException {
+        Map<String, List<Song>> songs = new LinkedHashMap<>();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            Map<String, Future<List<Song>>> pending = new LinkedHashMap<>();
+            for (AlbumRef album : albums) {
+                pending.put(album.id(), pool.submit(() -> fetchAlbum(album.id())));
+            }
+            // Collect in album order so ordinals are stable between crawls of an unchanged library
+            for (Map.Entry<String, Future<List<Song>>> e : pending.entrySet()) {
+                songs.put(e.getKey(), e.getValue().get());
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException("Fetching albums failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return songs;
+    }
+
+    /**
+     * @return every album in the library, sorted by name
+     */
+    List<AlbumRef> listAlbums() throws IOException, InterruptedException {
+        List<AlbumRef> albums = new ArrayList<>();
+        for (int offset = 0; ; offset += ALBUM_PAGE_SIZE) {
+            List<AlbumRef> page = listAlbums("alphabeticalByName", ALBUM_PAGE_SIZE, offset);
+            albums.addAll(page);
+            if (page.size() < ALBUM_PAGE_SIZE) return albums;
+        }
+    }
+
+    /**
+     * @param type getAlbumList2 list type, e.g. "newest"
+     * @param size page size, at most 500
+     * @param offset page offset
+     * @return one page of albums
+     */
+    List<AlbumRef> listAlbums(String type, int size, int offset) throws IOException, InterruptedException {
+        JsonNode page = subsonic.get("getAlbumList2.view", Map.of(
+                "type", List.of(type),
+                "size", List.of(String.valueOf(size)),
+                "offset", List.of(String.valueOf(offset))
+        )).path("albumList2").path("album");
+        return toAlbumRefs(page);
+    }
+
+    /**
+     * @return album count of every artist, keyed by artist id
+     */
+    Map<String, Integer> listArtists() throws IOException, InterruptedException {
+        Map<String, Integer> artists = new HashMap<>();
+        for (JsonNode index : subsonic.get("getArtists.view", Map.of()).path("artists").path("index")) {
+            for (JsonNode artist : index.path("artist")) {
+                artists.put(artist.path("id").asText(), artist.path("albumCount").asInt());
+            }
+        }
+        return artists;
+    }
+
+    /**
+     * @param artistId Subsonic artist id
+     * @return every album by the artist
+     */
+    List<AlbumRef> listArtistAlbums(String artistId) throws IOException, InterruptedException {
+        return toAlbumRefs(subsonic.get("getArtist.view", Map.of("id", List.of(artistId))).path("artist").path("album"));
+    }
+
+    /**
+     * @param albumId Subsonic album id
+     * @return the album's (tagged) songs in track order
+     */
+    List<Song> fetchAlbum(String albumId) throws IOException, InterruptedException {
+        return subsonic.album(albumId);
+    }
+
+    /**
+     * @return true while Subsonic is scanning the media library
+     */
+    boolean isScanning() throws IOException, InterruptedException {
+        return subsonic.get("getScanStatus.view", Map.of()).path("scanStatus").path("scanning").asBoolean(false);
+    }
+
+    /**
+     * @param since last known modification time in epoch millis, 0 to always get the current value
+     * @return the library's last modification time in epoch millis, or {@code since} if it hasn't changed
+     */
+    long indexesLastModified(long since) throws IOException, InterruptedException {
+        JsonNode indexes = subsonic.get("getIndexes.view", Map.of("ifModifiedSince", List.of(String.valueOf(since))))
+                .path("indexes");
+        return Math.max(since, indexes.path("lastModified").asLong(since));
+    }
+
+    private static List<AlbumRef> toAlbumRefs(JsonNode albums) {
+        List<AlbumRef> refs = new ArrayList<>(albums.size());
+        for (JsonNode album : albums) {
+            refs.add(new AlbumRef(
+                    album.path("id").asText(),
+                    album.path("artistId").asText(null),
+                    album.path("songCount").asInt(),
+                    album.path("duration").asLong(),
+                    album.path("created").asText(null)
+            ));
+        }
+        return refs;
+    }
+}
@@ -0,0 +1,224 @@
+package net.iotku.subdonic.catalog;
+
+import net.iotku.subdonic.api.v1.dto.Song;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable in-memory index over the song catalog, made of one or more {@link CatalogSegment}s.
+ * Updates never touch a published index: {@link #applyDelta} returns a new one that shares every
+ * unchanged segment, so readers holding the old reference are never blocked and never see half an update.
+ */
+public final class CatalogIndex {
+    public static final CatalogIndex EMPTY = new CatalogIndex(new CatalogSegment[0]);
+    private static final int MAX_SEGMENTS = 8; // compact into a single segment past this
+    private static final int MAX_ALTERNATIVES = 8; // spellings tried per misspelled word
+
+    private final CatalogSegment[] segments; // oldest first
+    private final int[] offsets; // global ordinal of each segment's first song
+    private final int size;
+
+    private CatalogIndex(CatalogSegment[] segments) {
+        this.segments = segments;
+        this.offsets = new int[segments.length];
+        int total = 0, live = 0;
+        for (int i = 0; i < segments.length; i++) {
+            offsets[i] = total;
+            total += segments[i].size();
+            live += segments[i].liveCount();
+        }
+        this.size = live;
+    }
+
+    /**
+     * Result of a typo-tolerant search
+     * @param query the query with every misspelled word replaced by its closest spelling in the catalog
+     * @param songs matching songs in catalog order
+     */
+    public record FuzzyMatch(String query, List<Song> songs) {
+        public static final FuzzyMatch NONE = new FuzzyMatch("", List.of());
+    }
+
+    public static CatalogIndex of(CatalogSegment segment) {
+        return new CatalogIndex(new CatalogSegment[]{segment});
+    }
+
+    /**
+     * @return number of live songs
+     */
+    public int size() {
+        return size;
+    }
+
+    public int segmentCount() {
+        return segments.length;
+    }
+
+    List<CatalogSegment> segments() {
+        return List.of(segments);
+    }
+
+    /**
+     * @return one past the highest global ordinal, including deleted songs
+     */
+    public int ordinalLimit() {
+        return segments.length == 0 ? 0 : offsets[segments.length - 1] + segments[segments.length - 1].size();
+    }
+
+    /**
+     * @param ordinal global ordinal, as returned by {@link #match(String)}
+     * @return true if the ordinal refers to a song that hasn't been deleted
+     */
+    public boolean isLive(int ordinal) {
+        int s = segmentOf(ordinal);
+        return !segments[s].isDeleted(ordinal - offsets[s]);
+    }
+
+    public Song song(int ordinal) {
+        int s = segmentOf(ordinal);
+        return segments[s].song(ordinal - offsets[s]);
+    }
+
+    public String albumId(int ordinal) {
+        int s = segmentOf(ordinal);
+        return segments[s].albumId(ordinal - offsets[s]);
+    }
+
+    /**
+     * Find songs whose title, artist and album together contain every token of the query.
+     * The last token also matches as a prefix, so partially typed words still find results.
+     * @param query free text query, e.g. "two trucks lemon demon"
+     * @param limit maximum number of songs to return
+     * @return matching songs in catalog order
+     */
+    public List<Song> search(String query, int limit) {
+        int[] matches = match(query);
+        List<Song> results = new ArrayList<>(Math.min(matches.length, limit));
+        for (int i = 0; i < matches.length && results.size() < limit; i++) {
+            results.add(song(matches[i]));
+        }
+        return results;
+    }
+
+    /**
+     * @param query free text query
+     * @return sorted global ordinals of every live song matching the query
+     */
+    public int[] match(String query) {
+        List<String> queryTokens = CatalogText.tokens(query);
+        if (segments.length == 1) return segments[0].match(queryTokens);
+
+        int[] out = new int[0];
+        for (int s = 0; s < segments.length; s++) {
+            int[] local = segments[s].match(queryTokens);
+            if (local.length == 0) continue;
+            int n = out.length;
+            out = Arrays.copyOf(out, n + local.length);
+            for (int i = 0; i < local.length; i++) out[n + i] = local[i] + offsets[s];
+        }
+        return out;
+    }
+
+    /**
+     * Typo-tolerant search for when {@link #search} finds nothing, e.g. "lemn demon".
+     * Words that don't occur in the catalog are swapped for the most similar catalog tokens by trigram
+     * similarity, and a song matches if it contains, for every word, one of that word's spellings.
+     * @param query free text query
+     * @param threshold minimum trigram similarity for a replacement spelling, 0 to 1
+     * @param limit maximum number of songs to return
+     * @return the corrected query and matching songs, or {@link FuzzyMatch#NONE} if some word has no close spelling
+     */
+    public FuzzyMatch fuzzySearch(String query, double threshold, int limit) {
+        List<String> queryTokens = CatalogText.tokens(query);
+        if (queryTokens.isEmpty()) return FuzzyMatch.NONE;
+
+        List<String[]> terms = new ArrayList<>(queryTokens.size());
+        List<String> corrected = new ArrayList<>(queryTokens.size());
+        for (int i = 0; i < queryTokens.size(); i++) {
+            String token = queryTokens.get(i);
+            boolean prefix = i == queryTokens.size() - 1;
+            if (hasToken(token, prefix)) {
+                terms.add(new String[]{token});
+                corrected.add(token);
+                continue;
+            }
+
+            Map<String, Double> similar = new HashMap<>();
+            for (CatalogSegment segment : segments) segment.similarTokens(token, threshold, similar);
+            if (similar.isEmpty()) return FuzzyMatch.NONE;
+            String[] spellings = similar.entrySet().stream()
+                    .sorted(Map.Entry.<String, Double>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()))
+                    .limit(MAX_ALTERNATIVES)
+                    .map(Map.Entry::getKey)
+                    .toArray(String[]::new);
+            terms.add(spellings);
+            corrected.add(spellings[0]);
+        }
+
+        List<Song> results = new ArrayList<>();
+        for (int s = 0; s < segments.length && results.size() < limit; s++) {
+            int[] local = segments[s].matchAny(terms);
+            for (int i = 0; i < local.length && results.size() < limit; i++) {
+                results.add(segments[s].song(local[i]));
+            }
+        }
+        return new FuzzyMatch(String.join(" ", corrected), results);
+    }
+
+    private boolean hasToken(String token, boolean prefix) {
+        for (CatalogSegment segment : segments) {
+            if (segment.hasToken(token, prefix)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Build the next version of the index
+     * @param changedAlbums songs of every album that was added or changed upstream, keyed by album id
+     * @param removedAlbumIds albums that no longer exist upstream
+     * @return a new index; this one is left untouched
+     */
+    public CatalogIndex applyDelta(Map<String, List<Song>> changedAlbums, Set<String> removedAlbumIds) {
+        if (changedAlbums.isEmpty() && removedAlbumIds.isEmpty()) return this;
+
+        Set<String> superseded = new HashSet<>(changedAlbums.keySet());
+        superseded.addAll(removedAlbumIds);
+
+        List<CatalogSegment> next = new ArrayList<>(segments.length + 1);
+        for (CatalogSegment segment : segments) {
+            CatalogSegment masked = segment.withoutAlbums(superseded);
+            if (masked.liveCount() > 0) next.add(masked);
+        }
+
+        CatalogSegment.Builder delta = new CatalogSegment.Builder();
+        changedAlbums.forEach((albumId, songs) -> songs.forEach(song -> delta.add(song, albumId)));
+        if (delta.size() > 0) next.add(delta.build());
+
+        if (next.size() > MAX_SEGMENTS) {
+            CatalogSegment.Builder compacted = new CatalogSegment.Builder();
+            next.forEach(compacted::addLive);
+            return of(compacted.build());
+        }
+        return new CatalogIndex(next.toArray(new CatalogSegment[0]));
+    }
+
+    private int segmentOf(int ordinal) {
+        int i = Arrays.binarySearch(offsets, ordinal);
+        if (i >= 0) {
+            while (i + 1 < offsets.length && offsets[i + 1] == ordinal) i++; // skip empty segments
+            return i;
+        }
+        return -i - 2;
+    }
+
+    @Override
+    public String toString() {
+        return "CatalogIndex{songs=" + size + ", segments=" + segments.length + '}';
+    }
+}
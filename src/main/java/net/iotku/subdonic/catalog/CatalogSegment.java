@@ -0,0 +1,346 @@
+package net.iotku.subdonic.catalog;
+
+import net.iotku.subdonic.api.v1.dto.Song;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Immutable slice of the catalog with its own inverted index.
+ * Songs are addressed by ordinal; each field is a column of interned Strings and every
+ * title/artist/album token maps to a sorted {@code int[]} posting list of ordinals.
+ * Songs superseded by a later segment are masked by a deletion bitmap rather than removed,
+ * so the arrays can be shared between successive versions of the index.
+ */
+public final class CatalogSegment {
+    private static final int MAX_PREFIX_EXPANSION = 256; // past this, a short prefix like "a" only matches exactly
+
+    private final String[] titles;
+    private final String[] artists;
+    private final String[] albums;
+    private final String[] years;
+    private final String[] ids;
+    private final String[] albumIds;
+    private final String[] tokens; // sorted, for binary search
+    private final int[][] postings; // postings[i] lists ordinals containing tokens[i]
+    private final TrigramIndex trigrams; // over tokens, for typo-tolerant lookups
+    private final BitSet deleted; // null when nothing is deleted, never mutated once published
+    private final int liveCount;
+
+    CatalogSegment(String[] titles, String[] artists, String[] albums, String[] years, String[] ids,
+                   String[] albumIds, String[] tokens, int[][] postings) {
+        this.titles = titles;
+        this.artists = artists;
+        this.albums = albums;
+        this.years = years;
+        this.ids = ids;
+        this.albumIds = albumIds;
+        this.tokens = tokens;
+        this.postings = postings;
+        this.trigrams = TrigramIndex.build(tokens);
+        this.deleted = null;
+        this.liveCount = ids.length;
+    }
+
+    private CatalogSegment(CatalogSegment source, BitSet deleted) {
+        this.titles = source.titles;
+        this.artists = source.artists;
+        this.albums = source.albums;
+        this.years = source.years;
+        this.ids = source.ids;
+        this.albumIds = source.albumIds;
+        this.tokens = source.tokens;
+        this.postings = source.postings;
+        this.trigrams = source.trigrams;
+        this.deleted = deleted;
+        this.liveCount = source.ids.length - deleted.cardinality();
+    }
+
+    /**
+     * @return number of ordinals in this segment, including deleted ones
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * @return number of songs that haven't been deleted
+     */
+    public int liveCount() {
+        return liveCount;
+    }
+
+    public boolean isDeleted(int ordinal) {
+        return deleted != null && deleted.get(ordinal);
+    }
+
+    public Song song(int ordinal) {
+        return new Song(titles[ordinal], artists[ordinal], albums[ordinal], years[ordinal], ids[ordinal]);
+    }
+
+    public String albumId(int ordinal) {
+        return albumIds[ordinal];
+    }
+
+    // Raw columns for CatalogSnapshot, callers must not modify them
+    String[] titles() { return titles; }
+    String[] artists() { return artists; }
+    String[] albums() { return albums; }
+    String[] years() { return years; }
+    String[] ids() { return ids; }
+    String[] albumIds() { return albumIds; }
+    String[] tokens() { return tokens; }
+    int[][] postings() { return postings; }
+
+    /**
+     * Copy-on-write delete of every song listed under the given albums
+     * @param albumIdsToDelete Subsonic album ids that were changed or removed upstream
+     * @return a segment sharing this one's data with those songs masked, or this segment if none matched
+     */
+    public CatalogSegment withoutAlbums(Set<String> albumIdsToDelete) {
+        BitSet mask = null;
+        for (int ordinal = 0; ordinal < ids.length; ordinal++) {
+            if (!isDeleted(ordinal) && albumIdsToDelete.contains(albumIds[ordinal])) {
+                if (mask == null) mask = deleted != null ? (BitSet) deleted.clone() : new BitSet(ids.length);
+                mask.set(ordinal);
+            }
+        }
+        return mask == null ? this : new CatalogSegment(this, mask);
+    }
+
+    /**
+     * Find live songs whose title, artist and album together contain every token of the query.
+     * The last token also matches as a prefix, so partially typed words still find results.
+     * @param queryTokens folded query tokens, see {@link CatalogText#tokens(String)}
+     * @return sorted ordinals of every live song matching the query
+     */
+    public int[] match(List<String> queryTokens) {
+        List<String[]> terms = new ArrayList<>(queryTokens.size());
+        for (String token : queryTokens) terms.add(new String[]{token});
+        return matchAny(terms);
+    }
+
+    /**
+     * Like {@link #match(List)}, but each query word may be satisfied by any of several tokens,
+     * e.g. the spellings a misspelled word was likely meant to be
+     * @param terms per query word, the tokens that satisfy it; the last word's tokens match as prefixes
+     * @return sorted ordinals of every live song matching every word
+     */
+    public int[] matchAny(List<String[]> terms) {
+        if (terms.isEmpty() || liveCount == 0) return new int[0];
+
+        List<int[]> lists = new ArrayList<>(terms.size());
+        for (int i = 0; i < terms.size(); i++) {
+            int[] list = termPostings(terms.get(i), i == terms.size() - 1);
+            if (list.length == 0) return list; // a required token is missing entirely
+            lists.add(list);
+        }
+
+        lists.sort((a, b) -> Integer.compare(a.length, b.length)); // intersect from the rarest token
+        int[] result = lists.getFirst();
+        for (int i = 1; i < lists.size() && result.length > 0; i++) {
+            result = intersect(result, lists.get(i));
+        }
+        return deleted == null ? result : withoutDeleted(result);
+    }
+
+    /**
+     * @param token folded token
+     * @param prefix also accept tokens starting with it
+     * @return true if some song in this segment (deleted or not) contains the token
+     */
+    public boolean hasToken(String token, boolean prefix) {
+        int i = Arrays.binarySearch(tokens, token);
+        if (i >= 0) return true;
+        i = -i - 1;
+        return prefix && i < tokens.length && tokens[i].startsWith(token);
+    }
+
+    /**
+     * Collect tokens of this segment that look like a misspelling of the given word
+     * @param word folded query word
+     * @param threshold minimum trigram similarity, 0 to 1
+     * @param out receives each similar token with its similarity
+     */
+    public void similarTokens(String word, double threshold, Map<String, Double> out) {
+        trigrams.similar(word, threshold, out);
+    }
+
+    private int[] termPostings(String[] alternatives, boolean prefix) {
+        if (alternatives.length == 1) {
+            return prefix ? prefixPostings(alternatives[0]) : exactPostings(alternatives[0]);
+        }
+        BitSet union = new BitSet(size());
+        for (String alternative : alternatives) {
+            for (int ordinal : prefix ? prefixPostings(alternative) : exactPostings(alternative)) union.set(ordinal);
+        }
+        return union.stream().toArray();
+    }
+
+    private int[] exactPostings(String token) {
+        int i = Arrays.binarySearch(tokens, token);
+        return i >= 0 ? postings[i] : new int[0];
+    }
+
+    private int[] prefixPostings(String prefix) {
+        int lo = Arrays.binarySearch(tokens, prefix);
+        if (lo < 0) lo = -lo - 1;
+        int hi = lo;
+        while (hi < tokens.length && tokens[hi].startsWith(prefix)) hi++;
+
+        if (hi - lo == 0) return new int[0];
+        if (hi - lo == 1) return postings[lo];
+        if (hi - lo > MAX_PREFIX_EXPANSION) return exactPostings(prefix);
+
+        BitSet union = new BitSet(size());
+        for (int t = lo; t < hi; t++) {
+            for (int ordinal : postings[t]) union.set(ordinal);
+        }
+        return union.stream().toArray();
+    }
+
+    private int[] withoutDeleted(int[] ordinals) {
+        int[] out = new int[ordinals.length];
+        int n = 0;
+        for (int ordinal : ordinals) {
+            if (!deleted.get(ordinal)) out[n++] = ordinal;
+        }
+        return n == ordinals.length ? ordinals : Arrays.copyOf(out, n);
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] out = new int[Math.min(a.length, b.length)];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) i++;
+            else if (a[i] > b[j]) j++;
+            else {
+                out[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    /**
+     * Accumulates songs for a new CatalogSegment. Not thread safe.
+     */
+    public static final class Builder {
+        private final Map<String, String> interned = new HashMap<>();
+        private final TreeMap<String, IntList> postings = new TreeMap<>();
+        private String[] titles = new String[1024];
+        private String[] artists = new String[1024];
+        private String[] albums = new String[1024];
+        private String[] years = new String[1024];
+        private String[] ids = new String[1024];
+        private String[] albumIds = new String[1024];
+        private int size;
+
+        /**
+         * @param song song to add, its ordinal is the number of songs added before it
+         * @param albumId Subsonic id of the album the song was listed under
+         * @return this builder
+         */
+        public Builder add(Song song, String albumId) {
+            if (size == ids.length) grow();
+            int ordinal = size++;
+            titles[ordinal] = intern(song.title());
+            artists[ordinal] = intern(song.artist());
+            albums[ordinal] = intern(song.album());
+            years[ordinal] = intern(song.year());
+            ids[ordinal] = song.id();
+            albumIds[ordinal] = intern(albumId);
+
+            addTokens(song.title(), ordinal);
+            addTokens(song.artist(), ordinal);
+            addTokens(song.album(), ordinal);
+            return this;
+        }
+
+        /**
+         * Copy the live songs of an existing segment, used when compacting
+         * @param segment segment to copy from
+         * @return this builder
+         */
+        public Builder addLive(CatalogSegment segment) {
+            for (int ordinal = 0; ordinal < segment.size(); ordinal++) {
+                if (!segment.isDeleted(ordinal)) add(segment.song(ordinal), segment.albumId(ordinal));
+            }
+            return this;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public CatalogSegment build() {
+            String[] tokens = new String[postings.size()];
+            int[][] lists = new int[postings.size()][];
+            int i = 0;
+            for (Map.Entry<String, IntList> e : postings.entrySet()) {
+                tokens[i] = e.getKey();
+                lists[i] = e.getValue().toArray();
+                i++;
+            }
+            return new CatalogSegment(Arrays.copyOf(titles, size), Arrays.copyOf(artists, size),
+                    Arrays.copyOf(albums, size), Arrays.copyOf(years, size), Arrays.copyOf(ids, size),
+                    Arrays.copyOf(albumIds, size), tokens, lists);
+        }
+
+        private void addTokens(String field, int ordinal) {
+            for (String token : CatalogText.tokens(field)) {
+                postings.computeIfAbsent(intern(token), ignored -> new IntList()).addUnique(ordinal);
+            }
+        }
+
+        private String intern(String s) {
+            if (s == null) return null;
+            String existing = interned.putIfAbsent(s, s);
+            return existing != null ? existing : s;
+        }
+
+        private void grow() {
+            int capacity = ids.length * 2;
+            titles = Arrays.copyOf(titles, capacity);
+            artists = Arrays.copyOf(artists, capacity);
+            albums = Arrays.copyOf(albums, capacity);
+            years = Arrays.copyOf(years, capacity);
+            ids = Arrays.copyOf(ids, capacity);
+            albumIds = Arrays.copyOf(albumIds, capacity);
+        }
+    }
+
+    /**
+     * Growable primitive int list so postings never box while building.
+     */
+    static final class IntList {
+        private int[] values = new int[4];
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        void addUnique(int value) {
+            if (size > 0 && values[size - 1] == value) return; // token repeated within the same song
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CatalogSegment{songs=" + liveCount + ", deleted=" + (size() - liveCount) + ", tokens=" + tokens.length + '}';
+    }
+}
@@ -0,0 +1,193 @@
+package net.iotku.subdonic.catalog;
+
+import net.iotku.subdonic.api.v1.dto.Song;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Owns the current CatalogIndex. The index is replaced wholesale (never mutated), so readers
+ * can keep using whatever snapshot they grabbed without locking.
+ */
+@Service
+public class CatalogService {
+    private static final Logger log = LoggerFactory.getLogger(CatalogService.class);
+    private final CatalogCrawler crawler;
+    private final boolean enabled;
+    private final Path snapshotPath; // null when snapshots are disabled
+    private final double fuzzyThreshold;
+    private volatile CatalogIndex index = CatalogIndex.EMPTY;
+    private final AtomicReference<Suggestions> suggestions =
+            new AtomicReference<>(new Suggestions(CatalogIndex.EMPTY, SuggestIndex.EMPTY));
+    private final Map<String, Integer> plays = new ConcurrentHashMap<>(); // song id -> local plays, not persisted
+    private volatile boolean playsChanged;
+    private volatile boolean warm;
+    private CatalogState state; // owned by whichever crawl or sync is running, see CatalogSync
+
+    /**
+     * Suggestions and the index they were built from
+     */
+    private record Suggestions(CatalogIndex source, SuggestIndex index) {}
+
+    public CatalogService(CatalogCrawler crawler,
+                          @Value("${catalog.enabled:true}") boolean enabled,
+                          @Value("${catalog.snapshot.path:}") String snapshotPath,
+                          @Value("${catalog.fuzzy.threshold:0.3}") double fuzzyThreshold) {
+        this.crawler = crawler;
+        this.enabled = enabled;
+        this.snapshotPath = snapshotPath.isBlank() ? null : Path.of(snapshotPath);
+        this.fuzzyThreshold = fuzzyThreshold;
+    }
+
+    // NOTE: Load in the background once the webserver is up, searches fall back to Subsonic until it finishes
+    @EventListener(ApplicationReadyEvent.class)
+    private void loadOnStartup() {
+        if (!enabled) {
+            log.info("Catalog index disabled, all searches will go to Subsonic");
+            return;
+        }
+        Thread.ofPlatform().daemon().name("catalog-crawl").start(this::load);
+    }
+
+    /**
+     * Start from the on-disk snapshot when there is a usable one (CatalogSync then catches up with
+     * whatever changed while we were down), otherwise crawl the whole library
+     */
+    synchronized void load() {
+        Optional<CatalogSnapshot.Loaded> snapshot = snapshotPath != null ? CatalogSnapshot.read(snapshotPath) : Optional.empty();
+        if (snapshot.isPresent()) {
+            state = snapshot.get().state();
+            publish(snapshot.get().index());
+        } else {
+            refresh();
+        }
+    }
+
+    /**
+     * Re-crawl the whole library and swap in the new index, keeping the old one if the crawl fails.
+     * Holds the service lock, so it never interleaves with a CatalogSync
+     */
+    public synchronized void refresh() {
+        try {
+            CatalogCrawler.Result result = crawler.crawl();
+            state = result.state();
+            publish(result.index());
+            persist();
+        } catch (IOException e) {
+            log.warn("Catalog crawl failed, keeping {}: {}", index, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Atomically replace the index, readers see either the old or the new one in full.
+     * NOTE: Callers hold the service lock, so publishes never interleave and the newest index's suggestions land last
+     * @param index the next index version
+     */
+    void publish(CatalogIndex index) {
+        this.index = index;
+        this.warm = true;
+        suggestions.set(buildSuggestions(index));
+    }
+
+    /**
+     * Count a play towards the song's autocomplete popularity, picked up by the next suggestion rebuild
+     * @param song the song that was queued
+     */
+    public void recordPlay(Song song) {
+        plays.merge(song.id(), 1, Integer::sum);
+        playsChanged = true;
+    }
+
+    /**
+     * Re-weigh the suggestions by the plays counted since they were built. Rebuilds over the index the current
+     * suggestions came from and only swaps if they're still current, so it never undoes a publish that landed
+     * while it was building. It doesn't take the service lock, which a crawl holds for minutes.
+     */
+    @Scheduled(fixedDelayString = "${catalog.suggest.refresh:300000}", initialDelayString = "${catalog.suggest.refresh:300000}")
+    private void refreshSuggestions() {
+        if (!playsChanged || !warm) return;
+        Suggestions current = suggestions.get();
+        Suggestions next = buildSuggestions(current.source());
+        if (!suggestions.compareAndSet(current, next)) log.debug("Suggestions were replaced by a publish, dropping the refresh");
+    }
+
+    private Suggestions buildSuggestions(CatalogIndex source) {
+        playsChanged = false;
+        long start = System.nanoTime();
+        SuggestIndex next = SuggestIndex.build(source, plays);
+        log.debug("Built {} in {} ms", next, (System.nanoTime() - start) / 1_000_000);
+        return new Suggestions(source, next);
+    }
+
+    /**
+     * @return true once a crawl has completed and searches can be answered locally
+     */
+    public boolean isWarm() {
+        return warm;
+    }
+
+    /**
+     * Write the current index to the snapshot file, failures only cost a full crawl on the next restart
+     */
+    synchronized void persist() {
+        if (snapshotPath == null || state == null) return;
+        long start = System.nanoTime();
+        try {
+            CatalogSnapshot.write(index, state, snapshotPath);
+            log.info("Wrote catalog snapshot {} in {} ms", snapshotPath, (System.nanoTime() - start) / 1_000_000);
+        } catch (IOException e) {
+            log.warn("Failed to write catalog snapshot {}: {}", snapshotPath, e.getMessage());
+        }
+    }
+
+    CatalogState state() {
+        return state;
+    }
+
+    public CatalogIndex index() {
+        return index;
+    }
+
+    /**
+     * @param query free text query
+     * @param limit maximum number of songs to return
+     * @return matching songs from the local index
+     */
+    public List<Song> search(String query, int limit) {
+        return index.search(query, limit);
+    }
+
+    /**
+     * Typo-tolerant fallback for queries {@link #search} finds nothing for
+     * @param query free text query, possibly misspelled
+     * @param limit maximum number of songs to return
+     * @return the corrected query and its matching songs from the local index
+     */
+    public CatalogIndex.FuzzyMatch fuzzySearch(String query, int limit) {
+        return index.fuzzySearch(query, fuzzyThreshold, limit);
+    }
+
+    /**
+     * Autocomplete suggestions from the in-memory prefix index, never touches Subsonic
+     * @param prefix what the user has typed so far
+     * @param limit maximum number of suggestions
+     * @return the most popular matching artists and songs, empty until the catalog is warm
+     */
+    public List<SuggestIndex.Suggestion> suggest(String prefix, int limit) {
+        return suggestions.get().index().suggest(prefix, limit);
+    }
+}
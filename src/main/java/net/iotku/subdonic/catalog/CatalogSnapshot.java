@@ -0,0 +1,283 @@
+package net.iotku.subdonic.catalog;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Versioned on-disk image of a CatalogIndex and the CatalogState it reflects, so a restart can skip the full crawl.
+ * <pre>
+ * header: int magic, int version, long crc32(body), long bodyLength
+ * body:   long lastModified
+ *         int stringCount, then per string: int byteLength, UTF-8 bytes
+ *         int songCount, then per song: 6 string refs (title, artist, album, year, id, albumId)
+ *         int tokenCount, then per token: string ref, int postingCount, int[] ordinals
+ *         int albumCount, then per album: string refs (id, artistId, created), int songCount, long duration
+ *         int artistCount, then per artist: string ref (id), int albumCount
+ * </pre>
+ * String refs index into the string table, -1 means null. Everything is big-endian.
+ * Reading maps the file, checks the CRC over the whole body and then decodes all of it onto the heap, nothing is
+ * served from the mapping afterwards. Bodies are limited to 2 GiB, what a single mapped buffer can hold.
+ */
+public final class CatalogSnapshot {
+    private static final Logger log = LoggerFactory.getLogger(CatalogSnapshot.class);
+    static final int MAGIC = 0x53444354; // "SDCT"
+    static final int VERSION = 1;
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 8;
+
+    private CatalogSnapshot() {}
+
+    /**
+     * A snapshot decoded back into memory
+     */
+    record Loaded(CatalogIndex index, CatalogState state) {}
+
+    /**
+     * Write a snapshot, replacing any previous one atomically
+     * @param index index to persist, compacted into a single segment on the way out
+     * @param state library state the index reflects
+     * @param path file to write
+     * @throws IOException if the snapshot can't be written, any previous snapshot is left in place
+     */
+    static void write(CatalogIndex index, CatalogState state, Path path) throws IOException {
+        CatalogSegment segment = compact(index);
+        Map<String, Integer> strings = new HashMap<>();
+        List<String> table = new ArrayList<>();
+        for (String[] column : List.of(segment.titles(), segment.artists(), segment.albums(), segment.years(),
+                segment.ids(), segment.albumIds(), segment.tokens())) {
+            for (String s : column) ref(s, strings, table);
+        }
+        for (AlbumRef album : state.albums.values()) {
+            ref(album.id(), strings, table);
+            ref(album.artistId(), strings, table);
+            ref(album.created(), strings, table);
+        }
+        state.artistAlbumCounts.keySet().forEach(id -> ref(id, strings, table));
+
+        if (path.getParent() != null) Files.createDirectories(path.getParent());
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.position(HEADER_BYTES);
+            CRC32 crc = new CRC32();
+            CountingOutputStream counter = new CountingOutputStream(Channels.newOutputStream(channel));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(counter, crc), 1 << 16));
+
+            out.writeLong(state.lastModified);
+            out.writeInt(table.size());
+            for (String s : table) {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+
+            out.writeInt(segment.size());
+            for (int i = 0; i < segment.size(); i++) {
+                out.writeInt(ref(segment.titles()[i], strings, table));
+                out.writeInt(ref(segment.artists()[i], strings, table));
+                out.writeInt(ref(segment.albums()[i], strings, table));
+                out.writeInt(ref(segment.years()[i], strings, table));
+                out.writeInt(ref(segment.ids()[i], strings, table));
+                out.writeInt(ref(segment.albumIds()[i], strings, table));
+            }
+
+            out.writeInt(segment.tokens().length);
+            for (int t = 0; t < segment.tokens().length; t++) {
+                out.writeInt(ref(segment.tokens()[t], strings, table));
+                int[] postings = segment.postings()[t];
+                out.writeInt(postings.length);
+                for (int ordinal : postings) out.writeInt(ordinal);
+            }
+
+            out.writeInt(state.albums.size());
+            for (AlbumRef album : state.albums.values()) {
+                out.writeInt(ref(album.id(), strings, table));
+                out.writeInt(ref(album.artistId(), strings, table));
+                out.writeInt(ref(album.created(), strings, table));
+                out.writeInt(album.songCount());
+                out.writeLong(album.duration());
+            }
+
+            out.writeInt(state.artistAlbumCounts.size());
+            for (Map.Entry<String, Integer> artist : state.artistAlbumCounts.entrySet()) {
+                out.writeInt(ref(artist.getKey(), strings, table));
+                out.writeInt(artist.getValue());
+            }
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES)
+                    .putInt(MAGIC).putInt(VERSION).putLong(crc.getValue()).putLong(counter.count).flip();
+            while (header.hasRemaining()) channel.write(header, header.position());
+            channel.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Load a snapshot. Missing, truncated, corrupted or old-version files are reported as empty so the
+     * caller falls back to a full crawl.
+     * @param path file to read
+     * @return the decoded index and state, or empty if the snapshot can't be used
+     */
+    static Optional<Loaded> read(Path path) {
+        if (!Files.isRegularFile(path)) return Optional.empty();
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_BYTES) {
+                log.warn("Catalog snapshot {} is truncated, ignoring it", path);
+                return Optional.empty();
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {}
+            header.flip();
+            int magic = header.getInt();
+            int version = header.getInt();
+            long checksum = header.getLong();
+            long bodyLength = header.getLong();
+            if (magic != MAGIC || version != VERSION) {
+                log.info("Catalog snapshot {} has format {}/{}, expected {}/{}, ignoring it", path,
+                        Integer.toHexString(magic), version, Integer.toHexString(MAGIC), VERSION);
+                return Optional.empty();
+            }
+            if (bodyLength != channel.size() - HEADER_BYTES) {
+                log.warn("Catalog snapshot {} is truncated, ignoring it", path);
+                return Optional.empty();
+            }
+            if (bodyLength > Integer.MAX_VALUE) {
+                log.warn("Catalog snapshot {} is {} bytes, too large to map, ignoring it", path, channel.size());
+                return Optional.empty();
+            }
+
+            ByteBuffer body = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES, bodyLength);
+            CRC32 crc = new CRC32();
+            crc.update(body.duplicate());
+            if (crc.getValue() != checksum) {
+                log.warn("Catalog snapshot {} failed its checksum, ignoring it", path);
+                return Optional.empty();
+            }
+
+            Loaded loaded = decode(body);
+            log.info("Loaded {} from snapshot {} in {} ms", loaded.index(), path, (System.nanoTime() - start) / 1_000_000);
+            return Optional.of(loaded);
+        } catch (IOException | RuntimeException e) { // RuntimeException covers buffer underflows from a bad body
+            log.warn("Catalog snapshot {} could not be read, ignoring it: {}", path, e.toString());
+            return Optional.empty();
+        }
+    }
+
+    private static Loaded decode(ByteBuffer body) {
+        CatalogState state = new CatalogState();
+        state.lastModified = body.getLong();
+
+        String[] table = new String[body.getInt()];
+        for (int i = 0; i < table.length; i++) {
+            byte[] bytes = new byte[body.getInt()];
+            body.get(bytes);
+            table[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        int songs = body.getInt();
+        String[] titles = new String[songs], artists = new String[songs], albums = new String[songs],
+                years = new String[songs], ids = new String[songs], albumIds = new String[songs];
+        IntBuffer records = body.asIntBuffer();
+        int[] record = new int[6];
+        for (int i = 0; i < songs; i++) {
+            records.get(record);
+            titles[i] = str(table, record[0]);
+            artists[i] = str(table, record[1]);
+            albums[i] = str(table, record[2]);
+            years[i] = str(table, record[3]);
+            ids[i] = str(table, record[4]);
+            albumIds[i] = str(table, record[5]);
+        }
+        body.position(body.position() + songs * 6 * Integer.BYTES);
+
+        String[] tokens = new String[body.getInt()];
+        int[][] postings = new int[tokens.length][];
+        for (int t = 0; t < tokens.length; t++) {
+            tokens[t] = str(table, body.getInt());
+            postings[t] = new int[body.getInt()];
+            body.asIntBuffer().get(postings[t]); // bulk copy straight out of the mapping
+            body.position(body.position() + postings[t].length * Integer.BYTES);
+        }
+
+        int albumCount = body.getInt();
+        for (int i = 0; i < albumCount; i++) {
+            String id = str(table, body.getInt());
+            String artistId = str(table, body.getInt());
+            String created = str(table, body.getInt());
+            state.albums.put(id, new AlbumRef(id, artistId, body.getInt(), body.getLong(), created));
+        }
+
+        int artistCount = body.getInt();
+        for (int i = 0; i < artistCount; i++) {
+            state.artistAlbumCounts.put(str(table, body.getInt()), body.getInt());
+        }
+
+        CatalogSegment segment = new CatalogSegment(titles, artists, albums, years, ids, albumIds, tokens, postings);
+        return new Loaded(CatalogIndex.of(segment), state);
+    }
+
+    private static CatalogSegment compact(CatalogIndex index) {
+        List<CatalogSegment> segments = index.segments();
+        if (segments.size() == 1 && segments.getFirst().liveCount() == segments.getFirst().size()) {
+            return segments.getFirst();
+        }
+        CatalogSegment.Builder builder = new CatalogSegment.Builder();
+        segments.forEach(builder::addLive);
+        return builder.build();
+    }
+
+    private static int ref(String s, Map<String, Integer> strings, List<String> table) {
+        if (s == null) return -1;
+        return strings.computeIfAbsent(s, key -> {
+            table.add(key);
+            return table.size() - 1;
+        });
+    }
+
+    private static String str(String[] table, int ref) {
+        return ref < 0 ? null : table[ref];
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
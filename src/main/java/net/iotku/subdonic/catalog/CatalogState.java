@@ -0,0 +1,15 @@
+package net.iotku.subdonic.catalog;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * What the catalog knows about the upstream library, used to work out what changed since the last sync.
+ * Only ever touched by one crawl or sync at a time.
+ */
+final class CatalogState {
+    long lastModified; // getIndexes lastModified the index reflects
+    long lastSync = System.currentTimeMillis(); // when the index was last confirmed up to date
+    final Map<String, Integer> artistAlbumCounts = new HashMap<>();
+    final Map<String, AlbumRef> albums = new HashMap<>();
+}
@@ -0,0 +1,171 @@
+package net.iotku.subdonic.catalog;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import net.iotku.subdonic.api.v1.dto.Song;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Keeps the catalog index fresh without re-crawling the library.
+ * Polls getScanStatus and getIndexes?ifModifiedSince, and when the library changed fetches only the
+ * artists whose album counts moved plus the newest albums, then publishes a delta on top of the current index.
+ */
+@Component
+public class CatalogSync {
+    private static final Logger log = LoggerFactory.getLogger(CatalogSync.class);
+    private static final int NEWEST_ALBUMS = 50; // catches re-tagged or replaced albums that don't change counts
+    private final CatalogService catalog;
+    private final CatalogCrawler crawler;
+    private final Timer lag;
+    private final DistributionSummary deltaAlbums;
+    private final DistributionSummary deltaSongs;
+
+    public CatalogSync(CatalogService catalog, CatalogCrawler crawler, MeterRegistry registry) {
+        this.catalog = catalog;
+        this.crawler = crawler;
+        this.lag = Timer.builder("catalog.sync.lag")
+                .description("Time between a library change upstream and it being searchable")
+                .register(registry);
+        this.deltaAlbums = DistributionSummary.builder("catalog.sync.delta.albums")
+                .description("Albums added, changed or removed per applied delta")
+                .register(registry);
+        this.deltaSongs = DistributionSummary.builder("catalog.sync.delta.songs")
+                .description("Songs indexed per applied delta")
+                .register(registry);
+        Gauge.builder("catalog.songs", catalog, c -> c.index().size())
+                .description("Songs in the local catalog index")
+                .register(registry);
+        Gauge.builder("catalog.segments", catalog, c -> c.index().segmentCount())
+                .register(registry);
+        Gauge.builder("catalog.sync.age", catalog, c -> c.state() == null ? Double.NaN
+                        : (System.currentTimeMillis() - c.state().lastSync) / 1000.0)
+                .description("Seconds since the index was last confirmed up to date")
+                .baseUnit("seconds")
+                .register(registry);
+    }
+
+    @Scheduled(fixedDelayString = "${catalog.sync.interval:60000}", initialDelayString = "${catalog.sync.initial-delay:10000}")
+    private void scheduledSync() {
+        try {
+            sync();
+        } catch (IOException e) {
+            log.warn("Catalog sync failed, will retry: {}", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Bring the index up to date with the library, does nothing until the initial crawl has finished.
+     * Subsonic is asked what changed without holding the catalog lock, so searches and the suggestion refresh aren't
+     * held up by slow requests; the delta is applied under the lock, and dropped if a crawl or another sync replaced
+     * the state it was worked out against.
+     * NOTE: Only albums of artists whose album count moved and the newest albums are compared, so songs added to or
+     * re-tagged on an older album of an otherwise unchanged artist are missed until the next full crawl.
+     * @return true if a delta was published
+     * @throws IOException if a Subsonic request fails, the published index is left untouched
+     * @throws InterruptedException if the sync is interrupted
+     */
+    public boolean sync() throws IOException, InterruptedException {
+        CatalogState state;
+        long known;
+        synchronized (catalog) {
+            state = catalog.state();
+            if (state == null || !catalog.isWarm()) return false;
+            known = state.lastModified;
+        }
+
+        if (crawler.isScanning()) {
+            return false; // wait for the scan to finish rather than apply a half-scanned library
+        }
+
+        long lastModified = crawler.indexesLastModified(known);
+        if (lastModified <= known) {
+            synchronized (catalog) {
+                if (catalog.state() == state) state.lastSync = System.currentTimeMillis();
+            }
+            return false;
+        }
+
+        Map<String, Integer> knownCounts;
+        Map<String, AlbumRef> knownAlbums;
+        synchronized (catalog) { // copied so the requests below can compare against them unlocked
+            knownCounts = new HashMap<>(state.artistAlbumCounts);
+            knownAlbums = new HashMap<>(state.albums);
+        }
+
+        // Artists that appeared, disappeared or whose album count moved
+        Map<String, Integer> artists = crawler.listArtists();
+        Set<String> changedArtists = new HashSet<>();
+        artists.forEach((id, count) -> {
+            if (!Objects.equals(knownCounts.get(id), count)) changedArtists.add(id);
+        });
+        for (String id : knownCounts.keySet()) {
+            if (!artists.containsKey(id)) changedArtists.add(id);
+        }
+
+        Map<String, AlbumRef> changedAlbums = new LinkedHashMap<>();
+        Set<String> removedAlbums = new HashSet<>();
+        for (String artistId : changedArtists) {
+            List<AlbumRef> current = artists.containsKey(artistId) ? crawler.listArtistAlbums(artistId) : List.of();
+            Set<String> currentIds = new HashSet<>();
+            for (AlbumRef album : current) {
+                currentIds.add(album.id());
+                if (!album.equals(knownAlbums.get(album.id()))) changedAlbums.put(album.id(), album);
+            }
+            for (AlbumRef album : knownAlbums.values()) {
+                if (artistId.equals(album.artistId()) && !currentIds.contains(album.id())) removedAlbums.add(album.id());
+            }
+        }
+        for (AlbumRef album : crawler.listAlbums("newest", NEWEST_ALBUMS, 0)) {
+            if (!album.equals(knownAlbums.get(album.id()))) changedAlbums.put(album.id(), album);
+        }
+
+        Map<String, List<Song>> songs = crawler.fetchAlbums(changedAlbums.values());
+
+        CatalogIndex next;
+        long synced;
+        synchronized (catalog) {
+            if (catalog.state() != state || state.lastModified != known) {
+                log.debug("Catalog changed while syncing, dropping the delta");
+                return false;
+            }
+            next = catalog.index().applyDelta(songs, removedAlbums);
+            catalog.publish(next);
+
+            // Only advance the state once the delta is live, so a failed sync is retried in full
+            state.lastModified = lastModified;
+            synced = System.currentTimeMillis();
+            state.lastSync = synced;
+            state.artistAlbumCounts.clear();
+            state.artistAlbumCounts.putAll(artists);
+            removedAlbums.forEach(state.albums::remove);
+            state.albums.putAll(changedAlbums);
+
+            catalog.persist();
+        }
+
+        int songCount = songs.values().stream().mapToInt(List::size).sum();
+        lag.record(Duration.ofMillis(Math.max(0, synced - lastModified)));
+        deltaAlbums.record(changedAlbums.size() + removedAlbums.size());
+        deltaSongs.record(songCount);
+        log.info("Catalog sync applied {} changed and {} removed albums ({} songs), now {}",
+                changedAlbums.size(), removedAlbums.size(), songCount, next);
+        return true;
+    }
+}
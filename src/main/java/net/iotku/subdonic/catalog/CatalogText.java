@@ -0,0 +1,54 @@
+package net.iotku.subdonic.catalog;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Text normalization shared by everything that indexes or queries the catalog,
+ * so "Beyoncé" and "beyonce" end up as the same token.
+ */
+public final class CatalogText {
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+
+    private CatalogText() {}
+
+    /**
+     * Case-fold and strip accents
+     * @param s text to fold, may be null
+     * @return folded text, or "" for null
+     */
+    public static String fold(String s) {
+        if (s == null) return "";
+        String lower = s.toLowerCase(Locale.ROOT);
+        for (int i = 0; i < lower.length(); i++) {
+            if (lower.charAt(i) > 0x7F) { // only pay for decomposition when there's something to strip
+                return COMBINING_MARKS.matcher(Normalizer.normalize(lower, Normalizer.Form.NFD)).replaceAll("");
+            }
+        }
+        return lower;
+    }
+
+    /**
+     * Split text into folded alphanumeric tokens
+     * @param s text to tokenize, may be null
+     * @return tokens in order of appearance (duplicates kept)
+     */
+    public static List<String> tokens(String s) {
+        String folded = fold(s);
+        List<String> tokens = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= folded.length(); i++) {
+            boolean word = i < folded.length() && Character.isLetterOrDigit(folded.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                tokens.add(folded.substring(start, i));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+}
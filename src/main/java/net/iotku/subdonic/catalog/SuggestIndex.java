@@ -0,0 +1,190 @@
+package net.iotku.subdonic.catalog;
+
+import net.iotku.subdonic.api.v1.dto.Song;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Immutable prefix index for search-as-you-type suggestions over artists and song titles.
+ * Keys are normalized strings in one sorted array, so every key starting with a prefix is a contiguous range
+ * found by binary search. A max segment tree over key weights then pulls the N most popular entries out of
+ * that range without scanning it, which keeps one-letter prefixes as cheap as long ones.
+ */
+public final class SuggestIndex {
+    public static final SuggestIndex EMPTY = build(CatalogIndex.EMPTY, Map.of());
+    public static final int MAX_LENGTH = 100; // Discord's limit for autocomplete choice names and values
+    private static final int PLAY_WEIGHT = 10; // one local play counts as much as ten copies in the library
+
+    private final String[] keys; // sorted, normalized
+    private final int[] targets; // suggestion each key points at
+    private final int[] weights; // popularity of each key's suggestion
+    private final int[] tree; // max segment tree over weights, storing key positions, leaves start at keys.length
+    private final String[] labels;
+    private final String[] values;
+
+    /**
+     * @param label text to show, e.g. "Lemon Demon - Two Trucks"
+     * @param value query to run when the suggestion is picked
+     */
+    public record Suggestion(String label, String value) {}
+
+    private SuggestIndex(String[] keys, int[] targets, int[] weights, String[] labels, String[] values) {
+        this.keys = keys;
+        this.targets = targets;
+        this.weights = weights;
+        this.labels = labels;
+        this.values = values;
+        int n = keys.length;
+        this.tree = new int[2 * n];
+        for (int i = 0; i < n; i++) tree[n + i] = i;
+        for (int i = n - 1; i > 0; i--) tree[i] = better(tree[2 * i], tree[2 * i + 1]);
+    }
+
+    /**
+     * Build suggestions for every live song and artist in the index.
+     * An artist's popularity is its song count, a song's is how many albums carry it; both go up with local plays.
+     * @param index catalog to suggest from
+     * @param plays local play counts keyed by song id
+     * @return a new suggestion index
+     */
+    public static SuggestIndex build(CatalogIndex index, Map<String, Integer> plays) {
+        Map<String, Integer> ids = new HashMap<>(); // label -> suggestion id, merges duplicates
+        List<String> labels = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        List<int[]> weight = new ArrayList<>(); // boxed counter per suggestion
+        List<Key> keys = new ArrayList<>();
+
+        for (int ordinal = 0; ordinal < index.ordinalLimit(); ordinal++) {
+            if (!index.isLive(ordinal)) continue;
+            Song song = index.song(ordinal);
+            int played = plays.getOrDefault(song.id(), 0) * PLAY_WEIGHT;
+
+            String artist = normalize(song.artist());
+            if (!artist.isEmpty()) {
+                int id = suggestion(song.artist(), song.artist(), ids, labels, values, weight, keys, artist);
+                weight.get(id)[0] += 1 + played;
+            }
+
+            String title = normalize(song.title());
+            if (!title.isEmpty()) {
+                String label = song.artist() == null ? song.title() : song.artist() + " - " + song.title();
+                int id = suggestion(label, label, ids, labels, values, weight, keys, title);
+                if (!artist.isEmpty() && weight.get(id)[0] == 0) {
+                    keys.add(new Key(artist + " " + title, id)); // so "lemon demon two" finds Two Trucks too
+                }
+                weight.get(id)[0] += 1 + played;
+            }
+        }
+
+        keys.sort(Comparator.comparing(Key::key));
+        String[] sortedKeys = new String[keys.size()];
+        int[] targets = new int[keys.size()];
+        int[] weights = new int[keys.size()];
+        for (int i = 0; i < keys.size(); i++) {
+            sortedKeys[i] = keys.get(i).key();
+            targets[i] = keys.get(i).target();
+            weights[i] = weight.get(targets[i])[0];
+        }
+        return new SuggestIndex(sortedKeys, targets, weights, labels.toArray(new String[0]), values.toArray(new String[0]));
+    }
+
+    private record Key(String key, int target) {}
+
+    private static int suggestion(String label, String value, Map<String, Integer> ids, List<String> labels,
+                                  List<String> values, List<int[]> weight, List<Key> keys, String key) {
+        Integer existing = ids.get(label);
+        if (existing != null) return existing;
+        int id = labels.size();
+        ids.put(label, id);
+        labels.add(truncate(label));
+        values.add(truncate(value));
+        weight.add(new int[1]);
+        keys.add(new Key(key, id));
+        return id;
+    }
+
+    /**
+     * @return number of distinct suggestions
+     */
+    public int size() {
+        return labels.length;
+    }
+
+    /**
+     * Most popular suggestions whose artist, title or "artist title" starts with the given text
+     * @param prefix what the user has typed so far, may be empty
+     * @param limit maximum number of suggestions
+     * @return suggestions, most popular first
+     */
+    public List<Suggestion> suggest(String prefix, int limit) {
+        if (keys.length == 0 || limit <= 0) return List.of();
+        String normalized = normalize(prefix);
+        int lo = lowerBound(normalized);
+        int hi = lowerBound(normalized + Character.MAX_VALUE);
+        if (lo >= hi) return List.of();
+
+        // Best-first over sub-ranges: pop the range whose max is highest, emit that key, split around it
+        PriorityQueue<int[]> ranges = new PriorityQueue<>((a, b) -> Long.compare(order(b[2]), order(a[2])));
+        ranges.add(new int[]{lo, hi, rangeMax(lo, hi)});
+        List<Suggestion> out = new ArrayList<>(limit);
+        Set<Integer> seen = new HashSet<>();
+        while (!ranges.isEmpty() && out.size() < limit) {
+            int[] range = ranges.poll();
+            int best = range[2];
+            if (seen.add(targets[best])) out.add(new Suggestion(labels[targets[best]], values[targets[best]]));
+            if (range[0] < best) ranges.add(new int[]{range[0], best, rangeMax(range[0], best)});
+            if (best + 1 < range[1]) ranges.add(new int[]{best + 1, range[1], rangeMax(best + 1, range[1])});
+        }
+        return out;
+    }
+
+    /**
+     * Normalize text the same way keys are, folded tokens joined by single spaces
+     * @param s raw text, may be null
+     * @return normalized text
+     */
+    static String normalize(String s) {
+        return String.join(" ", CatalogText.tokens(s));
+    }
+
+    private int lowerBound(String key) {
+        int i = Arrays.binarySearch(keys, key);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    // Position of the highest weight in [lo, hi), ties go to the earlier (alphabetically first) key
+    private int rangeMax(int lo, int hi) {
+        int n = keys.length;
+        int best = lo;
+        for (lo += n, hi += n; lo < hi; lo >>= 1, hi >>= 1) {
+            if ((lo & 1) == 1) best = better(best, tree[lo++]);
+            if ((hi & 1) == 1) best = better(best, tree[--hi]);
+        }
+        return best;
+    }
+
+    private int better(int a, int b) {
+        return order(a) >= order(b) ? a : b;
+    }
+
+    private long order(int position) {
+        return ((long) weights[position] << 32) - position; // heavier first, then earlier
+    }
+
+    private static String truncate(String s) {
+        return s.length() <= MAX_LENGTH ? s : s.substring(0, MAX_LENGTH - 1) + "…";
+    }
+
+    @Override
+    public String toString() {
+        return "SuggestIndex{suggestions=" + labels.length + ", keys=" + keys.length + '}';
+    }
+}
@@ -0,0 +1,117 @@
+package net.iotku.subdonic.catalog;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Trigram index over a segment's token vocabulary, used to find the tokens a misspelled query word
+ * was probably meant to be ("lemn" to "lemon").
+ * Tokens are padded like pg_trgm ("  lemon ") so the first letters weigh more, and compared by the
+ * Jaccard similarity of their trigram sets. Trigrams are stored as a sorted {@code long[]} with CSR-style
+ * posting ranges into a single {@code int[]} of token ids.
+ */
+final class TrigramIndex {
+    static final int MIN_TOKEN_LENGTH = 3; // shorter words have too few trigrams to say anything useful
+
+    private final String[] tokens;
+    private final int[] gramCounts; // distinct trigrams per token
+    private final long[] grams; // sorted, distinct
+    private final int[] starts; // token ids for grams[i] are ids[starts[i] until starts[i + 1]]
+    private final int[] ids;
+
+    private TrigramIndex(String[] tokens, int[] gramCounts, long[] grams, int[] starts, int[] ids) {
+        this.tokens = tokens;
+        this.gramCounts = gramCounts;
+        this.grams = grams;
+        this.starts = starts;
+        this.ids = ids;
+    }
+
+    /**
+     * @param tokens the segment's vocabulary, a token's position is its id
+     * @return index over every token
+     */
+    static TrigramIndex build(String[] tokens) {
+        Map<Long, CatalogSegment.IntList> byGram = new HashMap<>();
+        int[] gramCounts = new int[tokens.length];
+        for (int id = 0; id < tokens.length; id++) {
+            long[] tokenGrams = trigrams(tokens[id]);
+            gramCounts[id] = tokenGrams.length;
+            for (long gram : tokenGrams) {
+                byGram.computeIfAbsent(gram, ignored -> new CatalogSegment.IntList()).addUnique(id);
+            }
+        }
+
+        long[] grams = new long[byGram.size()];
+        int i = 0;
+        for (long gram : byGram.keySet()) grams[i++] = gram;
+        Arrays.sort(grams);
+
+        int[] starts = new int[grams.length + 1];
+        int total = 0;
+        for (int g = 0; g < grams.length; g++) {
+            starts[g] = total;
+            total += byGram.get(grams[g]).size();
+        }
+        starts[grams.length] = total;
+        int[] ids = new int[total];
+        for (int g = 0; g < grams.length; g++) {
+            int[] list = byGram.get(grams[g]).toArray();
+            System.arraycopy(list, 0, ids, starts[g], list.length);
+        }
+        return new TrigramIndex(tokens, gramCounts, grams, starts, ids);
+    }
+
+    /**
+     * Collect vocabulary tokens similar to a query word
+     * @param word folded query word
+     * @param threshold minimum Jaccard similarity, 0 to 1
+     * @param out receives each similar token with its similarity, keeping the higher value if already present
+     */
+    void similar(String word, double threshold, Map<String, Double> out) {
+        if (word.length() < MIN_TOKEN_LENGTH) return;
+        long[] queryGrams = trigrams(word);
+
+        // Count trigrams shared with each token, touching only tokens that share at least one
+        int[] shared = new int[tokens.length];
+        int[] touched = new int[Math.min(tokens.length, 1024)];
+        int touchedCount = 0;
+        for (long gram : queryGrams) {
+            int g = Arrays.binarySearch(grams, gram);
+            if (g < 0) continue;
+            for (int p = starts[g]; p < starts[g + 1]; p++) {
+                int id = ids[p];
+                if (shared[id]++ == 0) {
+                    if (touchedCount == touched.length) touched = Arrays.copyOf(touched, touchedCount * 2);
+                    touched[touchedCount++] = id;
+                }
+            }
+        }
+
+        for (int i = 0; i < touchedCount; i++) {
+            int id = touched[i];
+            int both = shared[id];
+            double similarity = (double) both / (queryGrams.length + gramCounts[id] - both);
+            if (similarity >= threshold) out.merge(tokens[id], similarity, Math::max);
+        }
+    }
+
+    /**
+     * @param word folded token
+     * @return its distinct padded trigrams, each packed as three 16-bit chars
+     */
+    static long[] trigrams(String word) {
+        String padded = "  " + word + " ";
+        long[] out = new long[padded.length() - 2];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = ((long) padded.charAt(i) << 32) | ((long) padded.charAt(i + 1) << 16) | padded.charAt(i + 2);
+        }
+        Arrays.sort(out);
+        int n = 0;
+        for (int i = 0; i < out.length; i++) {
+            if (i == 0 || out[i] != out[i - 1]) out[n++] = out[i];
+        }
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+}
@@ -0,0 +1,403 @@
+package net.iotku.subdonic.subsonic;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Disk cache of raw media streamed from Subsonic, so songs that are played again don't cross the network again.
+ * Entries are keyed by song and transcode, see {@link #key}, since each format and bitrate is a different file.
+ * Both the /stream relay and the bot's own playback read from and write through to it.
+ * A song is downloaded into a {@code .part} file while it is relayed, and renamed to {@code .media} once complete.
+ * A download cut short keeps its part file, which carries on from where it stopped the next time the song is asked
+ * for only if it holds the original file; transcodes aren't byte-identical between runs and are downloaded again.
+ * Part and complete files share one byte budget, least recently used files are evicted first.
+ */
+@Component
+public class MediaCache {
+    private static final Logger log = LoggerFactory.getLogger(MediaCache.class);
+    private static final int MAGIC = 0x534d4331; // "SMC1"
+    private static final String MEDIA = ".media";
+    private static final String PART = ".part";
+    private final Path dir; // null when disabled
+    private final long maxBytes;
+    private final LinkedHashMap<String, Long> files = new LinkedHashMap<>(16, 0.75f, true); // file name -> bytes, LRU
+    private final Set<String> downloading = ConcurrentHashMap.newKeySet(); // song ids with an open Download
+    private long totalBytes;
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter savedBytes;
+    private final Counter evictions;
+
+    @Autowired
+    public MediaCache(@Value("${stream.cache.path:}") String path,
+                      @Value("${stream.cache.max-bytes:10737418240}") long maxBytes,
+                      MeterRegistry registry) {
+        this(path.isBlank() ? null : Path.of(path), maxBytes, registry);
+    }
+
+    MediaCache(Path dir, long maxBytes, MeterRegistry registry) {
+        this.maxBytes = maxBytes;
+        this.hits = Counter.builder("stream.cache.requests").tag("result", "hit").register(registry);
+        this.misses = Counter.builder("stream.cache.requests").tag("result", "miss").register(registry);
+        this.savedBytes = Counter.builder("stream.cache.saved").baseUnit("bytes")
+                .description("Bytes served from disk instead of Subsonic")
+                .register(registry);
+        this.evictions = Counter.builder("stream.cache.evictions").register(registry);
+        Gauge.builder("stream.cache.size", this, MediaCache::sizeBytes).baseUnit("bytes").register(registry);
+        this.dir = dir != null && index(dir) ? dir : null;
+    }
+
+    /**
+     * A complete cached song, the caller must close it
+     * @param channel the open cache file
+     * @param offset where the media starts in the file
+     * @param length media length in bytes
+     * @param contentType the content type Subsonic sent
+     */
+    public record Cached(FileChannel channel, long offset, long length, String contentType) implements Closeable {
+        /**
+         * Send part of the media, e.g. for a Range request
+         * @param start first byte of the media to send
+         * @param count how many bytes to send
+         * @param target where to send them
+         */
+        public void transferTo(long start, long count, WritableByteChannel target) throws IOException {
+            long position = offset + start;
+            long end = position + count;
+            while (position < end) {
+                long sent = channel.transferTo(position, end - position, target);
+                if (sent <= 0) throw new IOException("cache file ended early");
+                position += sent;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Exclusive write access to one song's part file, the caller must close it
+     */
+    public final class Download implements Closeable {
+        private final String id;
+        private final String name; // file name without extension
+        private FileChannel part;
+        private long dataOffset;
+        private String contentType;
+        private boolean completed;
+
+        private Download(String id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        private void resume() throws IOException {
+            Path path = dir.resolve(name + PART);
+            if (!Files.exists(path)) return;
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                contentType = readHeader(channel);
+                dataOffset = channel.position();
+                part = channel;
+            } catch (IOException e) {
+                channel.close();
+                log.warn("Discarding unreadable partial download {}: {}", path, e.getMessage());
+                Files.deleteIfExists(path);
+                forget(name + PART);
+            }
+        }
+
+        /**
+         * @return how many bytes of the song are already on disk, 0 for a fresh download
+         */
+        public long resumeFrom() throws IOException {
+            return part != null ? part.size() - dataOffset : 0;
+        }
+
+        /**
+         * @return content type of the bytes already on disk, null for a fresh download
+         */
+        public String contentType() {
+            return contentType;
+        }
+
+        /**
+         * Throw away anything on disk and start the song from its first byte
+         * @param contentType the content type Subsonic sent
+         */
+        public void restart(String contentType) throws IOException {
+            if (part != null) part.close();
+            part = FileChannel.open(dir.resolve(name + PART), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            byte[] type = contentType.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer header = ByteBuffer.allocate(8 + type.length).putInt(MAGIC).putInt(type.length).put(type).flip();
+            while (header.hasRemaining()) part.write(header);
+            this.dataOffset = part.position();
+            this.contentType = contentType;
+        }
+
+        /**
+         * Send the bytes already on disk, counted as saved
+         * @param target where to send them
+         */
+        public void transferCachedTo(WritableByteChannel target) throws IOException {
+            long length = resumeFrom();
+            if (length == 0) return;
+            new Cached(part, dataOffset, length, contentType).transferTo(0, length, target);
+            savedBytes.increment(length);
+        }
+
+        /**
+         * Append the next bytes of the song
+         */
+        public void write(byte[] data, int offset, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+            part.position(part.size());
+            while (buffer.hasRemaining()) part.write(buffer);
+        }
+
+        /**
+         * The whole song is on disk, make it available to {@link #open}
+         */
+        public void complete() throws IOException {
+            part.close();
+            long size = Files.size(dir.resolve(name + PART));
+            Files.move(dir.resolve(name + PART), dir.resolve(name + MEDIA),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            completed = true;
+            synchronized (MediaCache.this) {
+                forget(name + PART);
+                track(name + MEDIA, size);
+            }
+        }
+
+        /**
+         * Release the song, an incomplete download keeps what it has so far for next time
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                if (!completed && part != null) {
+                    part.close();
+                    Path path = dir.resolve(name + PART);
+                    if (Files.exists(path)) {
+                        synchronized (MediaCache.this) {
+                            track(name + PART, Files.size(path));
+                        }
+                    }
+                }
+            } finally {
+                downloading.remove(id);
+            }
+        }
+    }
+
+    /**
+     * Pick up files left by a previous run, oldest use first so they're evicted first
+     * @return false if the directory can't be used, which disables the cache
+     */
+    private boolean index(Path dir) {
+        try {
+            Files.createDirectories(dir);
+            List<Path> cached;
+            try (Stream<Path> listing = Files.list(dir)) {
+                cached = listing.filter(p -> p.toString().endsWith(MEDIA) || p.toString().endsWith(PART))
+                        .sorted(Comparator.comparing(MediaCache::lastModified))
+                        .toList();
+            }
+            synchronized (this) {
+                for (Path file : cached) {
+                    long size = Files.size(file);
+                    files.put(file.getFileName().toString(), size);
+                    totalBytes += size;
+                }
+                evict(dir);
+            }
+            log.info("Media cache at {} holds {} files ({} bytes)", dir, files.size(), totalBytes);
+            return true;
+        } catch (IOException e) {
+            log.warn("Media cache disabled, can't use {}: {}", dir, e.getMessage());
+            return false;
+        }
+    }
+
+    public boolean isEnabled() {
+        return dir != null;
+    }
+
+    /**
+     * @param songId Subsonic song id
+     * @param transcode the format and bitrate it's streamed in, e.g. "flac" or "opus@96"
+     * @return the cache key for the song in that transcode
+     */
+    public static String key(String songId, String transcode) {
+        return songId + "/" + transcode;
+    }
+
+    /**
+     * @param id cache key
+     * @return true if the song is cached complete, without counting a request or a use
+     */
+    public synchronized boolean contains(String id) {
+        return dir != null && files.containsKey(fileName(id) + MEDIA);
+    }
+
+    /**
+     * @param id cache key, see {@link #key}
+     * @return the complete cached song, or empty on a miss
+     */
+    public Optional<Cached> open(String id) {
+        if (dir == null) return Optional.empty();
+        String name = fileName(id) + MEDIA;
+        synchronized (this) {
+            if (files.get(name) == null) { // get, so a hit also counts as a use
+                misses.increment();
+                return Optional.empty();
+            }
+        }
+
+        Path file = dir.resolve(name);
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            String contentType = readHeader(channel);
+            long offset = channel.position();
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis())); // LRU order for the next run
+            hits.increment();
+            return Optional.of(new Cached(channel, offset, channel.size() - offset, contentType));
+        } catch (IOException e) {
+            log.warn("Dropping unreadable media cache file {}: {}", file, e.getMessage());
+            try {
+                if (channel != null) channel.close();
+                Files.deleteIfExists(file);
+            } catch (IOException ignored) {} // gone either way once forgotten
+            forget(name);
+            misses.increment();
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Start or resume downloading a song into the cache
+     * @param id cache key, see {@link #key}
+     * @return the download, or empty if the cache is disabled or the song is already being downloaded
+     */
+    public Optional<Download> download(String id) throws IOException {
+        if (dir == null || !downloading.add(id)) return Optional.empty();
+        String name = fileName(id);
+        synchronized (this) {
+            forget(name + PART); // not evictable while it's being written
+        }
+        Download download = new Download(id, name);
+        try {
+            download.resume();
+        } catch (IOException e) {
+            download.close();
+            throw e;
+        }
+        return Optional.of(download);
+    }
+
+    /**
+     * Count bytes served from a complete cached song
+     */
+    public void served(long bytes) {
+        savedBytes.increment(bytes);
+    }
+
+    public synchronized long sizeBytes() {
+        return totalBytes;
+    }
+
+    private synchronized void track(String name, long size) {
+        Long previous = files.put(name, size);
+        totalBytes += size - (previous != null ? previous : 0);
+        evict(dir);
+    }
+
+    private synchronized void forget(String name) {
+        Long size = files.remove(name);
+        if (size != null) totalBytes -= size;
+    }
+
+    private synchronized void evict(Path dir) {
+        Iterator<Map.Entry<String, Long>> eldest = files.entrySet().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            eldest.remove();
+            totalBytes -= entry.getValue();
+            evictions.increment();
+            try {
+                Files.deleteIfExists(dir.resolve(entry.getKey())); // open channels stay readable until closed
+            } catch (IOException e) {
+                log.warn("Couldn't delete evicted media cache file {}: {}", entry.getKey(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Read the header, leaving the channel positioned at the media
+     * @return the content type
+     */
+    private static String readHeader(FileChannel channel) throws IOException {
+        ByteBuffer fixed = ByteBuffer.allocate(8);
+        channel.read(fixed, 0);
+        if (fixed.position() < 8 || fixed.getInt(0) != MAGIC) throw new IOException("not a media cache file");
+        int typeLength = fixed.getInt(4);
+        if (typeLength < 0 || typeLength > 1024) throw new IOException("bad content type length");
+        ByteBuffer type = ByteBuffer.allocate(typeLength);
+        channel.read(type, 8);
+        if (type.hasRemaining()) throw new IOException("truncated header");
+        channel.position(8 + typeLength);
+        return new String(type.array(), StandardCharsets.UTF_8);
+    }
+
+    private static String fileName(String id) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(id.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest, 0, 20);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required of every JRE", e);
+        }
+    }
+
+    private static FileTime lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+}
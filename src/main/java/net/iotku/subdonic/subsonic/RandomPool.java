@@ -0,0 +1,237 @@
+package net.iotku.subdonic.subsonic;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import net.iotku.subdonic.api.v1.dto.Song;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+/**
+ * In-memory pools of random songs, one per filter, so {@code !random} doesn't wait on Subsonic.
+ * A pool that drops below the low watermark is topped back up to the high watermark in the background
+ * with batched getRandomSongs calls. Only when a pool runs dry is Subsonic asked directly.
+ */
+@Component
+public class RandomPool {
+    private static final Logger log = LoggerFactory.getLogger(RandomPool.class);
+    private static final int MAX_BATCH = 500; // Subsonic's getRandomSongs limit
+    private final RandomSource source;
+    private final int lowWatermark;
+    private final int highWatermark;
+    private final int maxFilters;
+    private final Executor refiller;
+    private final MeterRegistry registry;
+    private final Map<Filter, Pool> pools = new ConcurrentHashMap<>();
+
+    /**
+     * Which random songs a pool holds. Null fields match anything.
+     * @param genre Subsonic genre name
+     * @param fromYear first year, inclusive
+     * @param toYear last year, inclusive
+     */
+    public record Filter(String genre, Integer fromYear, Integer toYear) {
+        public static final Filter ANY = new Filter(null, null, null);
+
+        /**
+         * @return a short label for logs and metric tags, e.g. "genre=Rock,year=1990-1999"
+         */
+        public String label() {
+            List<String> parts = new ArrayList<>();
+            if (genre != null) parts.add("genre=" + genre);
+            if (fromYear != null || toYear != null) {
+                parts.add("year=" + (fromYear != null ? fromYear : "") + "-" + (toYear != null ? toYear : ""));
+            }
+            return parts.isEmpty() ? "any" : String.join(",", parts);
+        }
+    }
+
+    @FunctionalInterface
+    interface RandomSource {
+        List<Song> fetch(Filter filter, int size) throws IOException, InterruptedException;
+    }
+
+    @Autowired
+    public RandomPool(SubsonicClient subsonic,
+                      @Value("${search.random.low-watermark:20}") int lowWatermark,
+                      @Value("${search.random.high-watermark:100}") int highWatermark,
+                      @Value("${search.random.max-filters:16}") int maxFilters,
+                      MeterRegistry registry) {
+        this((filter, size) -> subsonic.randomSongs(size, filter.genre(), filter.fromYear(), filter.toYear()),
+                lowWatermark, highWatermark, maxFilters, registry,
+                Executors.newSingleThreadExecutor(Thread.ofPlatform().daemon().name("random-pool").factory()));
+    }
+
+    RandomPool(RandomSource source, int lowWatermark, int highWatermark, int maxFilters, MeterRegistry registry, Executor refiller) {
+        if (lowWatermark < 0 || highWatermark <= lowWatermark) {
+            throw new IllegalArgumentException("Random pool needs 0 <= low-watermark < high-watermark");
+        }
+        this.source = source;
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        this.maxFilters = maxFilters;
+        this.registry = registry;
+        this.refiller = refiller;
+    }
+
+    // NOTE: Fill the unfiltered pool once the webserver is up, so the first !random is already instant
+    @EventListener(ApplicationReadyEvent.class)
+    private void prefill() {
+        refillIfLow(pool(Filter.ANY));
+    }
+
+    /**
+     * Take random songs out of the filter's pool, asking Subsonic directly for whatever the pool can't cover
+     * @param filter which songs to pick from
+     * @param count how many songs to take
+     * @return up to count songs, no song repeated within one pool fill
+     * @throws IOException if the pool was short and the direct request failed
+     * @throws InterruptedException if interrupted while waiting on the direct request
+     */
+    public List<Song> take(Filter filter, int count) throws IOException, InterruptedException {
+        return take(filter, count, song -> false);
+    }
+
+    /**
+     * Like {@link #take(Filter, int)}, passing over songs the caller doesn't want right now (e.g. recently played).
+     * Passed over songs stay in the pool for everyone else. Only if neither the pool nor the direct request
+     * has enough wanted songs are unwanted ones from the direct request used, rather than coming back short.
+     * @param filter which songs to pick from
+     * @param count how many songs to take
+     * @param exclude songs to avoid
+     * @return up to count songs
+     * @throws IOException if the pool was short and the direct request failed
+     * @throws InterruptedException if interrupted while waiting on the direct request
+     */
+    public List<Song> take(Filter filter, int count, Predicate<Song> exclude) throws IOException, InterruptedException {
+        Pool pool = pool(filter);
+        List<Song> songs = pool == null ? new ArrayList<>(count) : pool.poll(count, exclude);
+        if (pool != null) {
+            refillIfLow(pool); // before any direct request, so the refill isn't held up by it
+            if (songs.size() == count) {
+                pool.hits.increment();
+                return songs;
+            }
+            (songs.isEmpty() ? pool.empty : pool.partial).increment();
+        }
+
+        // Pool couldn't cover it (or there are too many distinct filters to pool them all), ask directly
+        List<Song> excluded = new ArrayList<>();
+        for (Song song : source.fetch(filter, count - songs.size())) {
+            (exclude.test(song) ? excluded : songs).add(song);
+        }
+        for (int i = 0; songs.size() < count && i < excluded.size(); i++) {
+            songs.add(excluded.get(i));
+        }
+        return songs;
+    }
+
+    /**
+     * @param filter which pool
+     * @return how many songs the pool holds right now, 0 if it doesn't exist
+     */
+    public int size(Filter filter) {
+        Pool pool = pools.get(filter);
+        return pool == null ? 0 : pool.size();
+    }
+
+    private Pool pool(Filter filter) {
+        Pool pool = pools.get(filter);
+        if (pool != null || pools.size() >= maxFilters) return pool;
+        return pools.computeIfAbsent(filter, Pool::new);
+    }
+
+    private void refillIfLow(Pool pool) {
+        if (pool.size() < lowWatermark && pool.refilling.compareAndSet(false, true)) {
+            refiller.execute(() -> refill(pool));
+        }
+    }
+
+    private void refill(Pool pool) {
+        try {
+            while (pool.size() < highWatermark) {
+                List<Song> batch = source.fetch(pool.filter, Math.min(MAX_BATCH, highWatermark - pool.size()));
+                if (pool.offer(batch) == 0) break; // nothing new, the filter matches fewer songs than we'd pool
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("Refilling random pool {} failed: {}", pool.filter.label(), e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.refilling.set(false);
+        }
+    }
+
+    private final class Pool {
+        private final Filter filter;
+        private final ArrayDeque<Song> songs = new ArrayDeque<>();
+        private final Set<String> ids = new HashSet<>();
+        private final AtomicBoolean refilling = new AtomicBoolean();
+        private final Counter hits;
+        private final Counter partial;
+        private final Counter empty;
+
+        private Pool(Filter filter) {
+            this.filter = filter;
+            String tag = filter.label();
+            this.hits = Counter.builder("random.pool.requests").tag("filter", tag).tag("result", "hit").register(registry);
+            this.partial = Counter.builder("random.pool.requests").tag("filter", tag).tag("result", "partial").register(registry);
+            this.empty = Counter.builder("random.pool.requests").tag("filter", tag).tag("result", "empty")
+                    .description("Requests that found the pool empty and waited on Subsonic")
+                    .register(registry);
+            Gauge.builder("random.pool.size", this, Pool::size).tag("filter", tag).register(registry);
+        }
+
+        private synchronized int size() {
+            return songs.size();
+        }
+
+        private synchronized List<Song> poll(int count, Predicate<Song> exclude) {
+            List<Song> taken = new ArrayList<>(count);
+            List<Song> skipped = new ArrayList<>();
+            while (taken.size() < count && !songs.isEmpty()) {
+                Song song = songs.poll();
+                if (exclude.test(song)) {
+                    skipped.add(song);
+                } else {
+                    ids.remove(song.id());
+                    taken.add(song);
+                }
+            }
+            songs.addAll(skipped); // back of the line, still fresh for other callers
+            return taken;
+        }
+
+        /**
+         * @return how many of the songs were new to the pool
+         */
+        private synchronized int offer(List<Song> batch) {
+            int added = 0;
+            for (Song song : batch) {
+                if (ids.add(song.id())) {
+                    songs.add(song);
+                    added++;
+                }
+            }
+            return added;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package net.iotku.subdonic.subsonic;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import net.iotku.subdonic.api.v1.dto.Song;
+import net.iotku.subdonic.catalog.CatalogText;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Bounded TTL/LRU cache of search results keyed by normalized query.
+ * Concurrent lookups of the same key are coalesced, so N guilds searching for the same thing at once
+ * cause a single upstream request.
+ */
+@Component
+public class SearchCache {
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final LongSupplier clock;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // access order = LRU
+    private final Map<String, CompletableFuture<List<Song>>> inFlight = new ConcurrentHashMap<>();
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter coalesced;
+    private final Counter sizeEvictions;
+    private final Counter expiredEvictions;
+
+    private record Entry(List<Song> songs, long expiresAt) {}
+
+    @Autowired
+    public SearchCache(@Value("${search.cache.max-entries:1000}") int maxEntries,
+                       @Value("${search.cache.ttl:300000}") long ttlMillis,
+                       MeterRegistry registry) {
+        this(maxEntries, ttlMillis, registry, System::nanoTime);
+    }
+
+    SearchCache(int maxEntries, long ttlMillis, MeterRegistry registry, LongSupplier clock) {
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttlMillis * 1_000_000;
+        this.clock = clock;
+        this.hits = Counter.builder("search.cache.requests").tag("result", "hit").register(registry);
+        this.misses = Counter.builder("search.cache.requests").tag("result", "miss").register(registry);
+        this.coalesced = Counter.builder("search.cache.requests").tag("result", "coalesced")
+                .description("Lookups that waited on an identical in-flight search instead of making their own")
+                .register(registry);
+        this.sizeEvictions = Counter.builder("search.cache.evictions").tag("cause", "size").register(registry);
+        this.expiredEvictions = Counter.builder("search.cache.evictions").tag("cause", "expired").register(registry);
+        Gauge.builder("search.cache.size", this, SearchCache::size).register(registry);
+    }
+
+    /**
+     * Normalize a query so trivially different spellings share a cache entry. Queries without a single word, e.g.
+     * only punctuation or emoji, keep their folded text so they don't all share one entry.
+     * @param method which search the results came from, e.g. "search3"
+     * @param query raw user query
+     * @return cache key
+     */
+    public static String key(String method, String query) {
+        List<String> tokens = CatalogText.tokens(query);
+        return method + ':' + (tokens.isEmpty() ? CatalogText.fold(query).strip() : String.join(" ", tokens));
+    }
+
+    /**
+     * Return cached results for the key, or load them. Only one loader runs per key at a time,
+     * other callers for that key wait for its result. Failures are not cached.
+     * @param key cache key, see {@link #key(String, String)}
+     * @param loader fetches the results on a miss
+     * @return cached or freshly loaded results
+     */
+    public List<Song> get(String key, Supplier<List<Song>> loader) {
+        List<Song> cached = lookup(key);
+        if (cached != null) {
+            hits.increment();
+            return cached;
+        }
+
+        CompletableFuture<List<Song>> mine = new CompletableFuture<>();
+        CompletableFuture<List<Song>> existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) {
+            coalesced.increment();
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException re ? re : e;
+            }
+        }
+
+        try {
+            List<Song> songs = lookup(key); // another loader may have finished between our lookup and putIfAbsent
+            if (songs != null) {
+                hits.increment();
+            } else {
+                misses.increment();
+                songs = loader.get();
+                store(key, songs);
+            }
+            mine.complete(songs);
+            return songs;
+        } catch (RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private List<Song> lookup(String key) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry == null) return null;
+            if (clock.getAsLong() - entry.expiresAt() >= 0) {
+                entries.remove(key);
+                expiredEvictions.increment();
+                return null;
+            }
+            return entry.songs();
+        }
+    }
+
+    private void store(String key, List<Song> songs) {
+        synchronized (entries) {
+            entries.put(key, new Entry(List.copyOf(songs), clock.getAsLong() + ttlNanos));
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (entries.size() > maxEntries && eldest.hasNext()) {
+                eldest.next();
+                eldest.remove();
+                sizeEvictions.increment();
+            }
+        }
+    }
+}
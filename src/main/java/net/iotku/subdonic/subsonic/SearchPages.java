@@ -0,0 +1,111 @@
+package net.iotku.subdonic.subsonic;
+
+import net.iotku.subdonic.api.v1.dto.Song;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.OptionalInt;
+
+/**
+ * One user's paged search results. Pages are fetched from the loader only when first asked for and kept for the
+ * rest of the session, so a search that's only ever looked at on page 1 costs a single small upstream request.
+ * Thread safe, button presses can come in on any thread.
+ */
+public final class SearchPages {
+    private final String query;
+    private final int pageSize;
+    private final int maxPages;
+    private final PageLoader loader;
+    private final List<List<Song>> pages = new ArrayList<>();
+    private boolean exhausted;
+
+    @FunctionalInterface
+    public interface PageLoader {
+        /**
+         * @param offset how many results come before this page
+         * @param count page size
+         * @return up to count results, fewer (or none) once the results run out
+         */
+        List<Song> load(int offset, int count);
+    }
+
+    /**
+     * @param query the query the pages belong to, for display
+     * @param pageSize results per page
+     * @param maxPages never load more than this many pages
+     * @param loader fetches a page, may throw if the backing search fails
+     */
+    public SearchPages(String query, int pageSize, int maxPages, PageLoader loader) {
+        if (pageSize < 1 || maxPages < 1) throw new IllegalArgumentException("pageSize and maxPages must be positive");
+        this.query = query;
+        this.pageSize = pageSize;
+        this.maxPages = maxPages;
+        this.loader = loader;
+    }
+
+    /**
+     * Pages over results that are already in memory, e.g. a catalog search
+     * @param query the query the results belong to
+     * @param songs every result, in display order
+     * @param pageSize results per page
+     * @return fully loaded pages
+     */
+    public static SearchPages of(String query, List<Song> songs, int pageSize) {
+        SearchPages result = new SearchPages(query, pageSize, Integer.MAX_VALUE, (offset, count) -> List.of());
+        for (int i = 0; i < songs.size(); i += pageSize) {
+            result.pages.add(List.copyOf(songs.subList(i, Math.min(i + pageSize, songs.size()))));
+        }
+        result.exhausted = true;
+        return result;
+    }
+
+    /**
+     * Get a page, loading it (and any pages before it) on first use
+     * @param index zero based page number
+     * @return the page's results, empty if the results ended before this page
+     */
+    public synchronized List<Song> page(int index) {
+        while (pages.size() <= index && !exhausted) {
+            List<Song> page = loader.load(pages.size() * pageSize, pageSize);
+            if (page.isEmpty()) {
+                exhausted = true;
+                break;
+            }
+            pages.add(List.copyOf(page));
+            // NOTE: a short page means the upstream ran out, tagless songs filtered out of a full page can end paging early
+            if (page.size() < pageSize || pages.size() >= maxPages) exhausted = true;
+        }
+        return index < pages.size() ? pages.get(index) : List.of();
+    }
+
+    /**
+     * @param index zero based page number
+     * @return true if the page is already loaded, so showing it won't block
+     */
+    public synchronized boolean isLoaded(int index) {
+        return index >= 0 && index < pages.size();
+    }
+
+    /**
+     * @param index zero based page number
+     * @return false only if the page is known not to exist, an unloaded page may still turn out empty
+     */
+    public synchronized boolean mayHavePage(int index) {
+        return index >= 0 && (index < pages.size() || (!exhausted && index < maxPages));
+    }
+
+    /**
+     * @return the number of pages, once every page has been loaded
+     */
+    public synchronized OptionalInt pageCount() {
+        return exhausted ? OptionalInt.of(pages.size()) : OptionalInt.empty();
+    }
+
+    public String query() {
+        return query;
+    }
+
+    public int pageSize() {
+        return pageSize;
+    }
+}
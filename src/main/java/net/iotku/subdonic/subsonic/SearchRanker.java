@@ -0,0 +1,181 @@
+package net.iotku.subdonic.subsonic;
+
+import net.iotku.subdonic.api.v1.dto.Song;
+import net.iotku.subdonic.catalog.CatalogText;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Orders search results for playback, e.g. title matches first and live albums last.
+ * The query is folded once per call and every field is compared against it in place, so scoring a song
+ * allocates nothing for ASCII tags. The best {@code limit} songs are picked with a primitive min-heap
+ * rather than sorting every result.
+ */
+@Component
+public class SearchRanker {
+    private static final String LIVE = "live";
+    private final Weights weights;
+    private final ThreadLocal<long[]> heaps = ThreadLocal.withInitial(() -> new long[64]);
+
+    /**
+     * Score contributions, a field scores when it contains the whole query
+     * @param title added when the title matches
+     * @param artist added when the artist matches
+     * @param album added when the album matches
+     * @param livePenalty subtracted when the album looks like a live recording
+     */
+    public record Weights(int title, int artist, int album, int livePenalty) {
+        public static final Weights DEFAULT = new Weights(
+                10, // big weight for title match
+                5,
+                1, // We probably aren't looking for an album so not super important
+                5 // Deprioritize live albums
+        );
+    }
+
+    @Autowired
+    public SearchRanker(@Value("${search.rank.title:10}") int title,
+                        @Value("${search.rank.artist:5}") int artist,
+                        @Value("${search.rank.album:1}") int album,
+                        @Value("${search.rank.live-penalty:5}") int livePenalty) {
+        this(new Weights(title, artist, album, livePenalty));
+    }
+
+    public SearchRanker(Weights weights) {
+        this.weights = weights;
+    }
+
+    public Weights weights() {
+        return weights;
+    }
+
+    /**
+     * Rank songs against a query. Songs with equal scores keep their original relative order.
+     * @param query raw user query
+     * @param songs candidate songs, e.g. search3 results
+     * @param limit maximum number of songs to return
+     * @return the best {@code limit} songs, highest score first
+     */
+    public List<Song> rank(String query, List<Song> songs, int limit) {
+        int k = Math.min(limit, songs.size());
+        if (k <= 0) return Collections.emptyList();
+        String folded = CatalogText.fold(query);
+
+        long[] heap = heaps.get();
+        if (heap.length < k) {
+            heap = new long[Integer.highestOneBit(k) << 1];
+            heaps.set(heap);
+        }
+
+        // Key = score in the high half, inverted position in the low half, so a larger key is a better song
+        // and ties go to whichever came first
+        int size = 0;
+        for (int i = 0; i < songs.size(); i++) {
+            long key = ((long) score(folded, songs.get(i)) << 32) | (Integer.MAX_VALUE - i);
+            if (size < k) {
+                heap[size] = key;
+                siftUp(heap, size++);
+            } else if (key > heap[0]) {
+                heap[0] = key;
+                siftDown(heap, 0, size);
+            }
+        }
+
+        Song[] ranked = new Song[k];
+        while (size > 0) {
+            long min = heap[0];
+            heap[0] = heap[--size];
+            siftDown(heap, 0, size);
+            ranked[size] = songs.get(Integer.MAX_VALUE - (int) min);
+        }
+        return Collections.unmodifiableList(Arrays.asList(ranked));
+    }
+
+    /**
+     * @param foldedQuery query already passed through {@link CatalogText#fold(String)}
+     * @param song song to score
+     * @return the song's score under these weights
+     */
+    int score(String foldedQuery, Song song) {
+        int score = 0;
+        if (contains(song.title(), foldedQuery)) score += weights.title();
+        if (contains(song.album(), foldedQuery)) score += weights.album();
+        if (contains(song.album(), LIVE)) score -= weights.livePenalty();
+        if (contains(song.artist(), foldedQuery)) score += weights.artist();
+        return score;
+    }
+
+    /**
+     * Score a song as the way into its album, e.g. for !album. Each query word counts where it's found in the album
+     * and artist columns, titles don't count, so "spirit phone lemon demon" prefers the album Spirit Phone over a
+     * Lemon Demon song that happens to be called that.
+     * @param foldedTokens query words from {@link CatalogText#tokens(String)}
+     * @param song song to score
+     * @return the song's album score under these weights
+     */
+    public int albumScore(List<String> foldedTokens, Song song) {
+        int score = 0;
+        for (String token : foldedTokens) {
+            if (contains(song.album(), token)) score += weights.album();
+            if (contains(song.artist(), token)) score += weights.artist();
+        }
+        if (contains(song.album(), LIVE)) score -= weights.livePenalty();
+        return score;
+    }
+
+    /**
+     * Case and accent insensitive substring test that doesn't allocate when the field is plain ASCII
+     * @param field tag value, may be null
+     * @param needle folded text to look for
+     * @return true if the folded field contains needle
+     */
+    static boolean contains(String field, String needle) {
+        if (field == null) return false;
+        int n = needle.length();
+        int last = field.length() - n;
+        outer:
+        for (int start = 0; start <= last; start++) {
+            for (int j = 0; j < n; j++) {
+                char c = field.charAt(start + j);
+                if (c > 0x7F) return CatalogText.fold(field).contains(needle); // accents need the slow path
+                if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+                if (c != needle.charAt(j)) continue outer;
+            }
+            return true;
+        }
+        // The tail past the last start position was never inspected, it may still hold accents
+        for (int i = Math.max(0, last + 1); i < field.length(); i++) {
+            if (field.charAt(i) > 0x7F) return CatalogText.fold(field).contains(needle);
+        }
+        return false;
+    }
+
+    private static void siftUp(long[] heap, int i) {
+        long key = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heap[parent] <= key) break;
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = key;
+    }
+
+    private static void siftDown(long[] heap, int i, int size) {
+        long key = heap[i];
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && heap[child + 1] < heap[child]) child++;
+            if (key <= heap[child]) break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = key;
+    }
+}
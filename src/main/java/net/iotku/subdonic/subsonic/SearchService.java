@@ -0,0 +1,235 @@
+package net.iotku.subdonic.subsonic;
+
+import net.iotku.subdonic.api.v1.dto.Song;
+import net.iotku.subdonic.catalog.CatalogIndex;
+import net.iotku.subdonic.catalog.CatalogService;
+import net.iotku.subdonic.catalog.CatalogText;
+import net.iotku.subdonic.catalog.SuggestIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Shared search entry point for both the bot {@code Commands} and the REST {@code SubsonicController}.
+ * Callers inside the process use this directly instead of looping back through our own HTTP API.
+ */
+@Service
+public class SearchService {
+    private static final Logger log = LoggerFactory.getLogger(SearchService.class);
+    private static final int SONG_COUNT = 50; // up to 10 pages of 5
+    private static final int PAGE_SIZE = 5;
+    private final SubsonicClient subsonic;
+    private final CatalogService catalog;
+    private final SearchCache cache;
+    private final SearchRanker ranker;
+    private final RandomPool randomPool;
+
+    public SearchService(SubsonicClient subsonic, CatalogService catalog, SearchCache cache, SearchRanker ranker,
+                         RandomPool randomPool) {
+        this.subsonic = subsonic;
+        this.catalog = catalog;
+        this.cache = cache;
+        this.ranker = ranker;
+        this.randomPool = randomPool;
+    }
+
+    /**
+     * Subsonic API search2 method "Standard" Search
+     * @param query String describing song title / artist (e.g. "two trucks lemon demon")
+     * @return List of songs relating to query, in the order Subsonic returned them
+     */
+    public List<Song> search2(String query) {
+        return cache.get(SearchCache.key("search2", query), () -> unchecked(() -> subsonic.search2(upstreamQuery(query), SONG_COUNT)));
+    }
+
+    /**
+     * Subsonic API search3 method, like search2 but organized with ID3 tags.
+     * Answered from the local catalog index once it is warm, otherwise from the Subsonic server.
+     * NOTE: Only Subsonic's answers are cached, the catalog is a cheap in-memory lookup and caching it would keep
+     * serving results from an index a sync already replaced
+     * @param query String describing song title / artist (e.g. "two trucks lemon demon")
+     * @return List of songs relating to query
+     */
+    public List<Song> search3(String query) {
+        if (catalog.isWarm()) {
+            return catalog.search(query, SONG_COUNT);
+        }
+        return cache.get(SearchCache.key("search3", query), () -> unchecked(() -> subsonic.search3(upstreamQuery(query), SONG_COUNT)));
+    }
+
+    /**
+     * search3 ranked for playback by {@link SearchRanker}. Shares search3's cache entries while the catalog is cold.
+     * When nothing matches and the catalog is warm, falls back to a typo-tolerant catalog search.
+     * Failures are logged and reported as no results so a flaky Subsonic server can't break a command.
+     * @param query String describing song title / artist
+     * @return ranked List of songs, or an empty List if the search failed
+     */
+    public List<Song> search(String query) {
+        List<Song> results;
+        try {
+            results = search3(query);
+        } catch (RuntimeException e) {
+            log.warn("Subsonic search failed: {}", e.getMessage());
+            return Collections.emptyList();
+        }
+
+        if (results.isEmpty() && catalog.isWarm()) {
+            // Retry typo-tolerant before giving up, so "lemn demon" doesn't cost the user another search
+            CatalogIndex.FuzzyMatch fuzzy = catalog.fuzzySearch(query, SONG_COUNT);
+            if (!fuzzy.songs().isEmpty()) {
+                log.debug("No results for \"{}\", using \"{}\"", query, fuzzy.query());
+                return ranker.rank(fuzzy.query(), fuzzy.songs(), SONG_COUNT);
+            }
+        }
+        return ranker.rank(query, results, SONG_COUNT);
+    }
+
+    /**
+     * Paged search for browsing. With a warm catalog every result is ranked up front, since that's a cheap local
+     * lookup. Otherwise only the first page is fetched from Subsonic now and later pages are fetched with
+     * {@code songOffset} when they're first shown, each page ranked on its own.
+     * Failures loading the first page are logged and reported as no results, like {@link #search(String)}.
+     * @param query String describing song title / artist
+     * @return the search session, with its first page loaded
+     */
+    public SearchPages searchPages(String query) {
+        if (catalog.isWarm()) {
+            return SearchPages.of(query, search(query), PAGE_SIZE);
+        }
+
+        SearchPages pages = new SearchPages(query, PAGE_SIZE, SONG_COUNT / PAGE_SIZE,
+                (offset, count) -> ranker.rank(query, search3Page(query, offset, count), count));
+        try {
+            pages.page(0);
+        } catch (RuntimeException e) {
+            log.warn("Subsonic search failed: {}", e.getMessage());
+            return SearchPages.of(query, Collections.emptyList(), PAGE_SIZE);
+        }
+        return pages;
+    }
+
+    private List<Song> search3Page(String query, int offset, int count) {
+        return cache.get(SearchCache.key("search3@" + offset + "+" + count, query),
+                () -> unchecked(() -> subsonic.search3(upstreamQuery(query), count, offset)));
+    }
+
+    /**
+     * Songs of the album best matching a query, e.g. for queueing a whole album. Every catalog song matching the query
+     * is scored by {@link SearchRanker#albumScore}, ties go to the first in catalog order. The album is looked up in
+     * the catalog index, so nothing is found until the catalog is warm.
+     * Failures are logged and reported as no results, like {@link #search(String)}.
+     * @param query String describing the album, e.g. "spirit phone lemon demon"
+     * @return the album's songs in track order, or an empty List if nothing matched or the lookup failed
+     */
+    public List<Song> album(String query) {
+        if (!catalog.isWarm()) return Collections.emptyList();
+        CatalogIndex index = catalog.index();
+        int[] matches = index.match(query);
+        if (matches.length == 0) return Collections.emptyList();
+        List<String> tokens = CatalogText.tokens(query);
+        int best = matches[0];
+        int bestScore = Integer.MIN_VALUE;
+        for (int ordinal : matches) {
+            int score = ranker.albumScore(tokens, index.song(ordinal));
+            if (score > bestScore) {
+                best = ordinal;
+                bestScore = score;
+            }
+        }
+        try {
+            return subsonic.album(index.albumId(best));
+        } catch (IOException e) {
+            log.warn("Subsonic album lookup failed: {}", e.getMessage());
+            return Collections.emptyList();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Autocomplete suggestions for search-as-you-type, answered from memory so they fit in Discord's
+     * autocomplete deadline
+     * @param prefix what the user has typed so far
+     * @param limit maximum number of suggestions
+     * @return suggestions, most popular first; empty while the catalog is still loading
+     */
+    public List<SuggestIndex.Suggestion> suggest(String prefix, int limit) {
+        return catalog.suggest(prefix, limit);
+    }
+
+    /**
+     * Record that a song was queued, so popular songs rank higher in suggestions
+     * @param song the queued song
+     */
+    public void recordPlay(Song song) {
+        catalog.recordPlay(song);
+    }
+
+    /**
+     * Get random songs, served from the background-filled {@link RandomPool} when it has enough
+     * @param size how many random tracks to return
+     * @return a List of random Songs, possibly fewer than size
+     * @throws IOException           if the pool ran short and the request to the Subsonic API failed
+     * @throws InterruptedException  if the calling thread is interrupted while waiting
+     *                               for the HTTP request to complete
+     */
+    public List<Song> random(int size) throws IOException, InterruptedException {
+        return random(RandomPool.Filter.ANY, size);
+    }
+
+    /**
+     * Like {@link #random(int)}, limited to a genre and/or range of years
+     * @param filter which songs to pick from
+     * @param size how many random tracks to return
+     * @return a List of random Songs matching the filter, possibly fewer than size
+     * @throws IOException           if the pool ran short and the request to the Subsonic API failed
+     * @throws InterruptedException  if the calling thread is interrupted while waiting
+     *                               for the HTTP request to complete
+     */
+    public List<Song> random(RandomPool.Filter filter, int size) throws IOException, InterruptedException {
+        return randomPool.take(filter, size);
+    }
+
+    /**
+     * Like {@link #random(RandomPool.Filter, int)}, avoiding songs the caller played recently where possible
+     * @param filter which songs to pick from
+     * @param size how many random tracks to return
+     * @param exclude songs to avoid, e.g. a guild's recent plays
+     * @return a List of random Songs matching the filter, possibly fewer than size
+     * @throws IOException           if the pool ran short and the request to the Subsonic API failed
+     * @throws InterruptedException  if the calling thread is interrupted while waiting
+     *                               for the HTTP request to complete
+     */
+    public List<Song> random(RandomPool.Filter filter, int size, Predicate<Song> exclude) throws IOException, InterruptedException {
+        return randomPool.take(filter, size, exclude);
+    }
+
+    private static String upstreamQuery(String query) {
+        return query.replace(" - ", " "); // Make "artist - title" queries more reliable
+    }
+
+    private interface SubsonicCall {
+        List<Song> call() throws IOException, InterruptedException;
+    }
+
+    /**
+     * Run a Subsonic request from a context that can't throw checked exceptions, e.g. a SearchCache loader
+     */
+    private static List<Song> unchecked(SubsonicCall call) {
+        try {
+            return call.call();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for Subsonic", e);
+        }
+    }
+}
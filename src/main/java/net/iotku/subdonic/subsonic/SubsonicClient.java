@@ -0,0 +1,308 @@
+package net.iotku.subdonic.subsonic;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectReader;
+import net.iotku.subdonic.ApiClient.Http;
+import net.iotku.subdonic.api.v1.dto.Song;
+import net.iotku.subdonic.api.v1.filter.SubsonicFilter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * First-party Subsonic API client. Every request asks for {@code f=json} and song lists are stream-parsed
+ * straight into {@link Song}s with the shared Jackson mapper, so no intermediate tree or XML binding is built.
+ * Authenticates with a fresh salt and {@code md5(password + salt)} token per request, so the password itself
+ * never appears in a URL.
+ */
+@Component
+public class SubsonicClient {
+    public static final String API_VERSION = "1.16.1";
+    public static final String CLIENT_NAME = "Subdonic Discord Bot";
+    private static final ObjectReader SONG_READER = Http.MAPPER.readerFor(Song.class);
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final String baseUrl; // e.g. https://music.example.com/rest/
+    private final String user;
+    private final String pass;
+    private final HttpClient httpClient = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(10))
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .build();
+
+    @Autowired
+    public SubsonicClient(SubsonicConfig config) {
+        this(config.getServerURL(), config.getUser(), config.getPass());
+    }
+
+    public SubsonicClient(String serverUrl, String user, String pass) {
+        this.baseUrl = (serverUrl.endsWith("/") ? serverUrl : serverUrl + "/") + "rest/";
+        this.user = user;
+        this.pass = pass;
+    }
+
+    /**
+     * @return true if the server answers ping with our credentials
+     */
+    public boolean ping() throws IOException, InterruptedException {
+        get("ping.view", Map.of());
+        return true;
+    }
+
+    /**
+     * Subsonic search2, songs only
+     * @param query free text query
+     * @param songCount maximum number of songs
+     * @return tagged songs in the order Subsonic returned them
+     */
+    public List<Song> search2(String query, int songCount) throws IOException, InterruptedException {
+        return songs("search2.view", Map.of("query", List.of(query), "songCount", List.of(String.valueOf(songCount)),
+                "artistCount", List.of("0"), "albumCount", List.of("0")), "searchResult2");
+    }
+
+    /**
+     * Subsonic search3 (ID3 tags), songs only
+     * @param query free text query
+     * @param songCount maximum number of songs
+     * @return tagged songs in the order Subsonic returned them
+     */
+    public List<Song> search3(String query, int songCount) throws IOException, InterruptedException {
+        return search3(query, songCount, 0);
+    }
+
+    /**
+     * One page of Subsonic search3 (ID3 tags), songs only
+     * @param query free text query
+     * @param songCount maximum number of songs
+     * @param songOffset how many matching songs to skip, for paging
+     * @return tagged songs in the order Subsonic returned them
+     */
+    public List<Song> search3(String query, int songCount, int songOffset) throws IOException, InterruptedException {
+        return songs("search3.view", Map.of("query", List.of(query), "songCount", List.of(String.valueOf(songCount)),
+                "songOffset", List.of(String.valueOf(songOffset)), "artistCount", List.of("0"), "albumCount", List.of("0")),
+                "searchResult3");
+    }
+
+    /**
+     * @param size how many random songs to ask for
+     * @return tagged random songs, possibly fewer than requested
+     */
+    public List<Song> randomSongs(int size) throws IOException, InterruptedException {
+        return randomSongs(size, null, null, null);
+    }
+
+    /**
+     * @param size how many random songs to ask for, Subsonic caps this at 500
+     * @param genre only songs in this genre, or null for any
+     * @param fromYear only songs from this year on, or null
+     * @param toYear only songs up to this year, or null
+     * @return tagged random songs, possibly fewer than requested
+     */
+    public List<Song> randomSongs(int size, String genre, Integer fromYear, Integer toYear)
+            throws IOException, InterruptedException {
+        Map<String, List<String>> params = new LinkedHashMap<>();
+        params.put("size", List.of(String.valueOf(size)));
+        if (genre != null) params.put("genre", List.of(genre));
+        if (fromYear != null) params.put("fromYear", List.of(fromYear.toString()));
+        if (toYear != null) params.put("toYear", List.of(toYear.toString()));
+        return songs("getRandomSongs.view", params, "randomSongs");
+    }
+
+    /**
+     * @param albumId Subsonic album id
+     * @return the album's tagged songs in track order
+     */
+    public List<Song> album(String albumId) throws IOException, InterruptedException {
+        return songs("getAlbum.view", Map.of("id", List.of(albumId)), "album");
+    }
+
+    /**
+     * @param id Subsonic song id
+     * @return the song, or empty if it doesn't exist
+     */
+    public Optional<Song> song(String id) throws IOException, InterruptedException {
+        JsonNode song = get("getSong.view", Map.of("id", List.of(id))).path("song");
+        return song.isObject() ? Optional.of(Http.MAPPER.treeToValue(song, Song.class)) : Optional.empty();
+    }
+
+    /**
+     * Authenticated stream URL for a song in a specific format and bitrate. Contains a token that's valid for this
+     * salt, so treat it as a secret.
+     * @param id Subsonic song id
+     * @param format Subsonic transcoding target, e.g. "flac", "opus" or "mp3"
+     * @param maxBitRate bitrate cap in kbps, 0 for Subsonic's own limit
+     * @return URL streaming the song in that format
+     */
+    public URI streamUrl(String id, String format, int maxBitRate) {
+        if (maxBitRate <= 0) return url("stream.view", Map.of("id", List.of(id), "format", List.of(format)));
+        return url("stream.view", Map.of("id", List.of(id), "format", List.of(format),
+                "maxBitRate", List.of(String.valueOf(maxBitRate))));
+    }
+
+    /**
+     * Open a song's audio stream in a specific format. The caller owns the response body and must close it.
+     * @param id Subsonic song id
+     * @param format Subsonic transcoding target, e.g. "flac", "opus" or "mp3"
+     * @param range HTTP Range header to forward, or null for the whole file
+     * @return the upstream response, 200 or 206 for audio; errors are returned as-is for the caller to map
+     * @throws IOException if the request fails before a response arrives
+     * @throws InterruptedException if the calling thread is interrupted while waiting for the response
+     */
+    public HttpResponse<InputStream> stream(String id, String format, String range) throws IOException, InterruptedException {
+        HttpRequest.Builder request = HttpRequest.newBuilder(streamUrl(id, format, 0))
+                .timeout(Duration.ofSeconds(30)) // until the headers arrive, the body can take as long as the song
+                .GET();
+        if (range != null) request.header("Range", range);
+        return httpClient.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+    }
+
+    /**
+     * Call a Subsonic API method and return its parsed response body, for methods without a typed wrapper
+     * @param method Subsonic API method, e.g. "getAlbum.view"
+     * @param params query parameters for the method
+     * @return the "subsonic-response" JSON node
+     * @throws IOException if the request fails, or Subsonic reports a failed status
+     * @throws InterruptedException if the calling thread is interrupted while waiting for the response
+     */
+    public JsonNode get(String method, Map<String, List<String>> params) throws IOException, InterruptedException {
+        HttpResponse<InputStream> response = send(method, params);
+        JsonNode root;
+        try (InputStream body = response.body()) {
+            root = Http.MAPPER.readTree(body).path("subsonic-response");
+        }
+        if (!"ok".equals(root.path("status").asText())) {
+            throw new IOException("Subsonic " + method + " failed: " + root.path("error").path("message").asText("unknown error"));
+        }
+        return root;
+    }
+
+    /**
+     * Stream-parse the songs out of {@code subsonic-response.<container>.song[]}, skipping everything else
+     */
+    private List<Song> songs(String method, Map<String, List<String>> params, String container)
+            throws IOException, InterruptedException {
+        HttpResponse<InputStream> response = send(method, params);
+        List<Song> songs = new ArrayList<>();
+        String status = null;
+        String error = null;
+        try (InputStream body = response.body(); JsonParser parser = Http.MAPPER.createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) throw new IOException("Subsonic " + method + " returned no JSON object");
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                parser.nextToken();
+                if (!"subsonic-response".equals(parser.currentName())) {
+                    parser.skipChildren();
+                    continue;
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.currentName();
+                    parser.nextToken();
+                    switch (field) {
+                        case "status" -> status = parser.getText();
+                        case "error" -> {
+                            JsonNode node = parser.readValueAsTree();
+                            error = node.path("message").asText(null);
+                        }
+                        default -> {
+                            if (field.equals(container) && parser.currentToken() == JsonToken.START_OBJECT) {
+                                readSongArray(parser, songs);
+                            } else {
+                                parser.skipChildren();
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        if (!"ok".equals(status)) {
+            throw new IOException("Subsonic " + method + " failed: " + (error != null ? error : "unknown error"));
+        }
+        return songs;
+    }
+
+    private static void readSongArray(JsonParser parser, List<Song> out) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+            if (!"song".equals(field)) {
+                parser.skipChildren();
+            } else if (token == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) add(SONG_READER.readValue(parser), out);
+            } else if (token == JsonToken.START_OBJECT) {
+                add(SONG_READER.readValue(parser), out); // some servers collapse single-element arrays
+            }
+        }
+    }
+
+    private static void add(Song song, List<Song> out) {
+        if (song.title() != null && SubsonicFilter.taglessSong.test(song)) out.add(song);
+    }
+
+    private HttpResponse<InputStream> send(String method, Map<String, List<String>> params)
+            throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(url(method, params))
+                .timeout(Duration.ofSeconds(30))
+                .GET()
+                .build();
+        HttpResponse<InputStream> response = httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        if (response.statusCode() != 200) {
+            response.body().close();
+            throw new IOException("Subsonic returned status " + response.statusCode() + " for " + method);
+        }
+        return response;
+    }
+
+    private URI url(String method, Map<String, List<String>> params) {
+        String salt = HEX.formatHex(randomBytes());
+        StringBuilder url = new StringBuilder(baseUrl.length() + 160).append(baseUrl).append(method)
+                .append("?u=").append(encode(user))
+                .append("&t=").append(token(salt))
+                .append("&s=").append(salt)
+                .append("&v=").append(API_VERSION)
+                .append("&c=").append(encode(CLIENT_NAME))
+                .append("&f=json");
+        params.forEach((name, values) -> {
+            for (String value : values) url.append('&').append(encode(name)).append('=').append(encode(value));
+        });
+        return URI.create(url.toString());
+    }
+
+    private String token(String salt) {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            return HEX.formatHex(md5.digest((pass + salt).getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is required by the Subsonic API", e); // every JRE ships MD5
+        }
+    }
+
+    private static byte[] randomBytes() {
+        byte[] bytes = new byte[6];
+        RANDOM.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static String encode(String s) {
+        return URLEncoder.encode(s, StandardCharsets.UTF_8).replace("+", "%20"); // NOTE: form encoding's '+' isn't a space to every server
+    }
+}
@@ -0,0 +1,218 @@
+package net.iotku.subdonic.api.v1;
+
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import net.iotku.subdonic.subsonic.MediaCache;
+import net.iotku.subdonic.subsonic.SubsonicClient;
+import net.iotku.subdonic.subsonic.SubsonicConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for the audio stream proxy endpoint.
+ * Relays from a stub Subsonic server into a mock servlet response, with and without the media cache.
+ */
+@DisplayName("Subsonic Controller Tests")
+public class SubsonicControllerTests {
+    private static final byte[] AUDIO = "fLaC-not-really-audio".getBytes(StandardCharsets.US_ASCII);
+
+    private HttpServer server;
+    private SubsonicClient subsonic;
+    private SimpleMeterRegistry registry;
+    private final AtomicInteger upstreamRequests = new AtomicInteger();
+    private final AtomicReference<String> upstreamRange = new AtomicReference<>();
+    @TempDir
+    Path cacheDir;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            upstreamRequests.incrementAndGet();
+            upstreamRange.set(exchange.getRequestHeaders().getFirst("Range"));
+            String id = exchange.getRequestURI().getQuery().replaceAll(".*[?&]id=([^&]*).*", "$1");
+            byte[] body;
+            if (id.equals("missing")) {
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                body = "{\"subsonic-response\":{\"status\":\"failed\",\"error\":{\"code\":70}}}".getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, body.length);
+            } else if (exchange.getRequestHeaders().containsKey("Range")) {
+                exchange.getResponseHeaders().set("Content-Type", "audio/flac");
+                exchange.getResponseHeaders().set("Content-Range", "bytes 5-" + (AUDIO.length - 1) + "/" + AUDIO.length);
+                exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+                body = Arrays.copyOfRange(AUDIO, 5, AUDIO.length);
+                exchange.sendResponseHeaders(206, body.length);
+            } else {
+                exchange.getResponseHeaders().set("Content-Type", "audio/flac");
+                body = AUDIO;
+                exchange.sendResponseHeaders(200, body.length);
+            }
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        subsonic = new SubsonicClient("http://127.0.0.1:" + server.getAddress().getPort(), "user", "pass");
+        registry = new SimpleMeterRegistry();
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    @DisplayName("Should relay audio bytes and headers, not a URL")
+    void testRelay() throws IOException {
+        SubsonicController controller = controller(2);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        controller.proxyStream("s1", null, response);
+
+        assertEquals(200, response.getStatus());
+        assertEquals("audio/flac", response.getContentType());
+        assertEquals(String.valueOf(AUDIO.length), response.getHeader("Content-Length"));
+        assertArrayEquals(AUDIO, response.getContentAsByteArray());
+        assertEquals(AUDIO.length, registry.get("stream.proxy.bytes").counter().count());
+        assertEquals(0, registry.get("stream.proxy.open").gauge().value());
+    }
+
+    @Test
+    @DisplayName("Should pass Range requests through for seeking")
+    void testRange() throws IOException {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        controller(2).proxyStream("s1", "bytes=5-", response);
+
+        assertEquals(206, response.getStatus());
+        assertEquals("bytes 5-" + (AUDIO.length - 1) + "/" + AUDIO.length, response.getHeader("Content-Range"));
+        assertEquals("bytes", response.getHeader("Accept-Ranges"));
+        assertEquals(AUDIO.length - 5, response.getContentAsByteArray().length);
+    }
+
+    @Test
+    @DisplayName("Should map Subsonic API errors to a gateway error instead of relaying them as audio")
+    void testError() {
+        ResponseStatusException e = assertThrows(ResponseStatusException.class,
+                () -> controller(2).proxyStream("missing", null, new MockHttpServletResponse()));
+        assertEquals(HttpStatus.BAD_GATEWAY, e.getStatusCode());
+        assertEquals(0, registry.get("stream.proxy.open").gauge().value());
+    }
+
+    @Test
+    @DisplayName("Should turn streams away once the concurrency cap is reached")
+    void testCap() {
+        SubsonicController controller = controller(0);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        ResponseStatusException e = assertThrows(ResponseStatusException.class,
+                () -> controller.proxyStream("s1", null, response));
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, e.getStatusCode());
+        assertEquals("1", response.getHeader("Retry-After"));
+        assertEquals(1, registry.get("stream.proxy.rejected").counter().count());
+    }
+
+    @Test
+    @DisplayName("Should write songs through to the media cache and serve repeats and seeks from disk")
+    void testCache() throws IOException {
+        SubsonicController controller = controller(2, cache());
+        MockHttpServletResponse first = new MockHttpServletResponse();
+        controller.proxyStream("s1", null, first);
+        assertArrayEquals(AUDIO, first.getContentAsByteArray());
+        assertEquals(1, upstreamRequests.get());
+
+        MockHttpServletResponse again = new MockHttpServletResponse();
+        controller.proxyStream("s1", null, again);
+        assertEquals(200, again.getStatus());
+        assertEquals("audio/flac", again.getContentType());
+        assertArrayEquals(AUDIO, again.getContentAsByteArray());
+
+        MockHttpServletResponse seek = new MockHttpServletResponse();
+        controller.proxyStream("s1", "bytes=5-9", seek);
+        assertEquals(206, seek.getStatus());
+        assertEquals("bytes 5-9/" + AUDIO.length, seek.getHeader("Content-Range"));
+        assertArrayEquals(Arrays.copyOfRange(AUDIO, 5, 10), seek.getContentAsByteArray());
+
+        MockHttpServletResponse past = new MockHttpServletResponse();
+        controller.proxyStream("s1", "bytes=" + AUDIO.length + "-", past);
+        assertEquals(416, past.getStatus());
+
+        assertEquals(1, upstreamRequests.get());
+        assertEquals(1, registry.get("stream.cache.requests").tag("result", "miss").counter().count());
+        assertEquals(3, registry.get("stream.cache.requests").tag("result", "hit").counter().count());
+        assertEquals(AUDIO.length + 5, registry.get("stream.cache.saved").counter().count());
+    }
+
+    @Test
+    @DisplayName("Should resume an interrupted download of an original file instead of fetching the song again")
+    void testResume() throws IOException {
+        MediaCache cache = cache();
+        try (MediaCache.Download partial = cache.download(MediaCache.key("s1", "raw")).orElseThrow()) {
+            partial.restart("audio/flac");
+            partial.write(AUDIO, 0, 5);
+        }
+
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        controller(2, cache, "raw").proxyStream("s1", null, response);
+        assertEquals(200, response.getStatus());
+        assertEquals(String.valueOf(AUDIO.length), response.getHeader("Content-Length"));
+        assertArrayEquals(AUDIO, response.getContentAsByteArray());
+        assertEquals("bytes=5-", upstreamRange.get());
+        assertEquals(AUDIO.length - 5, registry.get("stream.proxy.bytes").counter().count());
+
+        controller(2, cache, "raw").proxyStream("s1", null, new MockHttpServletResponse());
+        assertEquals(1, upstreamRequests.get());
+    }
+
+    @Test
+    @DisplayName("Should start an interrupted transcode over even though upstream would honour the range")
+    void testRestartTranscode() throws IOException {
+        MediaCache cache = cache();
+        try (MediaCache.Download partial = cache.download(MediaCache.key("s1", "flac")).orElseThrow()) {
+            partial.restart("audio/flac");
+            partial.write("XXXXX".getBytes(StandardCharsets.US_ASCII), 0, 5); // an earlier, different encode
+        }
+
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        controller(2, cache).proxyStream("s1", null, response);
+        assertEquals(200, response.getStatus());
+        assertArrayEquals(AUDIO, response.getContentAsByteArray());
+        assertNull(upstreamRange.get());
+        assertEquals(AUDIO.length, registry.get("stream.proxy.bytes").counter().count());
+
+        MockHttpServletResponse again = new MockHttpServletResponse();
+        controller(2, cache).proxyStream("s1", null, again);
+        assertArrayEquals(AUDIO, again.getContentAsByteArray());
+        assertEquals(1, upstreamRequests.get());
+    }
+
+    private MediaCache cache() {
+        return new MediaCache(cacheDir.toString(), 1 << 20, registry);
+    }
+
+    private SubsonicController controller(int maxStreams) {
+        return controller(maxStreams, new MediaCache("", 0, registry));
+    }
+
+    private SubsonicController controller(int maxStreams, MediaCache cache) {
+        return controller(maxStreams, cache, "flac");
+    }
+
+    private SubsonicController controller(int maxStreams, MediaCache cache, String format) {
+        return new SubsonicController(new SubsonicConfig(), subsonic, null, cache, format, maxStreams, registry);
+    }
+}
@@ -0,0 +1,263 @@
+package net.iotku.subdonic.bot;
+
+import com.sedmelluq.discord.lavaplayer.player.AudioLoadResultHandler;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
+import com.sedmelluq.discord.lavaplayer.player.DefaultAudioPlayerManager;
+import com.sedmelluq.discord.lavaplayer.tools.FriendlyException;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackEndReason;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo;
+import com.sun.net.httpserver.HttpServer;
+import discord4j.common.util.Snowflake;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import net.iotku.subdonic.api.v1.dto.Song;
+import net.iotku.subdonic.subsonic.SubsonicClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for preloading the next queued track and loading the front of the queue.
+ * Tests when the scheduler asks for a preload, that a preload opens the stream only once,
+ * that a long queue only loads the songs close to playing, that each track starts at its format's volume,
+ * and that a guild's loads share one set of caps.
+ */
+@DisplayName("Audio Track Scheduler Tests")
+public class AudioTrackSchedulerTests {
+    private HttpServer server;
+    private final AtomicInteger upstreamRequests = new AtomicInteger();
+    private SubsonicAudioSourceManager source;
+    private DefaultAudioPlayerManager playerManager;
+    private final List<Runnable> preloads = new ArrayList<>();
+    private AudioTrackScheduler scheduler;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            upstreamRequests.incrementAndGet();
+            exchange.getResponseHeaders().set("Content-Type", "audio/flac");
+            exchange.sendResponseHeaders(200, 4);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(new byte[]{'f', 'L', 'a', 'C'});
+            }
+        });
+        server.start();
+        source = new SubsonicAudioSourceManager(
+                new SubsonicClient("http://127.0.0.1:" + server.getAddress().getPort(), "user", "pass"), "flac");
+        playerManager = new DefaultAudioPlayerManager();
+        TrackPreloader preloader = new TrackPreloader(5000, new SimpleMeterRegistry(), preloads::add);
+        scheduler = new AudioTrackScheduler(playerManager.createPlayer(), preloader);
+    }
+
+    @AfterEach
+    void tearDown() {
+        playerManager.shutdown();
+        server.stop(0);
+    }
+
+    @Test
+    @DisplayName("Should preload the head of the queue once, close to the end of the playing track")
+    void testPreloadTiming() {
+        SubsonicAudioTrack playing = track("s1");
+        scheduler.getQueue().add(new QueuedTrack(track("s2")));
+
+        scheduler.onFrame(playing, 10_000);
+        assertTrue(preloads.isEmpty());
+        scheduler.onFrame(playing, 56_000);
+        scheduler.onFrame(playing, 56_020);
+        assertEquals(1, preloads.size());
+
+        scheduler.getQueue().poll(); // the queue changed, e.g. a !skip
+        scheduler.getQueue().add(new QueuedTrack(track("s3")));
+        scheduler.onFrame(playing, 56_040);
+        assertEquals(2, preloads.size());
+    }
+
+    @Test
+    @DisplayName("Should open the stream ahead of playback and close it when cancelled")
+    void testPreloadStream() {
+        SubsonicAudioTrack next = track("s2");
+        next.preload();
+        next.preload(); // already open
+        assertEquals(1, upstreamRequests.get());
+
+        next.cancelPreload();
+        next.preload(); // cancelled tracks stay cold
+        assertEquals(1, upstreamRequests.get());
+    }
+
+    @Test
+    @DisplayName("Should start the next queued track when the playing one fails to load")
+    void testAdvanceOnLoadFailed() {
+        List<AudioTrack> started = new ArrayList<>();
+        scheduler.setOnTrackStart(started::add);
+        SubsonicAudioTrack failed = track("s1");
+        SubsonicAudioTrack next = track("s2");
+        next.setUserData(new Song("s2", "Unknown artist", "Album", "2020", "s2"));
+        scheduler.getQueue().add(new QueuedTrack(next));
+
+        scheduler.onTrackEnd(playerManager.createPlayer(), failed, AudioTrackEndReason.LOAD_FAILED);
+        assertEquals(List.of(next), started);
+        assertTrue(scheduler.getQueue().isEmpty());
+    }
+
+    @Test
+    @DisplayName("Should set the volume from the format each track streams in, and leave a playing track's alone")
+    void testVolumePerTrack() {
+        AudioPlayer player = playerManager.createPlayer();
+        AudioTrackScheduler guild = new AudioTrackScheduler(player);
+        guild.setVolume(GuildAudioManager::volumeFor);
+        SubsonicAudioTrack opus = track("s1");
+        opus.setPreference(new FormatSelector.StreamPreference(SubsonicAudioSourceManager.Format.OPUS, 0));
+        opus.setUserData(new Song("s1", "Unknown artist", "Album", "2020", "s1"));
+        SubsonicAudioTrack flac = track("s2");
+        flac.setUserData(new Song("s2", "Unknown artist", "Album", "2020", "s2"));
+
+        assertTrue(guild.play(opus, true));
+        assertEquals(100, player.getVolume());
+        assertFalse(guild.play(flac, false)); // queued behind the playing Opus track
+        assertEquals(100, player.getVolume());
+        assertTrue(guild.play(flac.makeClone(), true));
+        assertEquals(GuildAudioManager.DEFAULT_VOLUME, player.getVolume());
+    }
+
+    @Test
+    @DisplayName("Should load only the front of a long queue, and let go of tracks that leave it")
+    void testLoadAhead() {
+        List<String> requested = new ArrayList<>();
+        Map<String, AudioLoadResultHandler> loads = new HashMap<>(); // song id -> handler of its latest load
+        AudioTrackScheduler lazy = new AudioTrackScheduler(playerManager.createPlayer(), null, 2, (song, handler) -> {
+            requested.add(song.id());
+            loads.put(song.id(), handler);
+        });
+        List<Song> songs = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) songs.add(new Song("t" + i, "Unknown artist", "Album", "2020", "s" + i));
+
+        lazy.enqueue(songs, FormatSelector.StreamPreference.AUTO);
+        // Nothing was playing, so s0 was taken to play once it loads, and the two songs after it load ahead
+        assertEquals(List.of("s0", "s1", "s2"), requested);
+        assertEquals(4999, lazy.getQueue().size());
+
+        loads.get("s1").trackLoaded(track("s1"));
+        QueuedTrack first = lazy.getQueue().get(0);
+        assertNotNull(first.track());
+        assertSame(songs.get(1), first.track().getUserData());
+
+        lazy.move(4000, 0); // s4001 to the front, s2 drops out of the front before it finished loading
+        assertEquals(List.of("s0", "s1", "s2", "s4001"), requested);
+        loads.get("s2").trackLoaded(track("s2"));
+        assertNull(lazy.getQueue().get(2).track());
+        assertSame(first, lazy.getQueue().get(1));
+        assertNotNull(first.track());
+
+        lazy.move(0, 4000); // back where it was, s1 and s2 are the front again
+        assertNull(lazy.getQueue().get(4000).track());
+        assertEquals(List.of("s0", "s1", "s2", "s4001", "s2"), requested); // its track was let go, load it again
+        loads.get("s2").trackLoaded(track("s2"));
+        assertNotNull(lazy.getQueue().get(1).track());
+
+        loads.get("s4001").noMatches(); // songs that won't load are dropped from the queue
+        assertEquals(4998, lazy.getQueue().size());
+    }
+
+    @Test
+    @DisplayName("Should let go of a track queued already loaded once it's moved behind the front")
+    void testReleasePlayedTrack() {
+        List<String> requested = new ArrayList<>();
+        Map<String, AudioLoadResultHandler> loads = new HashMap<>();
+        AudioTrackScheduler lazy = new AudioTrackScheduler(playerManager.createPlayer(), null, 2, (song, handler) -> {
+            requested.add(song.id());
+            loads.put(song.id(), handler);
+        });
+        lazy.enqueue(List.of(new Song("t0", "Unknown artist", "Album", "2020", "s0")), FormatSelector.StreamPreference.AUTO);
+
+        SubsonicAudioTrack played = track("p1"); // e.g. !play while s0 is still loading
+        played.setUserData(new Song("p1", "Unknown artist", "Album", "2020", "p1"));
+        assertFalse(lazy.play(played, false, false));
+        List<Song> songs = new ArrayList<>();
+        for (int i = 1; i < 4; i++) songs.add(new Song("t" + i, "Unknown artist", "Album", "2020", "s" + i));
+        lazy.enqueue(songs, FormatSelector.StreamPreference.AUTO);
+        assertSame(played, lazy.getQueue().get(0).track());
+        assertEquals(List.of("s0", "s1"), requested);
+
+        QueuedTrack entry = lazy.move(0, 3);
+        assertNull(entry.track());
+        lazy.move(3, 0); // back at the front, loaded again like any other song
+        assertEquals(List.of("s0", "s1", "s2", "p1"), requested);
+        loads.get("p1").trackLoaded(track("p1"));
+        assertNotNull(entry.track());
+    }
+
+    @Test
+    @DisplayName("Should retry a queued song the load scheduler turned away, and only drop songs that failed for good")
+    void testRetryRejectedLoad() throws InterruptedException {
+        List<String> requested = Collections.synchronizedList(new ArrayList<>());
+        Map<String, AudioLoadResultHandler> loads = new ConcurrentHashMap<>();
+        AudioTrackScheduler lazy = new AudioTrackScheduler(playerManager.createPlayer(), null, 2, (song, handler) -> {
+            requested.add(song.id());
+            if (requested.size() == 2) handler.loadFailed(new TrackLoadScheduler.Rejected()); // s1's first load
+            else loads.put(song.id(), handler);
+        });
+        List<Song> songs = new ArrayList<>();
+        for (int i = 0; i < 4; i++) songs.add(new Song("t" + i, "Unknown artist", "Album", "2020", "s" + i));
+
+        lazy.enqueue(songs, FormatSelector.StreamPreference.AUTO);
+        assertEquals(List.of("s0", "s1", "s2"), requested);
+        assertEquals(3, lazy.getQueue().size()); // s1 is still queued
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!loads.containsKey("s1") && System.nanoTime() < deadline) Thread.sleep(10);
+        assertEquals(List.of("s0", "s1", "s2", "s1"), requested);
+        loads.get("s1").trackLoaded(track("s1"));
+        assertNotNull(lazy.getQueue().get(0).track());
+
+        loads.get("s2").loadFailed(new FriendlyException("Unknown file format", FriendlyException.Severity.COMMON, null));
+        assertEquals(2, lazy.getQueue().size());
+        assertSame(songs.get(3), lazy.getQueue().get(1).song());
+    }
+
+    @Test
+    @DisplayName("Should count a guild's queue loads and its !play loads against the same caps, a station's while tuned in")
+    void testSharedLoadCaps() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        GuildAudioManager.registerLoadScheduler(new TrackLoadScheduler(0, 1, 1, registry)); // nothing starts, one waits
+        try {
+            Snowflake guildId = Snowflake.of(22L);
+            GuildAudioManager.of(guildId).getScheduler().enqueue(
+                    List.of(new Song("t1", "Unknown artist", "Album", "2020", "s1")), FormatSelector.StreamPreference.AUTO);
+            AudioTrackScheduler.loadTrack(new Song("t2", "Unknown artist", "Album", "2020", "s2"), guildId);
+            assertEquals(1, registry.get("audio.load.rejected").counter().count());
+
+            Snowflake listenerId = Snowflake.of(23L);
+            Station station = Station.of("shared-caps");
+            GuildAudioManager.of(listenerId).tune(station).block();
+            station.getScheduler().enqueue(
+                    List.of(new Song("t3", "Unknown artist", "Album", "2020", "s3")), FormatSelector.StreamPreference.AUTO);
+            AudioTrackScheduler.loadTrack(new Song("t4", "Unknown artist", "Album", "2020", "s4"), listenerId);
+            assertEquals(2, registry.get("audio.load.rejected").counter().count());
+        } finally {
+            GuildAudioManager.registerLoadScheduler(null);
+        }
+    }
+
+    private SubsonicAudioTrack track(String id) {
+        return new SubsonicAudioTrack(new AudioTrackInfo(id, "Unknown artist", 60_000, SubsonicAudioSourceManager.PREFIX + id,
+                false, null), FormatSelector.StreamPreference.AUTO, source);
+    }
+}
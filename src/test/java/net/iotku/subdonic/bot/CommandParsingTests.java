@@ -4,6 +4,7 @@ import discord4j.common.util.Snowflake;
 import discord4j.core.GatewayDiscordClient;
 import discord4j.core.event.domain.message.MessageCreateEvent;
 import discord4j.core.object.entity.Message;
+import net.iotku.subdonic.subsonic.SearchService;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
@@ -41,7 +42,7 @@ public class CommandParsingTests {
         Bot mockBot = mock(Bot.class);
         when(mockBot.getOwnerId()).thenReturn(TestDataFactory.TEST_OWNER_ID);
 
-        commands = new Commands(mockBot);
+        commands = new Commands(mockBot, mock(SearchService.class));
     }
 
     @AfterEach
@@ -303,7 +304,7 @@ public class CommandParsingTests {
                 // Verify the command doesn't exist in registry using both methods
                 String[] parts = stripped.split("\\s+", 2);
                 String commandName = parts[0].toLowerCase();
-                assertNull(Commands.get(commandName), "Malformed command should not exist in command registry");
+                assertNull(commands.get(commandName), "Malformed command should not exist in command registry");
             }, "Should handle malformed commands without throwing exceptions");
         }
     }
@@ -391,7 +392,7 @@ public class CommandParsingTests {
             // Verify the command exists in registry using both methods
             String[] parts = stripped.split("\\s+", 2);
             String commandName = parts[0].toLowerCase();
-            assertNotNull(Commands.get(commandName), "Valid command should exist in command registry");
+            assertNotNull(commands.get(commandName), "Valid command should exist in command registry");
 
             // Verify arguments are parsed correctly
             assertEquals("play", parts[0], "Command name should be parsed correctly");
@@ -417,7 +418,7 @@ public class CommandParsingTests {
             // Verify the command doesn't exist in registry but parsing still works
             String[] parts = stripped.split("\\s+", 2);
             String commandName = parts[0].toLowerCase();
-            assertNull(Commands.get(commandName), "Invalid command should return null from command registry");
+            assertNull(commands.get(commandName), "Invalid command should return null from command registry");
 
             // Verify arguments are still parsed correctly
             assertEquals("nonexistentcommand", parts[0], "Command name should be parsed correctly");
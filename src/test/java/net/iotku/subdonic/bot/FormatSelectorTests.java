@@ -0,0 +1,65 @@
+package net.iotku.subdonic.bot;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import net.iotku.subdonic.bot.FormatSelector.Reason;
+import net.iotku.subdonic.bot.FormatSelector.Selection;
+import net.iotku.subdonic.bot.FormatSelector.StreamPreference;
+import net.iotku.subdonic.bot.SubsonicAudioSourceManager.Format;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for picking the format songs stream from Subsonic in.
+ * Tests guild preferences, and falling back to capped Opus under CPU and stream pressure.
+ */
+@DisplayName("Format Selector Tests")
+public class FormatSelectorTests {
+    private double cpu;
+    private SimpleMeterRegistry registry;
+    private FormatSelector selector;
+
+    @BeforeEach
+    void setUp() {
+        cpu = 0.1;
+        registry = new SimpleMeterRegistry();
+        selector = new FormatSelector(Format.FLAC, 0, true, 0.75, 2, 128, () -> cpu, registry);
+    }
+
+    @Test
+    @DisplayName("Should stream the configured format while the process has headroom")
+    void testConfigured() {
+        assertEquals(new Selection(Format.FLAC, 0, Reason.CONFIGURED), selector.select(StreamPreference.AUTO));
+        assertEquals(new Selection(Format.FLAC, 320, Reason.CONFIGURED), selector.select(new StreamPreference(null, 320)));
+    }
+
+    @Test
+    @DisplayName("Should fall back to capped Opus when CPU or concurrent streams cross the thresholds")
+    void testFallback() {
+        cpu = 0.9;
+        assertEquals(new Selection(Format.OPUS, 128, Reason.CPU), selector.select(StreamPreference.AUTO));
+        assertEquals(new Selection(Format.OPUS, 96, Reason.CPU), selector.select(new StreamPreference(null, 96)));
+
+        cpu = 0.1;
+        Selection first = selector.select(StreamPreference.AUTO);
+        selector.streamStarted(first);
+        selector.streamStarted(first);
+        assertEquals(new Selection(Format.OPUS, 128, Reason.STREAMS), selector.select(StreamPreference.AUTO));
+        assertEquals(2, registry.get("audio.stream.active").gauge().value());
+        assertEquals(2, registry.get("audio.stream.selections").tag("format", "flac").tag("reason", "configured")
+                .counter().count());
+
+        selector.streamEnded();
+        assertEquals(Reason.CONFIGURED, selector.select(StreamPreference.AUTO).reason());
+    }
+
+    @Test
+    @DisplayName("Should keep a format the guild pinned, even under load")
+    void testGuildPinned() {
+        cpu = 0.9;
+        assertEquals(new Selection(Format.MP3, 192, Reason.GUILD), selector.select(new StreamPreference(Format.MP3, 192)));
+        assertEquals(new Selection(Format.FLAC, 0, Reason.CONFIGURED), FormatSelector.fixed(Format.FLAC).select(StreamPreference.AUTO));
+    }
+}
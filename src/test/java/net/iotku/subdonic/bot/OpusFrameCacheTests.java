@@ -0,0 +1,123 @@
+package net.iotku.subdonic.bot;
+
+import com.sedmelluq.discord.lavaplayer.format.StandardAudioDataFormats;
+import com.sedmelluq.discord.lavaplayer.player.AudioConfiguration;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for the disk cache of encoded Opus frames.
+ * Tests frame files round trip, the LRU byte budget, and picking entries back up after a restart.
+ */
+@DisplayName("Opus Frame Cache Tests")
+public class OpusFrameCacheTests {
+    @TempDir
+    Path dir;
+    private SimpleMeterRegistry registry;
+
+    @BeforeEach
+    void setUp() {
+        registry = new SimpleMeterRegistry();
+    }
+
+    @Test
+    @DisplayName("Should read back stored frames byte for byte")
+    void testRoundTrip() {
+        OpusFrameCache cache = cache(1 << 20);
+        String key = key("s1");
+        assertTrue(cache.open(key).isEmpty());
+
+        cache.store(key, body(new byte[]{1, 2, 3}, new byte[0], new byte[300]), 3);
+        OpusFrameCache.Frames frames = cache.open(key).orElseThrow();
+        assertEquals(3, frames.count());
+        assertArrayEquals(new byte[]{1, 2, 3}, frames.frame(0));
+        assertEquals(0, frames.frame(1).length);
+        assertEquals(300, frames.frame(2).length);
+
+        assertEquals(1, registry.get("audio.frame-cache.requests").tag("result", "hit").counter().count());
+        assertEquals(1, registry.get("audio.frame-cache.requests").tag("result", "miss").counter().count());
+    }
+
+    @Test
+    @DisplayName("Should key on encoding parameters, not just the song")
+    void testKey() {
+        OpusFrameCache cache = cache(1 << 20);
+        cache.store(key("s1"), body(new byte[]{1}), 1);
+        String louder = OpusFrameCache.key("s1", "flac", StandardAudioDataFormats.DISCORD_OPUS, 100, new AudioConfiguration());
+        assertTrue(cache.open(louder).isEmpty());
+        assertTrue(cache.open(key("s1")).isPresent());
+    }
+
+    @Test
+    @DisplayName("Should evict the least recently used songs once over the byte budget")
+    void testEviction() {
+        byte[] frame = new byte[1000];
+        OpusFrameCache cache = cache(2500);
+        cache.store(key("a"), body(frame), 1);
+        cache.store(key("b"), body(frame), 1);
+        assertTrue(cache.open(key("a")).isPresent()); // b is now the eldest
+        cache.store(key("c"), body(frame), 1);
+
+        assertTrue(cache.open(key("a")).isPresent());
+        assertTrue(cache.open(key("b")).isEmpty());
+        assertTrue(cache.open(key("c")).isPresent());
+        assertTrue(cache.sizeBytes() <= 2500);
+        assertEquals(1, registry.get("audio.frame-cache.evictions").counter().count());
+    }
+
+    @Test
+    @DisplayName("Should pick up entries from a previous run and drop unreadable ones")
+    void testRestart() throws IOException {
+        OpusFrameCache first = cache(1 << 20);
+        first.store(key("s1"), body(new byte[]{9, 9}), 1);
+        first.store(key("s2"), body(new byte[]{8}), 1);
+        try (Stream<Path> files = Files.list(dir)) {
+            Files.write(files.findFirst().orElseThrow(), new byte[]{0, 0, 0, 0}); // corrupt one of them
+        }
+
+        OpusFrameCache second = cache(1 << 20);
+        int readable = (second.open(key("s1")).isPresent() ? 1 : 0) + (second.open(key("s2")).isPresent() ? 1 : 0);
+        assertEquals(1, readable);
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    @Test
+    @DisplayName("Should do nothing when disabled")
+    void testDisabled() {
+        OpusFrameCache cache = new OpusFrameCache(null, 1 << 20, registry, Runnable::run);
+        assertFalse(cache.isEnabled());
+        cache.store(key("s1"), body(new byte[]{1}), 1);
+        assertTrue(cache.open(key("s1")).isEmpty());
+    }
+
+    private OpusFrameCache cache(long maxBytes) {
+        return new OpusFrameCache(dir, maxBytes, registry, Runnable::run);
+    }
+
+    private static String key(String songId) {
+        return OpusFrameCache.key(songId, "flac", StandardAudioDataFormats.DISCORD_OPUS, 45, new AudioConfiguration());
+    }
+
+    private static byte[] body(byte[]... frames) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] frame : frames) {
+            out.write(frame.length >>> 8);
+            out.write(frame.length);
+            out.writeBytes(frame);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,53 @@
+package net.iotku.subdonic.bot;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for the per guild play history.
+ * Tests membership, the false positive rate and forgetting old generations.
+ */
+@DisplayName("Play History Tests")
+public class PlayHistoryTests {
+
+    @Test
+    @DisplayName("Should remember recorded songs and rarely claim unrecorded ones")
+    void testMembership() {
+        PlayHistory history = new PlayHistory();
+        IntStream.range(0, PlayHistory.GENERATION_CAPACITY).forEach(i -> history.record("song-" + i));
+
+        assertTrue(IntStream.range(0, PlayHistory.GENERATION_CAPACITY).allMatch(i -> history.contains("song-" + i)));
+        long falsePositives = IntStream.range(0, 10_000).filter(i -> history.contains("other-" + i)).count();
+        assertTrue(falsePositives < 300, "false positives: " + falsePositives); // ~1% expected
+    }
+
+    @Test
+    @DisplayName("Should keep the previous generation and forget the one before it")
+    void testGenerations() {
+        PlayHistory history = new PlayHistory();
+        int n = PlayHistory.GENERATION_CAPACITY;
+        IntStream.range(0, n).forEach(i -> history.record("old-" + i));
+        IntStream.range(0, n).forEach(i -> history.record("mid-" + i));
+        assertTrue(history.contains("old-0"));
+        assertTrue(history.contains("mid-0"));
+
+        IntStream.range(0, n).forEach(i -> history.record("new-" + i));
+        assertTrue(history.contains("mid-" + (n - 1)));
+        assertTrue(history.contains("new-0"));
+        long remembered = IntStream.range(0, n).filter(i -> history.contains("old-" + i)).count();
+        assertTrue(remembered < n / 10, "old songs still remembered: " + remembered);
+    }
+
+    @Test
+    @DisplayName("Should not use up a generation on repeats")
+    void testRepeats() {
+        PlayHistory history = new PlayHistory();
+        history.record("first");
+        for (int i = 0; i < PlayHistory.GENERATION_CAPACITY * 3; i++) history.record("loop");
+        assertTrue(history.contains("first"));
+    }
+}
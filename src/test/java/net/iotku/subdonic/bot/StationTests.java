@@ -0,0 +1,119 @@
+package net.iotku.subdonic.bot;
+
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
+import com.sedmelluq.discord.lavaplayer.player.DefaultAudioPlayerManager;
+import discord4j.common.util.Snowflake;
+import discord4j.voice.AudioProvider;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for stations shared between guilds.
+ * Tests that frames are produced once for every listener, that slow listeners skip instead of stalling, and that
+ * guilds stop listening when they disconnect.
+ */
+@DisplayName("Station Tests")
+public class StationTests {
+    private DefaultAudioPlayerManager playerManager;
+    private int produced;
+    private Station station;
+
+    @BeforeEach
+    void setUp() {
+        playerManager = new DefaultAudioPlayerManager();
+        AudioPlayer player = playerManager.createPlayer();
+        AudioProvider producer = new AudioProvider(ByteBuffer.allocate(16)) {
+            @Override
+            public boolean provide() {
+                getBuffer().clear();
+                getBuffer().putInt(produced++).flip();
+                return true;
+            }
+        };
+        station = new Station("test", player, new AudioTrackScheduler(player), producer);
+    }
+
+    @AfterEach
+    void tearDown() {
+        playerManager.shutdown();
+    }
+
+    @Test
+    @DisplayName("Should produce each frame once and hand it to every listener")
+    void testFanOut() {
+        StationAudioProvider first = station.subscribe(null);
+        StationAudioProvider second = station.subscribe(null);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(first.provide());
+            assertTrue(second.provide());
+            assertEquals(i, first.getBuffer().getInt(0));
+            assertEquals(i, second.getBuffer().getInt(0));
+        }
+        assertEquals(10, produced);
+    }
+
+    @Test
+    @DisplayName("Should skip a listener that fell behind to the newest frame")
+    void testSlowListener() {
+        StationAudioProvider fast = station.subscribe(null);
+        StationAudioProvider slow = station.subscribe(null);
+        for (int i = 0; i < Station.BUFFER_FRAMES + 10; i++) assertTrue(fast.provide());
+
+        assertTrue(slow.provide());
+        assertEquals(Station.BUFFER_FRAMES + 9, slow.getBuffer().getInt(0));
+        assertEquals(Station.BUFFER_FRAMES + 9, slow.getSkipped());
+        assertEquals(0, fast.getSkipped());
+
+        assertTrue(fast.provide());
+        assertTrue(slow.provide()); // caught up, in step from here
+        assertEquals(fast.getBuffer().getInt(0), slow.getBuffer().getInt(0));
+    }
+
+    @Test
+    @DisplayName("Should stop messaging a guild once it disconnects")
+    void testDisconnectLeavesStation() {
+        GuildAudioManager guild = GuildAudioManager.of(Snowflake.of(20L));
+        guild.tune(station).block();
+        assertTrue(station.isListening(guild));
+        assertEquals(station, guild.getStation().orElseThrow());
+
+        guild.disconnect().block();
+        assertFalse(station.isListening(guild));
+        assertTrue(guild.getStation().isEmpty());
+    }
+
+    @Test
+    @DisplayName("Should never hand out a frame the writer was overwriting")
+    void testTornReads() throws InterruptedException {
+        FrameRing ring = new FrameRing(4, 64);
+        AtomicBoolean done = new AtomicBoolean();
+        Thread writer = new Thread(() -> {
+            byte[] frame = new byte[64];
+            for (int i = 0; i < 200_000; i++) {
+                Arrays.fill(frame, (byte) i);
+                ring.write(ByteBuffer.wrap(frame, 0, 1 + i % 64));
+            }
+            done.set(true);
+        });
+        writer.start();
+        ByteBuffer into = ByteBuffer.allocate(64);
+        long next = 0;
+        while (!done.get()) {
+            long read = ring.read(next, into);
+            if (read < 0) continue;
+            assertEquals(1 + read % 64, into.remaining());
+            byte expected = (byte) read;
+            while (into.hasRemaining()) assertEquals(expected, into.get());
+            next = read + 1;
+        }
+        writer.join();
+    }
+}
@@ -0,0 +1,148 @@
+package net.iotku.subdonic.bot;
+
+import com.sedmelluq.discord.lavaplayer.player.DefaultAudioPlayerManager;
+import com.sedmelluq.discord.lavaplayer.tools.io.MessageInput;
+import com.sedmelluq.discord.lavaplayer.tools.io.MessageOutput;
+import com.sedmelluq.discord.lavaplayer.tools.io.NonSeekableInputStream;
+import com.sedmelluq.discord.lavaplayer.track.AudioItem;
+import com.sedmelluq.discord.lavaplayer.track.AudioReference;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import net.iotku.subdonic.api.v1.dto.Song;
+import net.iotku.subdonic.subsonic.MediaCache;
+import net.iotku.subdonic.subsonic.SubsonicClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for the Subsonic LavaPlayer source.
+ * Tests identifier resolution, signed URLs, that tracks survive cloning and encoding, and the media cache streams.
+ */
+@DisplayName("Subsonic Audio Source Manager Tests")
+public class SubsonicAudioSourceManagerTests {
+    private SubsonicAudioSourceManager source;
+    private DefaultAudioPlayerManager playerManager;
+
+    @TempDir
+    Path cacheDir;
+
+    @BeforeEach
+    void setUp() {
+        source = new SubsonicAudioSourceManager(new SubsonicClient("http://music.example", "user", "pass"), "opus");
+        playerManager = new DefaultAudioPlayerManager();
+        playerManager.registerSourceManager(source);
+    }
+
+    @AfterEach
+    void tearDown() {
+        playerManager.shutdown();
+    }
+
+    @Test
+    @DisplayName("Should resolve subsonic: identifiers without touching the network, and ignore anything else")
+    void testLoadItem() {
+        Song song = new Song("Two Trucks", "Lemon Demon", "Nature Tapes", "2014", "s1");
+        AudioItem item = source.loadItem(playerManager, new AudioReference(SubsonicAudioSourceManager.identifier(song), "Lemon Demon - Two Trucks"));
+        SubsonicAudioTrack track = assertInstanceOf(SubsonicAudioTrack.class, item);
+        assertEquals("subsonic:s1", track.getIdentifier());
+        assertEquals("Lemon Demon - Two Trucks", track.getInfo().title);
+        assertEquals(SubsonicAudioSourceManager.Format.OPUS, track.getFormat());
+
+        assertNull(source.loadItem(playerManager, new AudioReference("https://example.com/a.flac", null)));
+    }
+
+    @Test
+    @DisplayName("Should sign a fresh stream URL in the configured format")
+    void testStreamUrl() {
+        FormatSelector.Selection opus = FormatSelector.fixed(SubsonicAudioSourceManager.Format.OPUS)
+                .select(FormatSelector.StreamPreference.AUTO);
+        URI url = source.streamUrl("subsonic:s1", opus);
+        assertTrue(url.toString().startsWith("http://music.example/rest/stream.view?"));
+        assertTrue(url.getRawQuery().contains("id=s1"));
+        assertTrue(url.getRawQuery().contains("format=opus"));
+        assertNotEquals(url, source.streamUrl("subsonic:s1", opus)); // new salt each time
+    }
+
+    @Test
+    @DisplayName("Should keep the format through makeClone and encode/decode")
+    void testCloneAndEncode() throws IOException {
+        AudioTrack track = (AudioTrack) source.loadItem(playerManager, new AudioReference("subsonic:s1", null));
+        SubsonicAudioTrack clone = assertInstanceOf(SubsonicAudioTrack.class, track.makeClone());
+        assertEquals(SubsonicAudioSourceManager.Format.OPUS, clone.getFormat());
+        assertEquals("subsonic:s1", clone.getIdentifier());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        MessageOutput output = new MessageOutput(bytes);
+        playerManager.encodeTrack(output, track);
+        output.finish();
+        AudioTrack decoded = playerManager.decodeTrack(new MessageInput(new ByteArrayInputStream(bytes.toByteArray()))).decodedTrack;
+        assertEquals("subsonic:s1", assertInstanceOf(SubsonicAudioTrack.class, decoded).getIdentifier());
+        assertEquals(SubsonicAudioSourceManager.Format.OPUS, ((SubsonicAudioTrack) decoded).getFormat());
+    }
+
+    @Test
+    @DisplayName("Should stream in the format and bitrate a guild pinned, e.g. Opus for passthrough guilds")
+    void testPreference() throws IOException {
+        SubsonicAudioSourceManager flacSource = new SubsonicAudioSourceManager(new SubsonicClient("http://music.example", "user", "pass"), "flac");
+        SubsonicAudioTrack track = assertInstanceOf(SubsonicAudioTrack.class,
+                flacSource.loadItem(playerManager, new AudioReference("subsonic:s1", null)));
+        track.setPreference(new FormatSelector.StreamPreference(SubsonicAudioSourceManager.Format.OPUS, 96));
+        assertEquals(SubsonicAudioSourceManager.Format.OPUS, track.getFormat());
+        assertTrue(flacSource.streamUrl("subsonic:s1", track.getSelection()).getRawQuery().contains("maxBitRate=96"));
+
+        SubsonicAudioTrack decoded = assertInstanceOf(SubsonicAudioTrack.class,
+                flacSource.loadItem(playerManager, new AudioReference("subsonic:s2", null)));
+        assertEquals(SubsonicAudioSourceManager.Format.FLAC, decoded.getFormat());
+        assertFalse(flacSource.streamUrl("subsonic:s2", decoded.getSelection()).getRawQuery().contains("maxBitRate"));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        flacSource.encodeTrack(track, new DataOutputStream(bytes));
+        AudioTrack copy = flacSource.decodeTrack(track.getInfo(), new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(track.getPreference(), ((SubsonicAudioTrack) copy).getPreference());
+    }
+
+    @Test
+    @DisplayName("Should reject unknown formats at startup")
+    void testUnknownFormat() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new SubsonicAudioSourceManager(new SubsonicClient("http://music.example", "user", "pass"), "wav"));
+    }
+
+    @Test
+    @DisplayName("Should write a stream played to its end through to the media cache and read it back from disk")
+    void testMediaCacheStreams() throws IOException {
+        MediaCache cache = new MediaCache(cacheDir.toString(), 1 << 20, new SimpleMeterRegistry());
+        byte[] audio = new byte[100_000];
+        for (int i = 0; i < audio.length; i++) audio[i] = (byte) (i * 31);
+        String key = MediaCache.key("s1", "opus@96");
+
+        MediaCache.Download download = cache.download(key).orElseThrow();
+        download.restart("audio/opus");
+        try (WriteThroughStream stream = new WriteThroughStream(new NonSeekableInputStream(new ByteArrayInputStream(audio)), download)) {
+            stream.readNBytes(audio.length - 1000); // the container stops just short of the end
+        }
+        assertTrue(cache.contains(key));
+        assertFalse(cache.contains(MediaCache.key("s1", "flac")));
+
+        try (CachedMediaStream stream = new CachedMediaStream(cache.open(key).orElseThrow(), cache)) {
+            assertEquals(audio.length, stream.getContentLength());
+            assertArrayEquals(Arrays.copyOf(audio, 10), stream.readNBytes(10));
+            stream.seek(90_000);
+            assertArrayEquals(Arrays.copyOfRange(audio, 90_000, audio.length), stream.readAllBytes());
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package net.iotku.subdonic.bot;
+
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo;
+import net.iotku.subdonic.subsonic.SubsonicClient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for loading songs as a batch.
+ * Tests that tracks are committed in request order whatever order they arrive in, and reported once.
+ */
+@DisplayName("Track Batch Tests")
+public class TrackBatchTests {
+    private final List<String> committed = new ArrayList<>();
+    private final List<List<AudioTrack>> reports = new ArrayList<>();
+    private SubsonicAudioSourceManager source;
+
+    @BeforeEach
+    void setUp() {
+        source = new SubsonicAudioSourceManager(new SubsonicClient("http://music.example", "user", "pass"), "flac");
+    }
+
+    @Test
+    @DisplayName("Should commit tracks in request order as soon as everything before them arrived")
+    void testReorder() {
+        TrackBatch batch = new TrackBatch(3, track -> committed.add(track.getIdentifier()), reports::add);
+        batch.arrived(2, track("c"));
+        batch.arrived(1, track("b"));
+        assertTrue(committed.isEmpty()); // waiting for the first
+        batch.arrived(0, track("a"));
+        assertEquals(List.of("subsonic:a", "subsonic:b", "subsonic:c"), committed);
+        assertEquals(1, reports.size());
+        assertEquals(3, reports.getFirst().size());
+    }
+
+    @Test
+    @DisplayName("Should skip songs that failed to load without holding up the rest")
+    void testFailures() {
+        TrackBatch batch = new TrackBatch(3, track -> committed.add(track.getIdentifier()), reports::add);
+        batch.arrived(0, track("a"));
+        batch.arrived(1, null);
+        assertEquals(List.of("subsonic:a"), committed);
+        batch.arrived(2, track("c"));
+        batch.arrived(2, track("c")); // delivered twice, counted once
+        assertEquals(List.of("subsonic:a", "subsonic:c"), committed);
+        assertEquals(1, reports.size());
+        assertEquals(2, reports.getFirst().size());
+    }
+
+    private AudioTrack track(String id) {
+        return new SubsonicAudioTrack(new AudioTrackInfo(id, "Unknown artist", 60_000, SubsonicAudioSourceManager.PREFIX + id,
+                false, null), FormatSelector.StreamPreference.AUTO, source);
+    }
+}
@@ -0,0 +1,106 @@
+package net.iotku.subdonic.bot;
+
+import com.sedmelluq.discord.lavaplayer.player.AudioLoadResultHandler;
+import com.sedmelluq.discord.lavaplayer.tools.FriendlyException;
+import com.sedmelluq.discord.lavaplayer.track.AudioPlaylist;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for sharing track loads between guilds.
+ * Tests that guilds take turns, that a guild's results come back in order, and the per-guild cap.
+ */
+@DisplayName("Track Load Scheduler Tests")
+public class TrackLoadSchedulerTests {
+    private final List<String> started = new ArrayList<>();
+    private final Map<String, CompletableFuture<AudioTrack>> running = new HashMap<>();
+    private final List<String> delivered = new ArrayList<>();
+    private SimpleMeterRegistry registry;
+
+    @BeforeEach
+    void setUp() {
+        registry = new SimpleMeterRegistry();
+    }
+
+    @Test
+    @DisplayName("Should let a guild with one song go before the rest of a big batch")
+    void testTakeTurns() {
+        TrackLoadScheduler scheduler = new TrackLoadScheduler(1, 1, 25, registry);
+        for (int i = 0; i < 5; i++) scheduler.submit("busy", loader("busy" + i), handler("busy" + i));
+        scheduler.submit("quiet", loader("quiet0"), handler("quiet0"));
+
+        finish("busy0");
+        finish("quiet0"); // second, not sixth
+        finish("busy1");
+        assertEquals(List.of("busy0", "quiet0", "busy1", "busy2"), started);
+        assertEquals(4, registry.get("audio.load.queue-wait").timer().count());
+    }
+
+    @Test
+    @DisplayName("Should hand a guild's results back in the order it asked for them")
+    void testOrder() {
+        TrackLoadScheduler scheduler = new TrackLoadScheduler(4, 2, 25, registry);
+        scheduler.submit("guild", loader("a"), handler("a"));
+        scheduler.submit("guild", loader("b"), handler("b"));
+        scheduler.submit("guild", loader("c"), handler("c"));
+        assertEquals(List.of("a", "b"), started);
+
+        finish("b");
+        assertTrue(delivered.isEmpty()); // waits for a
+        finish("a");
+        assertEquals(List.of("a", "b"), delivered);
+        finish("c");
+        assertEquals(List.of("a", "b", "c"), delivered);
+    }
+
+    @Test
+    @DisplayName("Should turn loads away once a guild has too many waiting")
+    void testPendingCap() {
+        TrackLoadScheduler scheduler = new TrackLoadScheduler(1, 1, 2, registry);
+        assertTrue(scheduler.submit("guild", loader("a"), handler("a"))); // running
+        assertTrue(scheduler.submit("guild", loader("b"), handler("b")));
+        assertTrue(scheduler.submit("guild", loader("c"), handler("c")));
+        assertFalse(scheduler.submit("guild", loader("d"), handler("d")));
+        assertEquals(List.of("failed d"), delivered);
+        assertEquals(1, registry.get("audio.load.rejected").counter().count());
+        assertEquals(2, registry.get("audio.load.pending").gauge().value());
+    }
+
+    private Supplier<CompletableFuture<AudioTrack>> loader(String name) {
+        return () -> {
+            started.add(name);
+            CompletableFuture<AudioTrack> load = new CompletableFuture<>();
+            running.put(name, load);
+            return load;
+        };
+    }
+
+    private void finish(String name) {
+        running.get(name).complete(null);
+    }
+
+    private AudioLoadResultHandler handler(String name) {
+        return new AudioLoadResultHandler() {
+            @Override public void trackLoaded(AudioTrack track) {}
+            @Override public void playlistLoaded(AudioPlaylist playlist) {}
+            @Override public void noMatches() {
+                delivered.add(name);
+            }
+            @Override public void loadFailed(FriendlyException exception) {
+                delivered.add("failed " + name);
+            }
+        };
+    }
+}
@@ -0,0 +1,101 @@
+package net.iotku.subdonic.bot;
+
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo;
+import net.iotku.subdonic.subsonic.SubsonicClient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for the guild play queue.
+ * Tests positional operations against a plain list, including across the ring's wrap-around.
+ */
+@DisplayName("Track Queue Tests")
+public class TrackQueueTests {
+    private SubsonicAudioSourceManager source;
+    private final List<QueuedTrack> pool = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        source = new SubsonicAudioSourceManager(new SubsonicClient("http://music.example", "user", "pass"), "flac");
+        for (int i = 0; i < 200; i++) {
+            pool.add(new QueuedTrack(new SubsonicAudioTrack(new AudioTrackInfo("t" + i, "Unknown artist", 60_000,
+                    SubsonicAudioSourceManager.PREFIX + i, false, null), FormatSelector.StreamPreference.AUTO, source)));
+        }
+    }
+
+    @Test
+    @DisplayName("Should skip ahead, dropping the tracks before the wanted one")
+    void testSkip() {
+        TrackQueue queue = new TrackQueue();
+        queue.addAll(pool.subList(0, 10));
+        assertNull(queue.skip(11)); // out of range leaves the queue alone
+        assertEquals(10, queue.size());
+        assertSame(pool.get(2), queue.skip(3));
+        assertEquals(7, queue.size());
+        assertSame(pool.get(3), queue.peek());
+        assertEquals(pool.subList(3, 10), new ArrayList<>(queue));
+    }
+
+    @Test
+    @DisplayName("Should match a plain list through random inserts, removes, moves and polls")
+    void testAgainstList() {
+        Random random = new Random(7);
+        TrackQueue queue = new TrackQueue();
+        List<QueuedTrack> expected = new ArrayList<>();
+        for (int step = 0; step < 20_000; step++) {
+            QueuedTrack track = pool.get(random.nextInt(pool.size()));
+            int op = random.nextInt(7);
+            if (op == 0 || expected.isEmpty()) {
+                queue.add(track);
+                expected.add(track);
+            } else if (op == 1) {
+                int index = random.nextInt(expected.size() + 1);
+                queue.insert(index, track);
+                expected.add(index, track);
+            } else if (op == 2) {
+                int index = random.nextInt(expected.size());
+                assertSame(expected.remove(index), queue.remove(index));
+            } else if (op == 3) {
+                int from = random.nextInt(expected.size());
+                int to = random.nextInt(expected.size());
+                QueuedTrack moved = expected.remove(from);
+                assertSame(moved, queue.move(from, to));
+                expected.add(to, moved);
+            } else if (op == 4) {
+                assertSame(expected.removeFirst(), queue.poll());
+            } else if (op == 5) {
+                int count = 1 + random.nextInt(Math.min(3, expected.size()));
+                assertSame(expected.get(count - 1), queue.skip(count));
+                expected.subList(0, count).clear();
+            } else {
+                queue.addAll(List.of(track, track));
+                expected.add(track);
+                expected.add(track);
+            }
+            assertEquals(expected.size(), queue.size());
+        }
+        assertEquals(expected, new ArrayList<>(queue));
+        assertEquals(expected.subList(1, Math.min(21, expected.size())), queue.slice(1, 20));
+    }
+
+    @Test
+    @DisplayName("Should shuffle in place, keeping every track")
+    void testShuffle() {
+        TrackQueue queue = new TrackQueue();
+        queue.addAll(pool);
+        queue.skip(50); // start away from index 0 so the ring wraps as it refills
+        queue.addAll(pool.subList(0, 50));
+        queue.shuffle(new Random(1));
+        List<QueuedTrack> shuffled = new ArrayList<>(queue);
+        assertNotEquals(new ArrayList<>(pool.subList(50, 200)), shuffled.subList(0, 150));
+        assertEquals(pool.size(), shuffled.size());
+        assertTrue(shuffled.containsAll(pool));
+    }
+}
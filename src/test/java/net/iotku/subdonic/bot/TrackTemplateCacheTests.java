@@ -0,0 +1,95 @@
+package net.iotku.subdonic.bot;
+
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
+import com.sedmelluq.discord.lavaplayer.player.DefaultAudioPlayerManager;
+import com.sedmelluq.discord.lavaplayer.tools.Units;
+import com.sedmelluq.discord.lavaplayer.track.AudioItem;
+import com.sedmelluq.discord.lavaplayer.track.AudioReference;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import net.iotku.subdonic.subsonic.SubsonicClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for the track template cache.
+ * Tests cloning cached songs, merging concurrent loads of one song, and learning a song's length.
+ */
+@DisplayName("Track Template Cache Tests")
+public class TrackTemplateCacheTests {
+    private final AtomicInteger loads = new AtomicInteger();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final List<AudioTrack> loaded = new ArrayList<>();
+    private DefaultAudioPlayerManager playerManager;
+    private SimpleMeterRegistry registry;
+    private TrackTemplateCache cache;
+
+    @BeforeEach
+    void setUp() {
+        playerManager = new DefaultAudioPlayerManager();
+        playerManager.registerSourceManager(new SubsonicAudioSourceManager(
+                new SubsonicClient("http://music.example", "user", "pass"), "flac") {
+            @Override
+            public AudioItem loadItem(AudioPlayerManager manager, AudioReference reference) {
+                loads.incrementAndGet();
+                try {
+                    release.await(5, TimeUnit.SECONDS); // hold the load so other guilds join it
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.loadItem(manager, reference);
+            }
+        });
+        registry = new SimpleMeterRegistry();
+        cache = new TrackTemplateCache(2, registry);
+    }
+
+    @AfterEach
+    void tearDown() {
+        playerManager.shutdown();
+    }
+
+    @Test
+    @DisplayName("Should load a song once for concurrent guilds and clone it for later ones")
+    void testMergeAndClone() throws Exception {
+        AudioReference reference = new AudioReference("subsonic:s1", "Lemon Demon - Two Trucks");
+        CompletableFuture<AudioTrack> first = cache.load("s1", reference, playerManager);
+        CompletableFuture<AudioTrack> second = cache.load("s1", reference, playerManager);
+        release.countDown();
+        loaded.add(first.get(5, TimeUnit.SECONDS));
+        loaded.add(second.get(5, TimeUnit.SECONDS));
+        loaded.add(cache.load("s1", reference, playerManager).get(5, TimeUnit.SECONDS));
+
+        assertEquals(1, loads.get());
+        assertEquals(3, loaded.size());
+        assertEquals(3, loaded.stream().distinct().count()); // every guild plays its own track
+        loaded.forEach(track -> assertEquals("Lemon Demon - Two Trucks", track.getInfo().title));
+        assertEquals(1, registry.get("audio.track-cache.requests").tag("result", "miss").counter().count());
+        assertEquals(1, registry.get("audio.track-cache.requests").tag("result", "merged").counter().count());
+        assertEquals(1, registry.get("audio.track-cache.requests").tag("result", "hit").counter().count());
+    }
+
+    @Test
+    @DisplayName("Should give later clones the length of a song that played through")
+    void testLearnDuration() throws Exception {
+        release.countDown();
+        AudioTrack played = cache.load("s1", new AudioReference("subsonic:s1", null), playerManager).get(5, TimeUnit.SECONDS);
+        assertEquals(Units.DURATION_MS_UNKNOWN, played.getDuration());
+
+        played.setPosition(183_000); // where it stopped when it finished
+        cache.learnDuration(played);
+        AudioTrack replayed = cache.load("s1", new AudioReference("subsonic:s1", null), playerManager).get(5, TimeUnit.SECONDS);
+        assertEquals(183_000, replayed.getDuration());
+    }
+}
@@ -0,0 +1,140 @@
+package net.iotku.subdonic.catalog;
+
+import net.iotku.subdonic.api.v1.dto.Song;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for the in-memory catalog index.
+ * Tests tokenization, multi-token matching, prefix matching, accent folding and copy-on-write deltas.
+ */
+@DisplayName("Catalog Index Tests")
+public class CatalogIndexTests {
+
+    private CatalogIndex index;
+
+    @BeforeEach
+    void setUp() {
+        index = CatalogIndex.of(new CatalogSegment.Builder()
+                .add(new Song("Two Trucks", "Lemon Demon", "Nature Tapes", "2014", "1"), "a1")
+                .add(new Song("Touch-Tone Telephone", "Lemon Demon", "Spirit Phone", "2016", "2"), "a2")
+                .add(new Song("Lifetime Achievement Award", "Lemon Demon", "Spirit Phone", "2016", "3"), "a2")
+                .add(new Song("Café Bustelo", "Beyoncé", "Renaissance", "2022", "4"), "a3")
+                .build());
+    }
+
+    @Test
+    @DisplayName("Should match every token across title, artist and album")
+    void testMultiTokenMatch() {
+        List<Song> results = index.search("two trucks lemon demon", 50);
+        assertEquals(1, results.size());
+        assertEquals("1", results.getFirst().id());
+    }
+
+    @Test
+    @DisplayName("Should return nothing when any token is missing")
+    void testMissingTokenMatchesNothing() {
+        assertTrue(index.search("lemon demon nonexistent", 50).isEmpty());
+    }
+
+    @Test
+    @DisplayName("Should treat the last token as a prefix")
+    void testPrefixMatch() {
+        List<Song> results = index.search("spirit ph", 50);
+        assertEquals(List.of("2", "3"), results.stream().map(Song::id).toList());
+    }
+
+    @Test
+    @DisplayName("Should ignore case, accents and punctuation")
+    void testFolding() {
+        assertEquals("4", index.search("BEYONCE cafe", 50).getFirst().id());
+        assertEquals("2", index.search("touch tone", 50).getFirst().id());
+    }
+
+    @Test
+    @DisplayName("Should respect the result limit")
+    void testLimit() {
+        assertEquals(2, index.search("lemon", 2).size());
+        assertEquals(3, index.search("lemon", 50).size());
+    }
+
+    @Test
+    @DisplayName("Should keep the album each song was listed under")
+    void testAlbumIds() {
+        int[] matches = index.match("lifetime");
+        assertEquals(1, matches.length);
+        assertEquals("a2", index.albumId(matches[0]));
+    }
+
+    @Test
+    @DisplayName("Should replace changed albums without touching the previous index")
+    void testDeltaReplacesAlbum() {
+        CatalogIndex next = index.applyDelta(
+                Map.of("a2", List.of(new Song("Touch-Tone Telephone (Remastered)", "Lemon Demon", "Spirit Phone", "2016", "5"))),
+                Set.of());
+
+        assertEquals(List.of("5"), next.search("touch tone", 50).stream().map(Song::id).toList());
+        assertTrue(next.search("lifetime achievement", 50).isEmpty());
+        assertEquals(3, next.size());
+        assertEquals(2, next.segmentCount());
+
+        // The old version is still intact for readers holding it
+        assertEquals(List.of("2"), index.search("touch tone", 50).stream().map(Song::id).toList());
+        assertEquals(4, index.size());
+    }
+
+    @Test
+    @DisplayName("Should drop removed albums")
+    void testDeltaRemovesAlbum() {
+        CatalogIndex next = index.applyDelta(Map.of(), Set.of("a1"));
+        assertTrue(next.search("two trucks", 50).isEmpty());
+        assertEquals(3, next.size());
+    }
+
+    @Test
+    @DisplayName("Should compact once too many segments pile up")
+    void testCompaction() {
+        CatalogIndex next = index;
+        for (int i = 0; i < 20; i++) {
+            next = next.applyDelta(Map.of("a1", List.of(new Song("Two Trucks", "Lemon Demon", "Nature Tapes", "2014", "t" + i))), Set.of());
+        }
+        assertTrue(next.segmentCount() <= 8);
+        assertEquals(List.of("t19"), next.search("two trucks", 50).stream().map(Song::id).toList());
+        assertEquals(4, next.size());
+    }
+
+    @Test
+    @DisplayName("Should correct misspelled words")
+    void testFuzzySearch() {
+        assertTrue(index.search("lemn demon", 50).isEmpty());
+        CatalogIndex.FuzzyMatch fuzzy = index.fuzzySearch("lemn demon", 0.3, 50);
+        assertEquals("lemon demon", fuzzy.query());
+        assertEquals(List.of("1", "2", "3"), fuzzy.songs().stream().map(Song::id).toList());
+
+        fuzzy = index.fuzzySearch("lifetme achievment", 0.3, 50);
+        assertEquals(List.of("3"), fuzzy.songs().stream().map(Song::id).toList());
+    }
+
+    @Test
+    @DisplayName("Should give up on words with no close spelling")
+    void testFuzzySearchNoMatch() {
+        assertSame(CatalogIndex.FuzzyMatch.NONE, index.fuzzySearch("lemon xyzzy", 0.3, 50));
+        assertTrue(index.fuzzySearch("lemn demon", 0.9, 50).songs().isEmpty());
+    }
+
+    @Test
+    @DisplayName("Should search misspellings across delta segments")
+    void testFuzzySearchAcrossSegments() {
+        CatalogIndex next = index.applyDelta(Map.of("a4", List.of(
+                new Song("Modern Jesus", "Portugal. The Man", "Evil Friends", "2013", "5"))), Set.of());
+        assertEquals(List.of("5"), next.fuzzySearch("portugl modern", 0.3, 50).songs().stream().map(Song::id).toList());
+        assertEquals(List.of("1"), next.fuzzySearch("two truks", 0.3, 50).songs().stream().map(Song::id).toList());
+    }
+}
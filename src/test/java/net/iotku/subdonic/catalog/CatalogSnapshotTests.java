@@ -0,0 +1,123 @@
+package net.iotku.subdonic.catalog;
+
+import net.iotku.subdonic.api.v1.dto.Song;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for the on-disk catalog snapshot.
+ * Tests round trips and that damaged or outdated files are rejected instead of loaded.
+ */
+@DisplayName("Catalog Snapshot Tests")
+public class CatalogSnapshotTests {
+
+    @TempDir
+    Path dir;
+
+    private Path path;
+    private CatalogIndex index;
+    private CatalogState state;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        path = dir.resolve("catalog.snap");
+        index = CatalogIndex.of(new CatalogSegment.Builder()
+                .add(new Song("Two Trucks", "Lemon Demon", "Nature Tapes", "2014", "1"), "a1")
+                .add(new Song("Touch-Tone Telephone", "Lemon Demon", "Spirit Phone", null, "2"), "a2")
+                .add(new Song("Café Bustelo", "Beyoncé", "Renaissance", "2022", "3"), "a3")
+                .build());
+        state = new CatalogState();
+        state.lastModified = 1234;
+        state.artistAlbumCounts.put("ar1", 2);
+        state.albums.put("a1", new AlbumRef("a1", "ar1", 1, 180, "2014-01-01T00:00:00Z"));
+        state.albums.put("a2", new AlbumRef("a2", "ar1", 1, 200, null));
+        CatalogSnapshot.write(index, state, path);
+    }
+
+    @Test
+    @DisplayName("Should load back the same songs, postings and library state")
+    void testRoundTrip() {
+        CatalogSnapshot.Loaded loaded = CatalogSnapshot.read(path).orElseThrow();
+        assertEquals(3, loaded.index().size());
+        assertEquals(index.search("lemon", 50), loaded.index().search("lemon", 50));
+        assertEquals("3", loaded.index().search("beyonce cafe", 50).getFirst().id());
+        assertNull(loaded.index().search("touch tone", 50).getFirst().year());
+        assertEquals("a2", loaded.index().albumId(loaded.index().match("touch")[0]));
+
+        assertEquals(1234, loaded.state().lastModified);
+        assertEquals(state.artistAlbumCounts, loaded.state().artistAlbumCounts);
+        assertEquals(state.albums, loaded.state().albums);
+    }
+
+    @Test
+    @DisplayName("Should only persist live songs of a multi-segment index")
+    void testCompactsOnWrite() throws IOException {
+        CatalogIndex next = index.applyDelta(
+                Map.of("a1", List.of(new Song("Two Trucks (Live)", "Lemon Demon", "Nature Tapes", "2014", "4"))),
+                Set.of("a3"));
+        CatalogSnapshot.write(next, state, path);
+
+        CatalogIndex loaded = CatalogSnapshot.read(path).orElseThrow().index();
+        assertEquals(1, loaded.segmentCount());
+        assertEquals(2, loaded.size());
+        assertEquals("4", loaded.search("two trucks", 50).getFirst().id());
+        assertTrue(loaded.search("beyonce", 50).isEmpty());
+    }
+
+    @Test
+    @DisplayName("Should reject a snapshot that fails its checksum")
+    void testCorrupted() throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.seek(file.length() - 10);
+            int b = file.read();
+            file.seek(file.length() - 10);
+            file.write(b ^ 0xFF);
+        }
+        assertEquals(Optional.empty(), CatalogSnapshot.read(path));
+    }
+
+    @Test
+    @DisplayName("Should reject a snapshot from another format version")
+    void testOldVersion() throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.seek(4);
+            file.writeInt(CatalogSnapshot.VERSION - 1);
+        }
+        assertEquals(Optional.empty(), CatalogSnapshot.read(path));
+    }
+
+    @Test
+    @DisplayName("Should reject truncated and missing snapshots")
+    void testTruncatedAndMissing() throws IOException {
+        byte[] bytes = Files.readAllBytes(path);
+        Files.write(path, Arrays.copyOf(bytes, bytes.length / 2));
+        assertEquals(Optional.empty(), CatalogSnapshot.read(path));
+        assertEquals(Optional.empty(), CatalogSnapshot.read(dir.resolve("missing.snap")));
+    }
+
+    @Test
+    @DisplayName("Should reject a snapshot whose body is too large to map instead of truncating its length")
+    void testTooLarge() throws IOException {
+        long bodyLength = Integer.MAX_VALUE + 1L;
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.setLength(24 + bodyLength); // sparse, nothing is written past the header
+            file.seek(16);
+            file.writeLong(bodyLength);
+        }
+        assertEquals(Optional.empty(), CatalogSnapshot.read(path));
+    }
+}
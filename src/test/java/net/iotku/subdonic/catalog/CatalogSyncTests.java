@@ -0,0 +1,225 @@
+package net.iotku.subdonic.catalog;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import net.iotku.subdonic.api.v1.dto.Song;
+import net.iotku.subdonic.subsonic.SubsonicClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for incremental catalog sync.
+ * Runs the crawler and sync job against a stub Subsonic server serving an in-memory library.
+ */
+@DisplayName("Catalog Sync Tests")
+public class CatalogSyncTests {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private HttpServer server;
+    private final Map<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+    private final Map<String, StubAlbum> library = new LinkedHashMap<>();
+    private volatile long lastModified = 1_000;
+    private volatile boolean scanning;
+    private volatile Runnable onGetAlbum; // runs on the server thread while a getAlbum request is answered
+
+    private CatalogService catalog;
+    private CatalogSync sync;
+    private SimpleMeterRegistry registry;
+
+    private record StubAlbum(String id, String artistId, List<Song> songs) {}
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+
+        addAlbum("al1", "ar1", new Song("Two Trucks", "Lemon Demon", "Nature Tapes", "2014", "s1"));
+        addAlbum("al2", "ar2", new Song("Cafe Bustelo", "Beyonce", "Renaissance", "2022", "s2"));
+
+        SubsonicClient subsonic = new SubsonicClient("http://127.0.0.1:" + server.getAddress().getPort(), "user", "pass");
+        CatalogCrawler crawler = new CatalogCrawler(subsonic, 2);
+        catalog = new CatalogService(crawler, true, "", 0.3);
+        registry = new SimpleMeterRegistry();
+        sync = new CatalogSync(catalog, crawler, registry);
+
+        catalog.refresh();
+        assertTrue(catalog.isWarm());
+        assertEquals(2, catalog.index().size());
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    @DisplayName("Should do nothing when the library hasn't changed")
+    void testUnchangedLibrary() throws Exception {
+        requests.clear();
+        assertFalse(sync.sync());
+        assertNull(requests.get("getArtists"));
+        assertNull(requests.get("getAlbum"));
+    }
+
+    @Test
+    @DisplayName("Should fetch only the new album of a changed artist")
+    void testAddedAlbum() throws Exception {
+        addAlbum("al3", "ar1", new Song("Touch-Tone Telephone", "Lemon Demon", "Spirit Phone", "2016", "s3"));
+        lastModified = 2_000;
+        requests.clear();
+
+        assertTrue(sync.sync());
+        assertEquals(1, requests.get("getAlbum").get(), "only the new album should be fetched");
+        assertEquals(1, requests.get("getArtist").get(), "only the changed artist should be fetched");
+        assertEquals("s3", catalog.search("touch tone", 50).getFirst().id());
+        assertEquals(3, catalog.index().size());
+        assertEquals(1.0, registry.get("catalog.sync.delta.albums").summary().totalAmount());
+    }
+
+    @Test
+    @DisplayName("Should drop albums that were removed upstream")
+    void testRemovedAlbum() throws Exception {
+        library.remove("al1");
+        lastModified = 2_000;
+
+        assertTrue(sync.sync());
+        assertTrue(catalog.search("two trucks", 50).isEmpty());
+        assertEquals(1, catalog.index().size());
+    }
+
+    @Test
+    @DisplayName("Should pick up re-tagged albums from the newest list")
+    void testRetaggedAlbum() throws Exception {
+        library.put("al2", new StubAlbum("al2", "ar2", List.of(
+                new Song("Cafe Bustelo", "Beyonce", "Renaissance", "2022", "s2"),
+                new Song("Summer Renaissance", "Beyonce", "Renaissance", "2022", "s4"))));
+        lastModified = 2_000;
+
+        assertTrue(sync.sync());
+        assertEquals("s4", catalog.search("summer renaissance", 50).getFirst().id());
+        assertEquals(3, catalog.index().size());
+    }
+
+    @Test
+    @DisplayName("Should wait while Subsonic is scanning")
+    void testScanning() throws Exception {
+        addAlbum("al3", "ar1", new Song("Touch-Tone Telephone", "Lemon Demon", "Spirit Phone", "2016", "s3"));
+        lastModified = 2_000;
+        scanning = true;
+
+        assertFalse(sync.sync());
+        assertTrue(catalog.search("touch tone", 50).isEmpty());
+
+        scanning = false;
+        assertTrue(sync.sync());
+        assertEquals(1, catalog.search("touch tone", 50).size());
+    }
+
+    @Test
+    @DisplayName("Should fetch without holding the catalog lock, and drop a delta the catalog moved on from")
+    void testFetchOutsideLock() {
+        addAlbum("al3", "ar1", new Song("Touch-Tone Telephone", "Lemon Demon", "Spirit Phone", "2016", "s3"));
+        lastModified = 2_000;
+        onGetAlbum = () -> {
+            synchronized (catalog) { // would deadlock if the sync held the lock while waiting on us
+                catalog.state().lastModified = 1_500; // e.g. another sync applied in the meantime
+            }
+        };
+
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> assertFalse(sync.sync()));
+        assertTrue(catalog.search("touch tone", 50).isEmpty());
+
+        onGetAlbum = null;
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> assertTrue(sync.sync()));
+        assertEquals(1, catalog.search("touch tone", 50).size());
+    }
+
+    private void addAlbum(String id, String artistId, Song... songs) {
+        library.put(id, new StubAlbum(id, artistId, List.of(songs)));
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String method = path.substring(path.lastIndexOf('/') + 1).replace(".view", "");
+        Map<String, String> params = new HashMap<>();
+        String query = exchange.getRequestURI().getQuery();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                String[] kv = pair.split("=", 2);
+                params.put(kv[0], kv.length > 1 ? kv[1] : "");
+            }
+        }
+        requests.computeIfAbsent(method, ignored -> new AtomicInteger()).incrementAndGet();
+        Runnable hook = onGetAlbum;
+        if ("getAlbum".equals(method) && hook != null) hook.run();
+
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("status", "ok");
+        body.put("version", "1.16.1");
+        switch (method) {
+            case "getScanStatus" -> body.put("scanStatus", Map.of("scanning", scanning, "count", 0));
+            case "getIndexes" -> body.put("indexes", Map.of("lastModified", lastModified));
+            case "getArtists" -> {
+                Map<String, Integer> counts = new LinkedHashMap<>();
+                library.values().forEach(a -> counts.merge(a.artistId(), 1, Integer::sum));
+                List<Map<String, Object>> artists = new ArrayList<>();
+                counts.forEach((id, count) -> artists.add(Map.of("id", id, "albumCount", count)));
+                body.put("artists", Map.of("index", List.of(Map.of("name", "A", "artist", artists))));
+            }
+            case "getArtist" -> body.put("artist", Map.of("id", params.get("id"), "album",
+                    library.values().stream().filter(a -> a.artistId().equals(params.get("id"))).map(this::albumJson).toList()));
+            case "getAlbumList2" -> {
+                List<StubAlbum> albums = new ArrayList<>(library.values());
+                if ("newest".equals(params.get("type"))) albums = albums.reversed();
+                int offset = Integer.parseInt(params.getOrDefault("offset", "0"));
+                body.put("albumList2", Map.of("album", albums.stream().skip(offset).map(this::albumJson).toList()));
+            }
+            case "getAlbum" -> {
+                StubAlbum album = library.get(params.get("id"));
+                Map<String, Object> json = new LinkedHashMap<>(albumJson(album));
+                json.put("song", album.songs());
+                body.put("album", json);
+            }
+            default -> {
+                body.put("status", "failed");
+                body.put("error", Map.of("code", 0, "message", "unknown method " + method));
+            }
+        }
+
+        byte[] bytes = MAPPER.writeValueAsString(Map.of("subsonic-response", body)).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private Map<String, Object> albumJson(StubAlbum album) {
+        return Map.of(
+                "id", album.id(),
+                "artistId", album.artistId(),
+                "songCount", album.songs().size(),
+                "duration", album.songs().size() * 180
+        );
+    }
+}
@@ -0,0 +1,78 @@
+package net.iotku.subdonic.catalog;
+
+import net.iotku.subdonic.api.v1.dto.Song;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for autocomplete suggestions.
+ * Tests prefix ranges, popularity ordering, play weighting and de-duplication.
+ */
+@DisplayName("Suggest Index Tests")
+public class SuggestIndexTests {
+
+    private CatalogIndex index;
+
+    @BeforeEach
+    void setUp() {
+        index = CatalogIndex.of(new CatalogSegment.Builder()
+                .add(new Song("Two Trucks", "Lemon Demon", "Nature Tapes", "2014", "1"), "a1")
+                .add(new Song("Touch-Tone Telephone", "Lemon Demon", "Spirit Phone", "2016", "2"), "a2")
+                .add(new Song("Lifetime Achievement Award", "Lemon Demon", "Spirit Phone", "2016", "3"), "a2")
+                .add(new Song("Touch-Tone Telephone", "Lemon Demon", "Live", "2018", "4"), "a3")
+                .add(new Song("Cafe Bustelo", "Beyoncé", "Renaissance", "2022", "5"), "a4")
+                .add(new Song("Tomorrow", "Tom Waits", "Rain Dogs", "1985", "6"), "a5")
+                .build());
+    }
+
+    @Test
+    @DisplayName("Should suggest artists and titles starting with the prefix, most popular first")
+    void testPopularityOrder() {
+        SuggestIndex suggest = SuggestIndex.build(index, Map.of());
+        assertEquals(List.of("Lemon Demon", "Lemon Demon - Touch-Tone Telephone", "Lemon Demon - Lifetime Achievement Award",
+                        "Lemon Demon - Two Trucks"),
+                labels(suggest.suggest("lem", 10)));
+        // Touch-Tone Telephone is on two albums, so it beats the other T titles
+        assertEquals("Lemon Demon - Touch-Tone Telephone", labels(suggest.suggest("t", 10)).getFirst());
+    }
+
+    @Test
+    @DisplayName("Should let local plays outweigh library copies")
+    void testPlays() {
+        List<String> unplayed = labels(SuggestIndex.build(index, Map.of()).suggest("to", 10));
+        assertTrue(unplayed.indexOf("Lemon Demon - Touch-Tone Telephone") < unplayed.indexOf("Tom Waits - Tomorrow"));
+
+        List<String> played = labels(SuggestIndex.build(index, Map.of("6", 1)).suggest("to", 10));
+        assertTrue(played.indexOf("Tom Waits - Tomorrow") < played.indexOf("Lemon Demon - Touch-Tone Telephone"));
+    }
+
+    @Test
+    @DisplayName("Should match artist followed by title, folded")
+    void testArtistTitle() {
+        SuggestIndex suggest = SuggestIndex.build(index, Map.of());
+        assertEquals(List.of("Lemon Demon - Two Trucks"), labels(suggest.suggest("LEMON demon tw", 10)));
+        assertEquals(List.of("Beyoncé", "Beyoncé - Cafe Bustelo"), labels(suggest.suggest("beyonce", 10)));
+        assertTrue(suggest.suggest("nothing like this", 10).isEmpty());
+    }
+
+    @Test
+    @DisplayName("Should respect the limit and never repeat a suggestion")
+    void testLimitAndDuplicates() {
+        SuggestIndex suggest = SuggestIndex.build(index, Map.of());
+        assertEquals(3, suggest.suggest("", 3).size());
+        List<String> all = labels(suggest.suggest("", 100));
+        assertEquals(all.stream().distinct().toList(), all);
+        assertEquals(suggest.size(), all.size());
+        assertTrue(SuggestIndex.EMPTY.suggest("a", 10).isEmpty());
+    }
+
+    private static List<String> labels(List<SuggestIndex.Suggestion> suggestions) {
+        return suggestions.stream().map(SuggestIndex.Suggestion::label).toList();
+    }
+}
@@ -0,0 +1,124 @@
+package net.iotku.subdonic.subsonic;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import net.iotku.subdonic.api.v1.dto.Song;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for the random song pools.
+ * Refills run inline so the watermarks can be checked deterministically against a fake Subsonic.
+ */
+@DisplayName("Random Pool Tests")
+public class RandomPoolTests {
+    private static final RandomPool.Filter ROCK = new RandomPool.Filter("Rock", null, null);
+
+    private final List<Integer> requests = new ArrayList<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private SimpleMeterRegistry registry;
+    private RandomPool pool;
+
+    @BeforeEach
+    void setUp() {
+        registry = new SimpleMeterRegistry();
+        pool = new RandomPool(this::fetch, 4, 10, 2, registry, Runnable::run);
+    }
+
+    @Test
+    @DisplayName("Should fill an empty pool up to the high watermark and serve later requests from memory")
+    void testFillAndServe() throws Exception {
+        assertEquals(3, pool.take(RandomPool.Filter.ANY, 3).size());
+        assertEquals(List.of(10, 3), requests); // inline refill, then the direct request for the cold pool
+        assertEquals(10, pool.size(RandomPool.Filter.ANY));
+
+        requests.clear();
+        assertEquals(5, pool.take(RandomPool.Filter.ANY, 5).size());
+        assertEquals(5, pool.size(RandomPool.Filter.ANY));
+        assertTrue(requests.isEmpty());
+
+        assertEquals(1, count("empty"));
+        assertEquals(1, count("hit"));
+        assertEquals(5, registry.get("random.pool.size").tag("filter", "any").gauge().value());
+    }
+
+    @Test
+    @DisplayName("Should refill once the pool drops below the low watermark")
+    void testLowWatermark() throws Exception {
+        pool.take(RandomPool.Filter.ANY, 1);
+        requests.clear();
+
+        pool.take(RandomPool.Filter.ANY, 6); // 10 -> 4, still at the low watermark
+        assertTrue(requests.isEmpty());
+        pool.take(RandomPool.Filter.ANY, 1); // 4 -> 3, below it
+        assertEquals(List.of(7), requests);
+        assertEquals(10, pool.size(RandomPool.Filter.ANY));
+        assertEquals(2, count("hit"));
+    }
+
+    @Test
+    @DisplayName("Should keep one pool per filter, up to the limit, and go direct beyond it")
+    void testFilters() throws Exception {
+        pool.take(RandomPool.Filter.ANY, 1);
+        pool.take(ROCK, 1);
+        assertEquals(10, pool.size(ROCK));
+
+        requests.clear();
+        RandomPool.Filter nineties = new RandomPool.Filter(null, 1990, 1999);
+        assertEquals(2, pool.take(nineties, 2).size());
+        assertEquals(List.of(2), requests);
+        assertEquals(0, pool.size(nineties));
+        assertEquals("genre=Rock,year=1990-1999", new RandomPool.Filter("Rock", 1990, 1999).label());
+    }
+
+    @Test
+    @DisplayName("Should pass over excluded songs without removing them from the pool")
+    void testExclude() throws Exception {
+        pool.take(RandomPool.Filter.ANY, 1); // ids 0-9 pooled, 10 served directly
+        requests.clear();
+
+        List<Song> songs = pool.take(RandomPool.Filter.ANY, 3, song -> Integer.parseInt(song.id()) % 2 == 0);
+        assertEquals(List.of("1", "3", "5"), songs.stream().map(Song::id).toList());
+        assertEquals(7, pool.size(RandomPool.Filter.ANY)); // 0, 2 and 4 went to the back
+        assertEquals(List.of("6", "7", "8"), pool.take(RandomPool.Filter.ANY, 3).stream().map(Song::id).toList());
+        assertTrue(requests.isEmpty());
+
+        // Nothing wanted anywhere: better a repeat than nothing
+        assertEquals(2, pool.take(ROCK, 2, song -> true).size());
+    }
+
+    @Test
+    @DisplayName("Should stop refilling when the filter matches fewer songs than the pool holds")
+    void testSmallLibrary() throws Exception {
+        RandomPool small = new RandomPool((filter, size) -> {
+            requests.add(size);
+            return songs(0, Math.min(size, 3));
+        }, 4, 10, 2, registry, Runnable::run);
+
+        small.take(ROCK, 1);
+        assertEquals(3, small.size(ROCK));
+        assertEquals(List.of(10, 7, 1), requests); // second batch adds nothing new, then the direct request
+    }
+
+    private List<Song> fetch(RandomPool.Filter filter, int size) {
+        requests.add(size);
+        return songs(nextId.getAndAdd(size), size);
+    }
+
+    private double count(String result) {
+        return registry.get("random.pool.requests").tag("filter", "any").tag("result", result).counter().count();
+    }
+
+    private static List<Song> songs(int firstId, int count) {
+        return IntStream.range(firstId, firstId + count)
+                .mapToObj(i -> new Song("Title " + i, "Artist", "Album", "2020", String.valueOf(i)))
+                .toList();
+    }
+}
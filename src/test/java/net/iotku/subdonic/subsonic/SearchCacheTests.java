@@ -0,0 +1,133 @@
+package net.iotku.subdonic.subsonic;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import net.iotku.subdonic.api.v1.dto.Song;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for the search result cache.
+ * Uses a fake clock for expiry and a SimpleMeterRegistry to check the hit/miss/eviction counters.
+ */
+@DisplayName("Search Cache Tests")
+public class SearchCacheTests {
+    private static final List<Song> TWO_TRUCKS = List.of(new Song("Two Trucks", "Lemon Demon", "Nature Tapes", "2014", "s1"));
+
+    private final AtomicLong now = new AtomicLong();
+    private SimpleMeterRegistry registry;
+    private SearchCache cache;
+
+    @BeforeEach
+    void setUp() {
+        registry = new SimpleMeterRegistry();
+        cache = new SearchCache(2, 1_000, registry, now::get);
+    }
+
+    @Test
+    @DisplayName("Should normalize case, punctuation and spacing in keys")
+    void testKeyNormalization() {
+        assertEquals(SearchCache.key("search3", "two trucks"), SearchCache.key("search3", "  Two   TRUCKS! "));
+        assertNotEquals(SearchCache.key("search2", "two trucks"), SearchCache.key("search3", "two trucks"));
+        // Queries without words keep their own entries
+        assertNotEquals(SearchCache.key("search3", "!!!"), SearchCache.key("search3", "???"));
+        assertNotEquals(SearchCache.key("search3", "\uD83C\uDFB5"), SearchCache.key("search3", ""));
+        assertEquals(SearchCache.key("search3", "?!"), SearchCache.key("search3", " ?! "));
+    }
+
+    @Test
+    @DisplayName("Should serve repeat lookups from the cache until the ttl passes")
+    void testExpiry() {
+        AtomicInteger loads = new AtomicInteger();
+        cache.get("k", () -> { loads.incrementAndGet(); return TWO_TRUCKS; });
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(999));
+        assertEquals(TWO_TRUCKS, cache.get("k", () -> { loads.incrementAndGet(); return TWO_TRUCKS; }));
+        assertEquals(1, loads.get());
+
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+        cache.get("k", () -> { loads.incrementAndGet(); return TWO_TRUCKS; });
+        assertEquals(2, loads.get());
+        assertEquals(1.0, registry.get("search.cache.requests").tag("result", "hit").counter().count());
+        assertEquals(2.0, registry.get("search.cache.requests").tag("result", "miss").counter().count());
+        assertEquals(1.0, registry.get("search.cache.evictions").tag("cause", "expired").counter().count());
+    }
+
+    @Test
+    @DisplayName("Should evict the least recently used entry when full")
+    void testLruEviction() {
+        cache.get("a", () -> TWO_TRUCKS);
+        cache.get("b", () -> TWO_TRUCKS);
+        cache.get("a", () -> fail("a should be cached"));
+        cache.get("c", () -> TWO_TRUCKS); // evicts b, a was used more recently
+
+        assertEquals(2, cache.size());
+        assertEquals(2.0, registry.get("search.cache.size").gauge().value());
+        assertEquals(1.0, registry.get("search.cache.evictions").tag("cause", "size").counter().count());
+        cache.get("a", () -> fail("a should still be cached"));
+        AtomicInteger loads = new AtomicInteger();
+        cache.get("b", () -> { loads.incrementAndGet(); return TWO_TRUCKS; });
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    @DisplayName("Should coalesce concurrent lookups of the same key into one load")
+    void testSingleFlight() throws Exception {
+        int callers = 8;
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(callers);
+        try {
+            List<Future<List<Song>>> results = new ArrayList<>();
+            results.add(pool.submit(() -> cache.get("k", () -> {
+                loads.incrementAndGet();
+                loading.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return TWO_TRUCKS;
+            })));
+            assertTrue(loading.await(5, TimeUnit.SECONDS));
+            for (int i = 1; i < callers; i++) {
+                results.add(pool.submit(() -> cache.get("k", () -> { loads.incrementAndGet(); return List.of(); })));
+            }
+            // Wait until every other caller is parked on the in-flight load before releasing it
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (registry.get("search.cache.requests").tag("result", "coalesced").counter().count() < callers - 1
+                    && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+
+            for (Future<List<Song>> result : results) {
+                assertEquals(TWO_TRUCKS, result.get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(1, loads.get());
+            assertEquals(callers - 1.0, registry.get("search.cache.requests").tag("result", "coalesced").counter().count());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    @DisplayName("Should not cache failed lookups")
+    void testFailureNotCached() {
+        assertThrows(IllegalStateException.class, () -> cache.get("k", () -> { throw new IllegalStateException("down"); }));
+        assertEquals(0, cache.size());
+        assertEquals(TWO_TRUCKS, cache.get("k", () -> TWO_TRUCKS));
+    }
+}
@@ -0,0 +1,78 @@
+package net.iotku.subdonic.subsonic;
+
+import net.iotku.subdonic.api.v1.dto.Song;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.OptionalInt;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for paged search sessions.
+ * Tests that pages load lazily with the right offsets, are cached, and that paging stops at the end.
+ */
+@DisplayName("Search Pages Tests")
+public class SearchPagesTests {
+
+    @Test
+    @DisplayName("Should only load pages when asked for, and only once")
+    void testLazyAndCached() {
+        List<Integer> offsets = new ArrayList<>();
+        SearchPages pages = new SearchPages("q", 5, 10, (offset, count) -> {
+            offsets.add(offset);
+            return songs(offset, count);
+        });
+
+        assertFalse(pages.isLoaded(0));
+        assertEquals("0", pages.page(0).getFirst().id());
+        assertEquals(List.of(0), offsets);
+        assertTrue(pages.mayHavePage(1));
+        assertFalse(pages.isLoaded(1));
+
+        assertEquals("5", pages.page(1).getFirst().id());
+        pages.page(0);
+        pages.page(1);
+        assertEquals(List.of(0, 5), offsets);
+        assertEquals(OptionalInt.empty(), pages.pageCount());
+    }
+
+    @Test
+    @DisplayName("Should stop at a short page, an empty page, or the page limit")
+    void testEnd() {
+        SearchPages shortPage = new SearchPages("q", 5, 10, (offset, count) -> offset == 0 ? songs(0, 3) : songs(offset, count));
+        assertEquals(3, shortPage.page(0).size());
+        assertFalse(shortPage.mayHavePage(1));
+        assertTrue(shortPage.page(1).isEmpty());
+        assertEquals(OptionalInt.of(1), shortPage.pageCount());
+
+        SearchPages emptyPage = new SearchPages("q", 5, 10, (offset, count) -> offset < 10 ? songs(offset, count) : List.of());
+        assertTrue(emptyPage.page(2).isEmpty());
+        assertEquals(OptionalInt.of(2), emptyPage.pageCount());
+
+        SearchPages limited = new SearchPages("q", 5, 2, SearchPagesTests::songs);
+        limited.page(1);
+        assertFalse(limited.mayHavePage(2));
+        assertEquals(OptionalInt.of(2), limited.pageCount());
+    }
+
+    @Test
+    @DisplayName("Should split in-memory results into fully loaded pages")
+    void testOf() {
+        SearchPages pages = SearchPages.of("q", songs(0, 12), 5);
+        assertEquals(OptionalInt.of(3), pages.pageCount());
+        assertTrue(pages.isLoaded(2));
+        assertEquals(List.of("10", "11"), pages.page(2).stream().map(Song::id).toList());
+        assertFalse(pages.mayHavePage(3));
+        assertEquals(OptionalInt.of(0), SearchPages.of("q", List.of(), 5).pageCount());
+    }
+
+    private static List<Song> songs(int offset, int count) {
+        return IntStream.range(offset, offset + count)
+                .mapToObj(i -> new Song("Title " + i, "Artist", "Album", "2020", String.valueOf(i)))
+                .toList();
+    }
+}
@@ -0,0 +1,126 @@
+package net.iotku.subdonic.subsonic;
+
+import net.iotku.subdonic.api.v1.dto.Song;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for search result ranking.
+ * The ranker must keep the order the original stream/sort ranking produced.
+ */
+@DisplayName("Search Ranker Tests")
+public class SearchRankerTests {
+    private static final String[] WORDS = {"two", "Trucks", "lemon", "DEMON", "live", "Live", "nature", "tapes", "bowl"};
+    private final SearchRanker ranker = new SearchRanker(SearchRanker.Weights.DEFAULT);
+
+    private record RankedSong(Song song, int score) {}
+
+    @Test
+    @DisplayName("Should rank title matches first and live albums last")
+    void testBasicOrder() {
+        Song live = new Song("Two Trucks", "Lemon Demon", "Live at the Bowl", "2020", "live");
+        Song artist = new Song("Touch-Tone Telephone", "Two Trucks Tribute", "Spirit Phone", "2016", "artist");
+        Song title = new Song("Two Trucks", "Lemon Demon", "Nature Tapes", "2014", "title");
+        Song none = new Song("Cafe Bustelo", "Beyonce", "Renaissance", "2022", "none");
+
+        List<Song> ranked = ranker.rank("two trucks", List.of(none, live, artist, title), 50);
+        assertEquals(List.of("title", "live", "artist", "none"), ranked.stream().map(Song::id).toList());
+    }
+
+    @Test
+    @DisplayName("Should score albums by the album and artist columns, not titles")
+    void testAlbumScore() {
+        Song byTitle = new Song("Spirit Phone", "Some Cover Band", "Covers Vol. 2", "2019", "title");
+        Song byAlbum = new Song("Touch-Tone Telephone", "Lemon Demon", "Spirit Phone", "2016", "album");
+        Song otherAlbum = new Song("Two Trucks", "Lemon Demon", "Nature Tapes", "2014", "other");
+        Song live = new Song("Touch-Tone Telephone", "Lemon Demon", "Spirit Phone (Live)", "2018", "live");
+
+        List<String> tokens = List.of("spirit", "phone", "lemon", "demon");
+        assertTrue(ranker.albumScore(tokens, byAlbum) > ranker.albumScore(tokens, otherAlbum));
+        assertTrue(ranker.albumScore(tokens, byAlbum) > ranker.albumScore(tokens, live));
+        assertEquals(0, ranker.albumScore(List.of("spirit", "phone"), byTitle));
+    }
+
+    @Test
+    @DisplayName("Should match the original ranking on random inputs, including ties")
+    void testMatchesLegacyOrder() {
+        Random random = new Random(7);
+        for (int round = 0; round < 200; round++) {
+            List<Song> songs = new ArrayList<>();
+            for (int i = random.nextInt(80); i > 0; i--) {
+                songs.add(new Song(random.nextInt(10) == 0 ? null : words(random), words(random),
+                        random.nextInt(10) == 0 ? null : words(random), "2014", "s" + songs.size()));
+            }
+            String query = WORDS[random.nextInt(WORDS.length)];
+            assertEquals(legacy(query, songs), ranker.rank(query, songs, songs.size()), "query " + query);
+        }
+    }
+
+    @Test
+    @DisplayName("Should keep only the best songs when limited")
+    void testLimit() {
+        List<Song> songs = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            songs.add(new Song(i % 5 == 0 ? "Two Trucks" : "Other", "Lemon Demon", "Nature Tapes", "2014", "s" + i));
+        }
+        List<Song> top = ranker.rank("two trucks", songs, 3);
+        assertEquals(List.of("s0", "s5", "s10"), top.stream().map(Song::id).toList());
+        assertTrue(ranker.rank("two trucks", List.of(), 3).isEmpty());
+    }
+
+    @Test
+    @DisplayName("Should ignore case and accents")
+    void testFolding() {
+        assertTrue(SearchRanker.contains("Beyoncé", "beyonce"));
+        assertTrue(SearchRanker.contains("CAFÉ Bustelo", "bustelo"));
+        assertTrue(SearchRanker.contains("Two Trucks", "two"));
+        assertFalse(SearchRanker.contains("Two Trucks", "three"));
+        assertFalse(SearchRanker.contains(null, "two"));
+    }
+
+    @Test
+    @DisplayName("Should apply custom weights")
+    void testCustomWeights() {
+        SearchRanker artistFirst = new SearchRanker(new SearchRanker.Weights(1, 10, 0, 0));
+        Song title = new Song("Lemon Demon", "Someone", "Album", "2014", "title");
+        Song artist = new Song("Song", "Lemon Demon", "Album", "2014", "artist");
+        assertEquals("artist", artistFirst.rank("lemon demon", List.of(title, artist), 2).getFirst().id());
+    }
+
+    private static List<Song> legacy(String query, List<Song> songs) {
+        return songs.stream()
+                .map(song -> {
+                    int score = 0;
+                    if (song.title() != null && song.title().toLowerCase().contains(query.toLowerCase())) {
+                        score += 10;
+                    }
+                    if (song.album() != null && song.album().toLowerCase().contains(query.toLowerCase())) {
+                        score += 1;
+                    }
+                    if (song.album() != null && song.album().toLowerCase().contains("live")) {
+                        score -= 5;
+                    }
+                    if (song.artist() != null && song.artist().toLowerCase().contains(query.toLowerCase())) {
+                        score += 5;
+                    }
+                    return new RankedSong(song, score);
+                })
+                .sorted((a, b) -> Integer.compare(b.score(), a.score()))
+                .map(RankedSong::song)
+                .toList();
+    }
+
+    private static String words(Random random) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = random.nextInt(4); i >= 0; i--) {
+            sb.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+        return sb.toString().trim();
+    }
+}
@@ -0,0 +1,175 @@
+package net.iotku.subdonic.subsonic;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import net.iotku.subdonic.api.v1.dto.Song;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for the Subsonic JSON client.
+ * Runs against a stub server that checks token auth and serves canned responses.
+ */
+@DisplayName("Subsonic Client Tests")
+public class SubsonicClientTests {
+    private static final byte[] AUDIO = {0x66, 0x4c, 0x61, 0x43, 1, 2, 3, 4, 5, 6};
+    private HttpServer server;
+    private SubsonicClient client;
+    private final Map<String, String> responses = new HashMap<>();
+    private volatile Map<String, String> lastParams;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+        client = new SubsonicClient("http://127.0.0.1:" + server.getAddress().getPort() + "/", "user", "p@ss word");
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    @DisplayName("Should authenticate with a salted token and ask for JSON")
+    void testAuth() throws Exception {
+        responses.put("ping", "{\"subsonic-response\":{\"status\":\"ok\",\"version\":\"1.16.1\"}}");
+        assertTrue(client.ping());
+
+        assertEquals("user", lastParams.get("u"));
+        assertEquals("json", lastParams.get("f"));
+        assertEquals("Subdonic Discord Bot", lastParams.get("c"));
+        assertNull(lastParams.get("p"), "the password must never be sent");
+        String expected = HexFormat.of().formatHex(MessageDigest.getInstance("MD5")
+                .digest(("p@ss word" + lastParams.get("s")).getBytes(StandardCharsets.UTF_8)));
+        assertEquals(expected, lastParams.get("t"));
+    }
+
+    @Test
+    @DisplayName("Should stream-parse search3 songs, skipping other results and tagless songs")
+    void testSearch3() throws Exception {
+        responses.put("search3", """
+                {"subsonic-response":{"status":"ok","version":"1.16.1","searchResult3":{
+                  "artist":[{"id":"ar1","name":"Lemon Demon"}],
+                  "album":[{"id":"al1","name":"Nature Tapes","song":[{"id":"nope"}]}],
+                  "song":[
+                    {"id":"s1","title":"Two Trucks","artist":"Lemon Demon","album":"Nature Tapes","year":2014,"duration":200},
+                    {"id":"s2","title":"/music/untagged.flac","artist":"[Unknown Artist]"},
+                    {"id":"s3","title":"Touch-Tone Telephone","artist":"Lemon Demon","album":"Spirit Phone"}
+                  ]}}}""");
+
+        List<Song> songs = client.search3("lemon demon & friends", 50);
+        assertEquals(List.of("s1", "s3"), songs.stream().map(Song::id).toList());
+        assertEquals("2014", songs.getFirst().year());
+        assertEquals("lemon demon & friends", lastParams.get("query"));
+        assertEquals("50", lastParams.get("songCount"));
+        assertEquals("0", lastParams.get("songOffset"));
+
+        client.search3("lemon demon", 5, 10);
+        assertEquals("5", lastParams.get("songCount"));
+        assertEquals("10", lastParams.get("songOffset"));
+    }
+
+    @Test
+    @DisplayName("Should accept a single song object and an empty result")
+    void testShapes() throws Exception {
+        responses.put("getRandomSongs", """
+                {"subsonic-response":{"status":"ok","randomSongs":{"song":{"id":"s1","title":"Two Trucks","artist":"Lemon Demon"}}}}""");
+        assertEquals(1, client.randomSongs(1).size());
+
+        responses.put("getAlbum", "{\"subsonic-response\":{\"status\":\"ok\",\"album\":{\"id\":\"al1\"}}}");
+        assertTrue(client.album("al1").isEmpty());
+    }
+
+    @Test
+    @DisplayName("Should surface Subsonic errors as IOExceptions")
+    void testError() {
+        responses.put("search3", """
+                {"subsonic-response":{"status":"failed","error":{"code":40,"message":"Wrong username or password"}}}""");
+        IOException e = assertThrows(IOException.class, () -> client.search3("x", 10));
+        assertTrue(e.getMessage().contains("Wrong username or password"));
+        assertThrows(IOException.class, () -> client.get("getMissing.view", Map.of()));
+    }
+
+    @Test
+    @DisplayName("Should build stream URLs without the plain password")
+    void testStreamUrl() {
+        URI url = client.streamUrl("a b", "flac", 0);
+        assertTrue(url.getPath().endsWith("/rest/stream.view"));
+        assertTrue(url.getRawQuery().contains("id=a%20b"));
+        assertTrue(url.getRawQuery().contains("format=flac"));
+        assertFalse(url.getRawQuery().contains("maxBitRate"));
+        assertFalse(url.toString().contains("p%40ss"));
+        assertTrue(client.streamUrl("a b", "opus", 96).getRawQuery().contains("maxBitRate=96"));
+    }
+
+    @Test
+    @DisplayName("Should forward Range headers when opening a stream")
+    void testStream() throws Exception {
+        HttpResponse<InputStream> full = client.stream("s1", "flac", null);
+        try (InputStream body = full.body()) {
+            assertEquals(200, full.statusCode());
+            assertArrayEquals(AUDIO, body.readAllBytes());
+        }
+
+        HttpResponse<InputStream> partial = client.stream("s1", "flac", "bytes=4-");
+        try (InputStream body = partial.body()) {
+            assertEquals(206, partial.statusCode());
+            assertEquals("bytes 4-9/10", partial.headers().firstValue("Content-Range").orElseThrow());
+            assertArrayEquals(Arrays.copyOfRange(AUDIO, 4, 10), body.readAllBytes());
+        }
+        assertEquals("s1", lastParams.get("id"));
+        assertEquals("flac", lastParams.get("format"));
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String method = path.substring(path.lastIndexOf('/') + 1).replace(".view", "");
+        Map<String, String> params = new HashMap<>();
+        for (String pair : exchange.getRequestURI().getRawQuery().split("&")) {
+            String[] kv = pair.split("=", 2);
+            params.put(kv[0], URLDecoder.decode(kv.length > 1 ? kv[1] : "", StandardCharsets.UTF_8));
+        }
+        lastParams = params;
+
+        if (method.equals("stream")) {
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            int from = range == null ? 0 : Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+            exchange.getResponseHeaders().set("Content-Type", "audio/flac");
+            if (range != null) exchange.getResponseHeaders().set("Content-Range", "bytes " + from + "-9/10");
+            exchange.sendResponseHeaders(range == null ? 200 : 206, AUDIO.length - from);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(AUDIO, from, AUDIO.length - from);
+            }
+            return;
+        }
+
+        String body = responses.get(method);
+        int status = body == null ? 404 : 200;
+        byte[] bytes = (body == null ? "not found" : body).getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}